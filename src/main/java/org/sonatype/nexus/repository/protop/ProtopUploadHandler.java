@@ -56,7 +56,7 @@ public class ProtopUploadHandler extends UploadHandlerSupport {
         StorageFacet storageFacet = repository.facet(StorageFacet.class);
 
         try (TempBlob tempBlob = storageFacet.createTempBlob(upload.getAssetUploads().get(0).getPayload(),
-                ProtopFacetUtils.HASH_ALGORITHMS)) {
+                ProtopFacetUtils.TARBALL_HASH_ALGORITHMS)) {
             final Map<String, Object> protopJson = protopPackageParser.parseProtopJson(tempBlob);
             final String org = (String) protopJson.get(ProtopAttributes.P_ORG);
             final String name = (String) protopJson.get(ProtopAttributes.P_NAME);
@@ -0,0 +1,131 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import com.google.common.collect.ImmutableList;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.repository.view.Headers;
+import org.sonatype.nexus.repository.view.Request;
+
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.apache.http.HttpHeaders.ACCEPT;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.DIST_TAGS;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.NAME;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.ORG;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.TIME;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.VERSIONS;
+
+/**
+ * Abbreviated, install only, representation of a package root. It keeps only the fields install clients need to
+ * resolve and fetch versions, and is stored as its own asset next to the package root, so it can be served without
+ * streaming the readme, maintainers, times and the like of every version.
+ */
+public final class ProtopAbbreviatedPackageRoot {
+    /**
+     * Media type clients ask for the abbreviated package root with, in the "Accept" header.
+     */
+    public static final String CONTENT_TYPE = "application/vnd.protop.install-v1+json";
+
+    private static final String ASSET_NAME_SUFFIX = "/-/install-v1.json";
+
+    private static final String MODIFIED = "modified";
+
+    private static final List<String> VERSION_FIELDS = ImmutableList.of(
+            ORG, NAME, ProtopMetadataUtils.VERSION, ProtopMetadataUtils.DEPRECATED, "dependencies",
+            "optionalDependencies", "devDependencies", ProtopAttributes.P_BUNDLE_DEPENDENCIES, "peerDependencies",
+            "peerDependenciesMeta", ProtopAttributes.P_BIN, ProtopAttributes.P_DIRECTORIES, ProtopMetadataUtils.DIST,
+            ProtopAttributes.P_ENGINES, ProtopAttributes.P_CPU, ProtopAttributes.P_OS,
+            ProtopAttributes.P_HAS_SHRINK_WRAP);
+
+    private ProtopAbbreviatedPackageRoot() {
+        // nop
+    }
+
+    /**
+     * Returns {@code true} if the request accepts the abbreviated package root.
+     */
+    public static boolean isRequested(@Nullable final Request request) {
+        Headers headers = request != null ? request.getHeaders() : null;
+        String accept = headers != null ? headers.get(ACCEPT) : null;
+        return accept != null && accept.contains(CONTENT_TYPE);
+    }
+
+    /**
+     * Formats the name of the abbreviated package root asset of a package.
+     */
+    static String assetName(final ProtopProjectId packageId) {
+        return assetName(packageId.id());
+    }
+
+    /**
+     * Formats the name of the abbreviated package root asset out of the name of the package root asset.
+     */
+    static String assetName(final String packageRootAssetName) {
+        return packageRootAssetName + ASSET_NAME_SUFFIX;
+    }
+
+    /**
+     * Builds the abbreviated package root out of the full one, which is left untouched.
+     */
+    static NestedAttributesMap abbreviate(final NestedAttributesMap packageRoot) {
+        NestedAttributesMap abbreviated = abbreviateHeader(packageRoot);
+        NestedAttributesMap versions = abbreviated.child(VERSIONS);
+        Object packageVersions = packageRoot.get(VERSIONS);
+        if (packageVersions instanceof Map) {
+            for (Entry<?, ?> version : ((Map<?, ?>) packageVersions).entrySet()) {
+                Map<String, Object> abbreviatedVersion = abbreviateVersion(version.getValue());
+                if (abbreviatedVersion != null) {
+                    versions.set(String.valueOf(version.getKey()), abbreviatedVersion);
+                }
+            }
+        }
+        return abbreviated;
+    }
+
+    /**
+     * Builds the abbreviated package root out of the full one, leaving its versions out. They are abbreviated one by one
+     * with {@link #abbreviateVersion(Object)}.
+     */
+    static NestedAttributesMap abbreviateHeader(final NestedAttributesMap packageRoot) {
+        checkNotNull(packageRoot);
+        NestedAttributesMap abbreviated = new NestedAttributesMap("abbreviated", new LinkedHashMap<>());
+        copy(packageRoot, abbreviated, ORG);
+        copy(packageRoot, abbreviated, NAME);
+        Object modified = packageRoot.contains(TIME) ? packageRoot.child(TIME).get(MODIFIED) : null;
+        if (modified != null) {
+            abbreviated.set(MODIFIED, modified);
+        }
+        copy(packageRoot, abbreviated, DIST_TAGS);
+        return abbreviated;
+    }
+
+    /**
+     * Abbreviates a version document, returns {@code null} for incomplete ones.
+     */
+    @Nullable
+    static Map<String, Object> abbreviateVersion(final Object version) {
+        if (!(version instanceof Map)) {
+            return null;
+        }
+        Map<?, ?> fields = (Map<?, ?>) version;
+        Map<String, Object> abbreviated = new LinkedHashMap<>();
+        for (String field : VERSION_FIELDS) {
+            Object value = fields.get(field);
+            if (value != null) {
+                abbreviated.put(field, value);
+            }
+        }
+        return abbreviated;
+    }
+
+    private static void copy(final NestedAttributesMap from, final NestedAttributesMap to, final String field) {
+        Object value = from.get(field);
+        if (value != null) {
+            to.set(field, value);
+        }
+    }
+}
@@ -144,6 +144,69 @@ public final class ProtopAttributes {
      */
     public static final String P_protop_LAST_MODIFIED = "last_modified";
 
+    /**
+     * Format attribute on proxied package root asset holding a map of tarball name to version, upstream tarball URL and
+     * shasum, see {@link ProtopTarballIndex}.
+     */
+    public static final String P_TARBALL_INDEX = "tarball_index";
+
+    /**
+     * Format attribute on proxied package root asset holding the upstream "ETag" of the package root, sent back as
+     * "If-None-Match" when revalidating it.
+     */
+    public static final String P_UPSTREAM_ETAG = "upstream_etag";
+
+    /**
+     * Format attribute on proxied package root asset holding the upstream "Last-Modified" of the package root, sent back
+     * as "If-Modified-Since" when revalidating it.
+     */
+    public static final String P_UPSTREAM_LAST_MODIFIED = "upstream_last_modified";
+
+    /**
+     * Format attribute on package root asset holding a copy of its "dist-tags" object, so dist-tags can be served
+     * without parsing the package root.
+     */
+    public static final String P_DIST_TAGS = "dist_tags";
+
+    /**
+     * Format attribute on package root asset holding the version its "latest" dist-tag points to.
+     */
+    public static final String P_LATEST_VERSION = "latest_version";
+
+    /**
+     * Format attribute on gzip package root asset holding the base URL its tarball URLs were rewritten with.
+     */
+    public static final String P_BASE_URL = "base_url";
+
+    /**
+     * Format attribute on gzip package root asset holding the "_rev" of the package root it was rendered from, if any.
+     */
+    public static final String P_REV = "rev";
+
+    /**
+     * Format attribute on sharded package root asset listing its version documents, see
+     * {@link ProtopShardedPackageRoot}.
+     */
+    public static final String P_VERSION_SHARDS = "version_shards";
+
+    /**
+     * Format attribute on group package root asset holding the SHA-1 of the package root of each member it was merged
+     * from, by member name, see {@link ProtopGroupFacet}.
+     */
+    public static final String P_MEMBER_VERSIONS = "member_versions";
+
+    /**
+     * Format attribute on group package root asset listing the names of the members it was merged from in member order,
+     * which is the precedence of the merge, as {@link #P_MEMBER_VERSIONS} does not keep it.
+     */
+    public static final String P_MEMBER_ORDER = "member_order";
+
+    /**
+     * Format attribute on group package root asset holding the versions it took from each member, by member name, so
+     * the next merge can tell which versions a change of a single member affects.
+     */
+    public static final String P_MERGED_VERSIONS = "merged_versions";
+
     /**
      * Marker for asset kinds.
      */
@@ -151,6 +214,9 @@ public final class ProtopAttributes {
 
         REPOSITORY_ROOT(ContentTypes.APPLICATION_JSON, false),
         PACKAGE_ROOT(ContentTypes.APPLICATION_JSON, true),
+        PACKAGE_ROOT_ABBREVIATED(ProtopAbbreviatedPackageRoot.CONTENT_TYPE, true),
+        PACKAGE_ROOT_GZIP(ContentTypes.APPLICATION_JSON, true),
+        PACKAGE_VERSION(ContentTypes.APPLICATION_JSON, true),
         TARBALL(ContentTypes.APPLICATION_GZIP, false);
 
         private final String contentType;
@@ -0,0 +1,56 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import com.google.common.collect.ImmutableMap;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.security.ContentPermissionChecker;
+import org.sonatype.nexus.repository.security.VariableResolverAdapter;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.Handler;
+import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.repository.view.payloads.BytesPayload;
+import org.sonatype.nexus.security.BreadActions;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.repository.view.ContentTypes.APPLICATION_JSON;
+
+/**
+ * Handler of batch publish requests, see {@link ProtopBatchPublishRequest}. The security handler only checks the batch
+ * publish path, hence each package is checked here for the permission a "protop publish" of it would need, packages
+ * not permitted are reported as failed items.
+ */
+@Named
+@Singleton
+public class ProtopBatchPublishHandler
+        implements Handler {
+    private final ContentPermissionChecker contentPermissionChecker;
+
+    private final VariableResolverAdapter variableResolverAdapter;
+
+    @Inject
+    public ProtopBatchPublishHandler(final ContentPermissionChecker contentPermissionChecker,
+                                     @Named("simple") final VariableResolverAdapter variableResolverAdapter) {
+        this.contentPermissionChecker = checkNotNull(contentPermissionChecker);
+        this.variableResolverAdapter = checkNotNull(variableResolverAdapter);
+    }
+
+    @Nonnull
+    @Override
+    public Response handle(@Nonnull final Context context) throws Exception {
+        Repository repository = context.getRepository();
+        NestedAttributesMap results = repository.facet(ProtopHostedFacet.class)
+                .putPackages(context.getRequest().getPayload(), packageId -> isPermitted(repository, packageId));
+        return ProtopResponses.ok(new BytesPayload(ProtopJsonUtils.bytes(results), APPLICATION_JSON));
+    }
+
+    private boolean isPermitted(final Repository repository, final ProtopProjectId packageId) {
+        return contentPermissionChecker.isPermitted(repository.getName(), ProtopFormat.NAME, BreadActions.EDIT,
+                variableResolverAdapter.fromCoordinates(ProtopFormat.NAME, "/" + packageId.id(),
+                        ImmutableMap.of("packageOrg", packageId.org(), "packageName", packageId.name())));
+    }
+}
@@ -0,0 +1,160 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.NAME;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.ORG;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.VERSIONS;
+
+/**
+ * Parsed batch publish request: newline delimited publish documents, each one as "protop publish" sends it, possibly
+ * for different packages. Each document is an {@link Item} carrying either its parsed {@link ProtopPublishRequest} or
+ * the reason it could not be parsed, and then the outcome of its publish, so a batch is reported item by item.
+ * <p>
+ * Note that this class should be used within a try-with-resources statement, as it manages the temp blobs of all of
+ * its publish requests.
+ */
+public class ProtopBatchPublishRequest
+        implements Closeable {
+    private final List<Item> items;
+
+    public ProtopBatchPublishRequest(final List<Item> items) {
+        this.items = checkNotNull(items);
+    }
+
+    public List<Item> getItems() {
+        return items;
+    }
+
+    /**
+     * Renders the outcome of all items, in request order, as the batch publish response.
+     */
+    public NestedAttributesMap results() {
+        List<Map<String, Object>> results = new ArrayList<>(items.size());
+        for (Item item : items) {
+            results.add(item.result());
+        }
+        NestedAttributesMap response = new NestedAttributesMap("results", new LinkedHashMap<>());
+        response.set("results", results);
+        return response;
+    }
+
+    @Override
+    public void close() {
+        for (Item item : items) {
+            if (item.request != null) {
+                item.request.close();
+            }
+        }
+    }
+
+    /**
+     * A publish document of the batch.
+     */
+    public static final class Item {
+        private final int index;
+
+        @Nullable
+        private final ProtopProjectId packageId;
+
+        @Nullable
+        private final ProtopPublishRequest request;
+
+        @Nullable
+        private String error;
+
+        private boolean published;
+
+        private Item(final int index,
+                     @Nullable final ProtopProjectId packageId,
+                     @Nullable final ProtopPublishRequest request,
+                     @Nullable final String error) {
+            this.index = index;
+            this.packageId = packageId;
+            this.request = request;
+            this.error = error;
+        }
+
+        /**
+         * Creates the item of a parsed document, failed already if the document does not name a valid package.
+         */
+        static Item parsed(final int index, final ProtopPublishRequest request) {
+            checkNotNull(request);
+            NestedAttributesMap packageRoot = request.getPackageRoot();
+            String org = packageRoot.get(ORG, String.class);
+            String name = packageRoot.get(NAME, String.class);
+            if (org == null || name == null) {
+                return new Item(index, null, request, "Missing package org or name");
+            }
+            try {
+                return new Item(index, new ProtopProjectId(org, name), request, null);
+            } catch (IllegalArgumentException e) {
+                return new Item(index, null, request, e.getMessage());
+            }
+        }
+
+        static Item failed(final int index, final String error) {
+            return new Item(index, null, null, checkNotNull(error));
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Returns the publish request, or {@code null} if the document could not be parsed.
+         */
+        @Nullable
+        public ProtopPublishRequest getRequest() {
+            return request;
+        }
+
+        /**
+         * Returns the package the document publishes to, or {@code null} if it could not be parsed or does not name a
+         * valid one.
+         */
+        @Nullable
+        public ProtopProjectId getPackageId() {
+            return packageId;
+        }
+
+        public boolean isDone() {
+            return published || error != null;
+        }
+
+        public void published() {
+            checkState(!isDone(), "Item %s already done", index);
+            this.published = true;
+        }
+
+        public void failed(final String error) {
+            checkState(!isDone(), "Item %s already done", index);
+            this.error = checkNotNull(error);
+        }
+
+        Map<String, Object> result() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("index", index);
+            if (packageId != null && request != null) {
+                result.put("id", packageId.id());
+                NestedAttributesMap packageRoot = request.getPackageRoot();
+                result.put(VERSIONS, packageRoot.contains(VERSIONS)
+                        ? new ArrayList<>(packageRoot.child(VERSIONS).keys()) : new ArrayList<>());
+            }
+            result.put("success", published);
+            if (error != null) {
+                result.put("error", error);
+            }
+            return result;
+        }
+    }
+}
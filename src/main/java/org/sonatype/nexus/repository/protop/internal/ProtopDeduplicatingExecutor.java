@@ -0,0 +1,70 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Bounded executor for background work keyed by what it works on. A task is not accepted while another task with the
+ * same key is queued or running, nor when all threads are busy and the queue is full.
+ */
+class ProtopDeduplicatingExecutor {
+    private static final Logger log = LoggerFactory.getLogger(ProtopDeduplicatingExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    ProtopDeduplicatingExecutor(final String name, final int threads, final int queueSize) {
+        checkNotNull(name);
+        checkArgument(threads > 0, "threads must be positive");
+        checkArgument(queueSize > 0, "queueSize must be positive");
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Submits the task unless one with the same key is already in flight or the executor is saturated.
+     *
+     * @return {@code true} if this task, or one with the same key, is going to run.
+     */
+    boolean submit(final String key, final Runnable task) {
+        checkNotNull(key);
+        checkNotNull(task);
+        if (!inFlight.add(key)) {
+            return true;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.warn("Background task {} failed", key, e);
+                } finally {
+                    inFlight.remove(key);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) { // NOSONAR
+            inFlight.remove(key);
+            return false;
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        inFlight.clear();
+    }
+}
@@ -3,16 +3,19 @@ package org.sonatype.nexus.repository.protop.internal;
 import com.google.common.base.Supplier;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import com.orientechnologies.orient.core.metadata.schema.OType;
 import org.sonatype.nexus.blobstore.api.Blob;
 import org.sonatype.nexus.blobstore.api.BlobRef;
 import org.sonatype.nexus.blobstore.api.BlobStore;
 import org.sonatype.nexus.blobstore.api.BlobStoreException;
+import org.sonatype.nexus.common.app.BaseUrlHolder;
 import org.sonatype.nexus.common.collect.NestedAttributesMap;
 import org.sonatype.nexus.common.hash.HashAlgorithm;
 import org.sonatype.nexus.orient.entity.AttachedEntityHelper;
 import org.sonatype.nexus.repository.Repository;
 import org.sonatype.nexus.repository.protop.internal.ProtopAttributes.AssetKind;
+import org.sonatype.nexus.repository.protop.internal.ProtopShardedPackageRoot.VersionShard;
 import org.sonatype.nexus.repository.storage.*;
 import org.sonatype.nexus.repository.view.Content;
 import org.sonatype.nexus.repository.view.Response;
@@ -27,21 +30,30 @@ import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.function.BiConsumer;
 
 import static com.google.common.collect.Maps.newHashMap;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
 import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
 import static java.util.stream.Collectors.toList;
 import static org.sonatype.nexus.common.hash.HashAlgorithm.SHA1;
+import static org.sonatype.nexus.common.hash.HashAlgorithm.SHA512;
 import static org.sonatype.nexus.repository.http.HttpStatus.OK;
 import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.AssetKind.TARBALL;
 import static org.sonatype.nexus.repository.protop.internal.ProtopJsonUtils.mapper;
 import static org.sonatype.nexus.repository.protop.internal.ProtopJsonUtils.serialize;
 import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.DIST_TAGS;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.VERSIONS;
 import static org.sonatype.nexus.repository.protop.internal.ProtopVersionComparator.extractNewestVersion;
 import static org.sonatype.nexus.repository.storage.AssetEntityAdapter.P_ASSET_KIND;
 import static org.sonatype.nexus.repository.storage.ComponentEntityAdapter.P_GROUP;
@@ -59,6 +71,10 @@ import static org.sonatype.nexus.repository.view.Status.success;
  * Component: none
  * Asset: N = ProtopProjectId.id()
  * <p>
+ * protop version metadata of sharded package roots (JSON, see ProtopShardedPackageRoot)
+ * Component: none
+ * Asset: N = ProtopProjectId.id() + "/-/versions/" + version + ".json"
+ * <p>
  * protop tarball (binary)
  * Component: G = ProtopProjectId.org(), N = ProtopProjectId.name(), V = version that tarball belongs to
  * Asset: N = ProtopPackage.id() + "/-/" + tarballName (see #tarballAssetName)
@@ -82,6 +98,12 @@ public final class ProtopFacetUtils {
 
     public static final List<HashAlgorithm> HASH_ALGORITHMS = Lists.newArrayList(SHA1);
 
+    /**
+     * Hash algorithms of tarballs, computed in the same pass that receives them, as their dist entry carries both the
+     * SHA-1 "shasum" and the SHA-512 "integrity".
+     */
+    public static final List<HashAlgorithm> TARBALL_HASH_ALGORITHMS = Lists.newArrayList(SHA1, SHA512);
+
     public static final String REPOSITORY_ROOT_ASSET = "-/all";
 
     public static final String REPOSITORY_SEARCH_ASSET = "-/v1/search";
@@ -159,6 +181,31 @@ public final class ProtopFacetUtils {
         return content;
     }
 
+    /**
+     * Convert an {@link Asset} representing an abbreviated package root to a {@link Content}, see
+     * {@link ProtopAbbreviatedPackageRoot}. The content has its own ETag, as it is not the package root.
+     */
+    public static ProtopContent toAbbreviatedContent(final Repository repository, final Asset abbreviatedAsset) {
+        ProtopContent content = new ProtopContent(new ProtopStreamPayload(loadPackageRoot(repository, abbreviatedAsset),
+                ProtopAbbreviatedPackageRoot.CONTENT_TYPE));
+        Content.extractFromAsset(abbreviatedAsset, HASH_ALGORITHMS, content.getAttributes());
+        return content;
+    }
+
+    /**
+     * Convert an {@link Asset} representing a gzip package root to a {@link Content} marked as gzip encoded, see
+     * {@link ProtopGzipPackageRoot}. Returns {@code null} when its blob is missing, in which case the package root is
+     * to be served instead.
+     */
+    @Nullable
+    static Content toGzipContent(final StorageTx tx, final Asset gzipAsset) {
+        Blob blob = tx.getBlob(gzipAsset.requireBlobRef());
+        if (isNull(blob)) {
+            return null;
+        }
+        return ProtopGzipPackageRoot.encoded(toContent(gzipAsset, blob));
+    }
+
     /**
      * Build a {@link ProtopStreamPayload} out of the {@link InputStream} representing the package root.
      *
@@ -230,6 +277,39 @@ public final class ProtopFacetUtils {
         return tx.findComponents(query(packageId).build(), singletonList(repository));
     }
 
+    /**
+     * Find the tarball components of the given versions of a package in repository, in a single query.
+     */
+    @Nonnull
+    static Iterable<Component> findPackageTarballComponents(final StorageTx tx,
+                                                            final Repository repository,
+                                                            final ProtopProjectId packageId,
+                                                            final Collection<String> versions) {
+        if (versions.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return tx.findComponents(
+                query(packageId)
+                        .and(P_VERSION + " IN ").param(new ArrayList<>(versions))
+                        .build(),
+                singletonList(repository)
+        );
+    }
+
+    /**
+     * Find the versions of all tarball components of a package in repository, in a single query.
+     */
+    @Nonnull
+    static Set<String> findPackageTarballVersions(final StorageTx tx,
+                                                  final Repository repository,
+                                                  final ProtopProjectId packageId) {
+        Set<String> versions = new HashSet<>();
+        for (Component component : findPackageTarballComponents(tx, repository, packageId)) {
+            versions.add(component.version());
+        }
+        return versions;
+    }
+
     /**
      * Find a tarball component by package name and version in repository.
      */
@@ -268,6 +348,28 @@ public final class ProtopFacetUtils {
         return tx.findAssetWithProperty(P_NAME, packageId.id(), bucket);
     }
 
+    /**
+     * Find the abbreviated package root asset by package name in repository, see {@link ProtopAbbreviatedPackageRoot}.
+     */
+    @Nullable
+    static Asset findAbbreviatedPackageRootAsset(final StorageTx tx,
+                                                 final Bucket bucket,
+                                                 final ProtopProjectId packageId) {
+        return tx.findAssetWithProperty(P_NAME, ProtopAbbreviatedPackageRoot.assetName(packageId), bucket);
+    }
+
+    /**
+     * Find the gzip package root asset by package name in repository, see {@link ProtopGzipPackageRoot}. Returns
+     * {@code null} as well when it was not rendered for the base URL of the current request.
+     */
+    @Nullable
+    static Asset findGzipPackageRootAsset(final StorageTx tx,
+                                          final Bucket bucket,
+                                          final ProtopProjectId packageId) {
+        Asset asset = tx.findAssetWithProperty(P_NAME, ProtopGzipPackageRoot.assetName(packageId), bucket);
+        return nonNull(asset) && ProtopGzipPackageRoot.isServable(asset) ? asset : null;
+    }
+
     /**
      * Find a tarball asset by package name and tarball filename in repository.
      */
@@ -302,12 +404,39 @@ public final class ProtopFacetUtils {
     public static NestedAttributesMap loadPackageRoot(final StorageTx tx,
                                                       final Asset packageRootAsset) throws IOException {
         final Blob blob = tx.requireBlob(packageRootAsset.requireBlobRef());
-        NestedAttributesMap metadata = ProtopJsonUtils.parse(() -> blob.getInputStream());
+        NestedAttributesMap metadata;
+        if (ProtopShardedPackageRoot.isSharded(packageRootAsset)) {
+            byte[] header;
+            try (InputStream in = blob.getInputStream()) {
+                header = ByteStreams.toByteArray(in);
+            }
+            Collection<VersionShard> shards = ProtopShardedPackageRoot.shards(packageRootAsset).values();
+            metadata = ProtopJsonUtils.parse(() -> ProtopShardedPackageRoot.assemble(header, shards,
+                    blobRef -> tx.requireBlob(blobRef).getInputStream()));
+        } else {
+            metadata = ProtopJsonUtils.parse(() -> blob.getInputStream());
+        }
         // add _id
         metadata.set(ProtopMetadataUtils.META_ID, packageRootAsset.name());
         return metadata;
     }
 
+    /**
+     * Returns the package root JSON content without its versions when it is sharded, see
+     * {@link ProtopShardedPackageRoot}, or the whole of it otherwise. Changes to it are to be saved with
+     * {@link #savePackageRootHeader(StorageTx, Repository, Path, Asset, NestedAttributesMap)}.
+     */
+    static NestedAttributesMap loadPackageRootHeader(final StorageTx tx,
+                                                     final Asset packageRootAsset) throws IOException {
+        if (!ProtopShardedPackageRoot.isSharded(packageRootAsset)) {
+            return loadPackageRoot(tx, packageRootAsset);
+        }
+        final Blob blob = tx.requireBlob(packageRootAsset.requireBlobRef());
+        NestedAttributesMap metadata = ProtopJsonUtils.parse(() -> blob.getInputStream());
+        metadata.set(ProtopMetadataUtils.META_ID, packageRootAsset.name());
+        return metadata;
+    }
+
     /**
      * Returns a {@link Supplier} that will get the {@link InputStream} for the package root associated with the given
      * {@link Asset}.
@@ -335,25 +464,304 @@ public final class ProtopFacetUtils {
 
     /**
      * Saves the package root JSON content by persisting content into root asset's blob. It also removes some transient
-     * fields from JSON document.
+     * fields from JSON document, and saves the abbreviated and gzip package roots along with it, by way of temporary
+     * files in the given directory.
      */
     static void savePackageRoot(final StorageTx tx,
+                                final Repository repository,
+                                final Path temporaryDirectory,
                                 final Asset packageRootAsset,
                                 final NestedAttributesMap packageRoot) throws IOException {
+        if (ProtopShardedPackageRoot.isSharded(packageRootAsset)) {
+            saveShardedPackageRoot(tx, repository, packageRootAsset, packageRoot, true);
+            return;
+        }
         packageRoot.remove(ProtopMetadataUtils.META_ID);
         packageRoot.remove("_attachments");
         packageRootAsset.formatAttributes().set(
                 ProtopAttributes.P_protop_LAST_MODIFIED, ProtopMetadataUtils.maintainTime(packageRoot).toDate()
         );
-        storeContent(
-                tx,
-                packageRootAsset,
-                new StreamCopier<Supplier<InputStream>>(
-                        outputStream -> serialize(new OutputStreamWriter(outputStream, UTF_8), packageRoot),
-                        inputStream -> () -> inputStream).read(),
-                AssetKind.PACKAGE_ROOT
+        maintainDistTags(packageRootAsset, packageRoot);
+
+        // serialized once, for both the package root and its gzip rendition
+        Path serialized = Files.createTempFile(temporaryDirectory, "protop-package-root-", ".json");
+        try {
+            try (Writer writer = new OutputStreamWriter(Files.newOutputStream(serialized), UTF_8)) {
+                serialize(writer, packageRoot);
+            }
+            storeContent(tx, packageRootAsset, fileContent(serialized), AssetKind.PACKAGE_ROOT);
+            tx.saveAsset(packageRootAsset);
+            saveAbbreviatedPackageRoot(tx, repository, packageRootAsset, packageRoot);
+            saveGzipPackageRoot(tx, repository, temporaryDirectory, packageRootAsset,
+                    packageRoot.get(ProtopMetadataUtils.META_REV), fileContent(serialized));
+        } finally {
+            Files.deleteIfExists(serialized);
+        }
+    }
+
+    /**
+     * Saves the package root merged by {@link ProtopPackageRootMerge} like
+     * {@link #savePackageRoot(StorageTx, Repository, Path, Asset, NestedAttributesMap)} does, without ever holding its
+     * versions in memory. The merge writes the package root and its abbreviated package root to temporary files in the
+     * given directory, which the blobs are stored from, and the gzip package root is rendered out of the former.
+     */
+    static void saveMergedPackageRoot(final StorageTx tx,
+                                      final Repository repository,
+                                      final Path temporaryDirectory,
+                                      final Asset packageRootAsset,
+                                      final ProtopPackageRootMerge merge) throws IOException {
+        NestedAttributesMap header = merge.header();
+        header.remove(ProtopMetadataUtils.META_ID);
+        header.remove("_attachments");
+        packageRootAsset.formatAttributes().set(
+                ProtopAttributes.P_protop_LAST_MODIFIED,
+                ProtopMetadataUtils.maintainTime(header, merge.versions()).toDate()
         );
+        maintainDistTags(packageRootAsset, header);
+
+        Path packageRoot = Files.createTempFile(temporaryDirectory, "protop-merged-", ".json");
+        Path abbreviated = Files.createTempFile(temporaryDirectory, "protop-merged-", "-install-v1.json");
+        try {
+            try (OutputStream out = Files.newOutputStream(packageRoot);
+                 OutputStream abbreviatedOut = Files.newOutputStream(abbreviated)) {
+                merge.write(repository.getName(), out, abbreviatedOut);
+            }
+            storeContent(tx, packageRootAsset, fileContent(packageRoot), AssetKind.PACKAGE_ROOT);
+            tx.saveAsset(packageRootAsset);
+            storeAbbreviatedPackageRoot(tx, repository, packageRootAsset, fileContent(abbreviated));
+            saveGzipPackageRoot(tx, repository, temporaryDirectory, packageRootAsset,
+                    header.get(ProtopMetadataUtils.META_REV), fileContent(packageRoot));
+        } finally {
+            Files.deleteIfExists(packageRoot);
+            Files.deleteIfExists(abbreviated);
+        }
+    }
+
+    private static Supplier<InputStream> fileContent(final Path file) {
+        return () -> {
+            try {
+                return Files.newInputStream(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    /**
+     * Saves changes to the package root loaded with {@link #loadPackageRootHeader(StorageTx, Asset)}. The versions of a
+     * sharded package root are left as they are.
+     */
+    static void savePackageRootHeader(final StorageTx tx,
+                                      final Repository repository,
+                                      final Path temporaryDirectory,
+                                      final Asset packageRootAsset,
+                                      final NestedAttributesMap packageRoot) throws IOException {
+        if (ProtopShardedPackageRoot.isSharded(packageRootAsset)) {
+            saveShardedPackageRoot(tx, repository, packageRootAsset, packageRoot, false);
+        } else {
+            savePackageRoot(tx, repository, temporaryDirectory, packageRootAsset, packageRoot);
+        }
+    }
+
+    /**
+     * Saves the package root sharded, see {@link ProtopShardedPackageRoot}: its header into the package root asset, and
+     * each of its versions into a version asset, unless the version document did not change. When replacing versions,
+     * the package root holds all of them and versions absent from it are deleted; otherwise it holds only the versions
+     * being added or updated, if any. The abbreviated and gzip package roots are not kept for sharded package roots, as
+     * rendering them would need the whole package root on every save, so requests for those are served the assembled
+     * package root. Sharded package roots are not held by the {@link ProtopPackageRootCache} either, being assembled by
+     * streaming their blobs instead of parsing them.
+     *
+     * @return the versions whose documents were written, as they were added or changed
+     */
+    static Set<String> saveShardedPackageRoot(final StorageTx tx,
+                                              final Repository repository,
+                                              final Asset packageRootAsset,
+                                              final NestedAttributesMap packageRoot,
+                                              final boolean replaceVersions) throws IOException {
+        packageRoot.remove(ProtopMetadataUtils.META_ID);
+        packageRoot.remove("_attachments");
+        packageRootAsset.formatAttributes().set(
+                ProtopAttributes.P_protop_LAST_MODIFIED, ProtopMetadataUtils.maintainTime(packageRoot).toDate()
+        );
+        maintainDistTags(packageRootAsset, packageRoot);
+
+        Bucket bucket = tx.findBucket(repository);
+        Map<String, VersionShard> oldShards = ProtopShardedPackageRoot.shards(packageRootAsset);
+        Map<String, VersionShard> shards = new LinkedHashMap<>();
+        if (!replaceVersions) {
+            shards.putAll(oldShards);
+        }
+        Set<String> written = new HashSet<>();
+        Object versions = packageRoot.get(VERSIONS);
+        if (versions instanceof Map) {
+            for (Map.Entry<?, ?> version : ((Map<?, ?>) versions).entrySet()) {
+                if (version.getValue() instanceof Map) { // only if not incomplete
+                    String key = String.valueOf(version.getKey());
+                    VersionShard oldShard = oldShards.get(key);
+                    VersionShard shard = saveVersionShard(tx, repository, bucket, packageRootAsset,
+                            packageRoot.child(VERSIONS).child(key), oldShard);
+                    if (shard != oldShard) {
+                        written.add(key);
+                    }
+                    shards.put(key, shard);
+                }
+            }
+        }
+        for (String version : oldShards.keySet()) {
+            if (!shards.containsKey(version)) {
+                Asset versionAsset = tx.findAssetWithProperty(P_NAME,
+                        ProtopShardedPackageRoot.versionAssetName(packageRootAsset.name(), version), bucket);
+                if (nonNull(versionAsset)) {
+                    tx.deleteAsset(versionAsset);
+                }
+            }
+        }
+
+        NestedAttributesMap header = new NestedAttributesMap(packageRoot.getKey(),
+                new LinkedHashMap<>(packageRoot.backing()));
+        header.remove(VERSIONS);
+        ProtopShardedPackageRoot.shards(packageRootAsset, shards);
+        storeContent(tx, packageRootAsset, serialized(header), AssetKind.PACKAGE_ROOT);
         tx.saveAsset(packageRootAsset);
+
+        for (String name : asList(ProtopAbbreviatedPackageRoot.assetName(packageRootAsset.name()),
+                ProtopGzipPackageRoot.assetName(packageRootAsset.name()))) {
+            Asset rendition = tx.findAssetWithProperty(P_NAME, name, bucket);
+            if (nonNull(rendition)) {
+                tx.deleteAsset(rendition);
+            }
+        }
+        return written;
+    }
+
+    private static VersionShard saveVersionShard(final StorageTx tx,
+                                                 final Repository repository,
+                                                 final Bucket bucket,
+                                                 final Asset packageRootAsset,
+                                                 final NestedAttributesMap version,
+                                                 @Nullable final VersionShard oldShard) throws IOException {
+        byte[] bytes = ProtopJsonUtils.bytes(version);
+        String sha1 = SHA1.function().hashBytes(bytes).toString();
+        if (nonNull(oldShard) && sha1.equals(oldShard.sha1)) {
+            return oldShard;
+        }
+        String name = ProtopShardedPackageRoot.versionAssetName(packageRootAsset.name(), version.getKey());
+        Asset asset = tx.findAssetWithProperty(P_NAME, name, bucket);
+        if (asset == null) {
+            asset = tx.createAsset(bucket, repository.getFormat()).name(name);
+        }
+        storeContent(tx, asset, () -> new ByteArrayInputStream(bytes), AssetKind.PACKAGE_VERSION);
+        tx.saveAsset(asset);
+        return new VersionShard(version.getKey(), asset.requireBlobRef(), sha1);
+    }
+
+    private static void saveAbbreviatedPackageRoot(final StorageTx tx,
+                                                   final Repository repository,
+                                                   final Asset packageRootAsset,
+                                                   final NestedAttributesMap packageRoot) throws IOException {
+        storeAbbreviatedPackageRoot(tx, repository, packageRootAsset,
+                serialized(ProtopAbbreviatedPackageRoot.abbreviate(packageRoot)));
+    }
+
+    private static void storeAbbreviatedPackageRoot(final StorageTx tx,
+                                                    final Repository repository,
+                                                    final Asset packageRootAsset,
+                                                    final Supplier<InputStream> abbreviated) throws IOException {
+        Bucket bucket = tx.findBucket(repository);
+        String name = ProtopAbbreviatedPackageRoot.assetName(packageRootAsset.name());
+        Asset asset = tx.findAssetWithProperty(P_NAME, name, bucket);
+        if (asset == null) {
+            asset = tx.createAsset(bucket, repository.getFormat()).name(name);
+        }
+        storeContent(tx, asset, abbreviated, AssetKind.PACKAGE_ROOT_ABBREVIATED);
+        tx.saveAsset(asset);
+    }
+
+    private static void saveGzipPackageRoot(final StorageTx tx,
+                                            final Repository repository,
+                                            final Path temporaryDirectory,
+                                            final Asset packageRootAsset,
+                                            @Nullable final Object rev,
+                                            final Supplier<InputStream> packageRoot) throws IOException {
+        Bucket bucket = tx.findBucket(repository);
+        String name = ProtopGzipPackageRoot.assetName(packageRootAsset.name());
+        Asset asset = tx.findAssetWithProperty(P_NAME, name, bucket);
+        // the rendition stays with the base URL it was first rendered for, so saves coming through other base URLs, or
+        // none, do not replace it back and forth
+        String baseUrl = nonNull(asset) ? asset.formatAttributes().get(ProtopAttributes.P_BASE_URL, String.class) : null;
+        if (baseUrl == null && BaseUrlHolder.isSet()) {
+            baseUrl = BaseUrlHolder.get();
+        }
+        if (baseUrl == null) {
+            // tarball URLs can not be rewritten without a base URL, drop the rendition instead of leaving it outdated
+            if (nonNull(asset)) {
+                tx.deleteAsset(asset);
+            }
+            return;
+        }
+        if (asset == null) {
+            asset = tx.createAsset(bucket, repository.getFormat()).name(name);
+        }
+        Path gzipped = Files.createTempFile(temporaryDirectory, "protop-package-root-", ".json.gz");
+        try {
+            try (OutputStream out = Files.newOutputStream(gzipped)) {
+                ProtopGzipPackageRoot.render(repository.getName(), packageRootAsset.name(), baseUrl, packageRoot, out);
+            }
+            asset.formatAttributes().set(ProtopAttributes.P_BASE_URL, baseUrl);
+            if (nonNull(rev)) {
+                asset.formatAttributes().set(ProtopAttributes.P_REV, rev);
+            } else {
+                asset.formatAttributes().remove(ProtopAttributes.P_REV);
+            }
+            storeContent(tx, asset, fileContent(gzipped), AssetKind.PACKAGE_ROOT_GZIP);
+            tx.saveAsset(asset);
+        } finally {
+            Files.deleteIfExists(gzipped);
+        }
+    }
+
+    private static Supplier<InputStream> serialized(final NestedAttributesMap document) {
+        return new StreamCopier<Supplier<InputStream>>(
+                outputStream -> serialize(new OutputStreamWriter(outputStream, UTF_8), document),
+                inputStream -> () -> inputStream).read();
+    }
+
+    /**
+     * Copies the "dist-tags" of the package root, and the version tagged latest, into format attributes of its asset,
+     * see {@link #loadDistTags(StorageTx, Asset)}.
+     */
+    static void maintainDistTags(final Asset packageRootAsset, final NestedAttributesMap packageRoot) {
+        Map<String, Object> distTags = new LinkedHashMap<>();
+        Object packageDistTags = packageRoot.get(DIST_TAGS);
+        if (packageDistTags instanceof Map) {
+            for (Map.Entry<?, ?> distTag : ((Map<?, ?>) packageDistTags).entrySet()) {
+                if (distTag.getValue() instanceof String) {
+                    distTags.put(String.valueOf(distTag.getKey()), distTag.getValue());
+                }
+            }
+        }
+
+        NestedAttributesMap formatAttributes = packageRootAsset.formatAttributes();
+        formatAttributes.set(ProtopAttributes.P_DIST_TAGS, distTags);
+        Object latest = distTags.get(ProtopMetadataUtils.LATEST);
+        if (latest != null) {
+            formatAttributes.set(ProtopAttributes.P_LATEST_VERSION, latest);
+        } else {
+            formatAttributes.remove(ProtopAttributes.P_LATEST_VERSION);
+        }
+    }
+
+    /**
+     * Returns the "dist-tags" of the package root. They are read from the package root asset attributes, and only
+     * package roots saved before those were maintained are parsed.
+     */
+    static NestedAttributesMap loadDistTags(final StorageTx tx, final Asset packageRootAsset) throws IOException {
+        NestedAttributesMap formatAttributes = packageRootAsset.formatAttributes();
+        if (formatAttributes.contains(ProtopAttributes.P_DIST_TAGS)) {
+            return formatAttributes.child(ProtopAttributes.P_DIST_TAGS);
+        }
+        return loadPackageRootHeader(tx, packageRootAsset).child(DIST_TAGS);
     }
 
     /**
@@ -369,9 +777,28 @@ public final class ProtopFacetUtils {
             return Collections.emptySet();
         }
         tx.deleteAsset(packageRootAsset, deleteBlobs);
+        Set<String> deletedAssetNames = new HashSet<>();
+        for (String version : ProtopShardedPackageRoot.shards(packageRootAsset).keySet()) {
+            Asset versionAsset = tx.findAssetWithProperty(P_NAME,
+                    ProtopShardedPackageRoot.versionAssetName(packageRootAsset.name(), version), tx.findBucket(repository));
+            if (versionAsset != null) {
+                tx.deleteAsset(versionAsset, deleteBlobs);
+                deletedAssetNames.add(versionAsset.name());
+            }
+        }
+        Asset abbreviatedAsset = findAbbreviatedPackageRootAsset(tx, tx.findBucket(repository), packageId);
+        if (abbreviatedAsset != null) {
+            tx.deleteAsset(abbreviatedAsset, deleteBlobs);
+            deletedAssetNames.add(abbreviatedAsset.name());
+        }
+        Asset gzipAsset = tx.findAssetWithProperty(P_NAME, ProtopGzipPackageRoot.assetName(packageId),
+                tx.findBucket(repository));
+        if (gzipAsset != null) {
+            tx.deleteAsset(gzipAsset, deleteBlobs);
+            deletedAssetNames.add(gzipAsset.name());
+        }
         // find all tarball components -> delete
         Iterable<Component> protopTarballs = findPackageTarballComponents(tx, repository, packageId);
-        Set<String> deletedAssetNames = new HashSet<>();
         for (Component protopTarball : protopTarballs) {
             deletedAssetNames.addAll(tx.deleteComponent(protopTarball, deleteBlobs));
         }
@@ -440,10 +867,24 @@ public final class ProtopFacetUtils {
             throw new MissingAssetBlobException(packageRootAsset);
         }
 
-        BlobRef blobRef = packageRootAsset.requireBlobRef();
+        InputStream packageRoot = blobInputStream(blobStore, packageRootAsset, packageRootAsset.requireBlobRef());
+        if (!ProtopShardedPackageRoot.isSharded(packageRootAsset)) {
+            return packageRoot;
+        }
+        byte[] header;
+        try (InputStream in = packageRoot) {
+            header = ByteStreams.toByteArray(in);
+        } catch (IOException ignore) { // NOSONAR
+            throw new MissingAssetBlobException(packageRootAsset);
+        }
+        return ProtopShardedPackageRoot.assemble(header, ProtopShardedPackageRoot.shards(packageRootAsset).values(),
+                blobRef -> blobInputStream(blobStore, packageRootAsset, blobRef));
+    }
+
+    private static InputStream blobInputStream(final BlobStore blobStore, final Asset asset, final BlobRef blobRef) {
         Blob blob = blobStore.get(blobRef.getBlobId());
         if (isNull(blob)) {
-            throw new MissingAssetBlobException(packageRootAsset);
+            throw new MissingAssetBlobException(asset);
         }
 
         try {
@@ -451,7 +892,7 @@ public final class ProtopFacetUtils {
         } catch (BlobStoreException ignore) { // NOSONAR
             // we want any issue with the blob store stream to be caught during the getting of the input stream as throw the
             // the same type of exception as a missing asset blob, so that we can pass the associated asset around.
-            throw new MissingAssetBlobException(packageRootAsset);
+            throw new MissingAssetBlobException(asset);
         }
     }
 
@@ -467,27 +908,41 @@ public final class ProtopFacetUtils {
      * Updates the packageRoot with this set of dist-tags
      */
     public static void updateDistTags(final StorageTx tx,
+                                      final Repository repository,
+                                      final Path temporaryDirectory,
                                       final Asset packageRootAsset,
                                       final String tag,
                                       final Object version) throws IOException {
-        NestedAttributesMap packageRoot = loadPackageRoot(tx, packageRootAsset);
+        NestedAttributesMap formatAttributes = packageRootAsset.formatAttributes();
+        if (formatAttributes.contains(ProtopAttributes.P_DIST_TAGS)
+                && version.equals(formatAttributes.child(ProtopAttributes.P_DIST_TAGS).get(tag))) {
+            return; // already tagged, no need to rewrite the package root
+        }
+        NestedAttributesMap packageRoot = loadPackageRootHeader(tx, packageRootAsset);
         NestedAttributesMap distTags = packageRoot.child(DIST_TAGS);
         distTags.set(tag, version);
 
-        savePackageRoot(tx, packageRootAsset, packageRoot);
+        savePackageRootHeader(tx, repository, temporaryDirectory, packageRootAsset, packageRoot);
     }
 
     /**
      * Deletes the {@param tag} from the packageRoot
      */
     public static void deleteDistTags(final StorageTx tx,
+                                      final Repository repository,
+                                      final Path temporaryDirectory,
                                       final Asset packageRootAsset,
                                       final String tag) throws IOException {
-        NestedAttributesMap packageRoot = ProtopFacetUtils.loadPackageRoot(tx, packageRootAsset);
+        NestedAttributesMap formatAttributes = packageRootAsset.formatAttributes();
+        if (formatAttributes.contains(ProtopAttributes.P_DIST_TAGS)
+                && !formatAttributes.child(ProtopAttributes.P_DIST_TAGS).contains(tag)) {
+            return; // not tagged, no need to rewrite the package root
+        }
+        NestedAttributesMap packageRoot = loadPackageRootHeader(tx, packageRootAsset);
         if (packageRoot.contains(DIST_TAGS)) {
             NestedAttributesMap distTags = packageRoot.child(DIST_TAGS);
             distTags.remove(tag);
-            ProtopFacetUtils.savePackageRoot(tx, packageRootAsset, packageRoot);
+            savePackageRootHeader(tx, repository, temporaryDirectory, packageRootAsset, packageRoot);
         }
     }
 
@@ -1,25 +1,35 @@
 package org.sonatype.nexus.repository.protop.internal;
 
+import com.codahale.metrics.SharedMetricRegistries;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.eventbus.AllowConcurrentEvents;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.hash.HashCode;
 import com.orientechnologies.common.concur.ONeedRetryException;
 import com.orientechnologies.orient.core.exception.ORecordNotFoundException;
-import org.joda.time.DateTime;
 import org.sonatype.goodies.common.Time;
+import org.sonatype.nexus.blobstore.api.Blob;
+import org.sonatype.nexus.common.app.ApplicationDirectories;
 import org.sonatype.nexus.common.collect.AttributesMap;
 import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.common.hash.HashAlgorithm;
 import org.sonatype.nexus.common.io.Cooperation;
 import org.sonatype.nexus.common.io.CooperationFactory;
 import org.sonatype.nexus.common.stateguard.Guarded;
 import org.sonatype.nexus.repository.Facet.Exposed;
 import org.sonatype.nexus.repository.Repository;
 import org.sonatype.nexus.repository.Type;
+import org.sonatype.nexus.repository.cache.CacheInfo;
 import org.sonatype.nexus.repository.config.Configuration;
 import org.sonatype.nexus.repository.group.GroupFacetImpl;
 import org.sonatype.nexus.repository.manager.RepositoryManager;
+import org.sonatype.nexus.repository.protop.internal.ProtopGroupFanOut.MemberResponses;
+import org.sonatype.nexus.repository.protop.internal.ProtopAttributes.AssetKind;
 import org.sonatype.nexus.repository.storage.*;
 import org.sonatype.nexus.repository.transaction.TransactionalStoreBlob;
+import org.sonatype.nexus.repository.transaction.TransactionalStoreMetadata;
 import org.sonatype.nexus.repository.transaction.TransactionalTouchBlob;
 import org.sonatype.nexus.repository.types.GroupType;
 import org.sonatype.nexus.repository.view.Content;
@@ -36,22 +46,29 @@ import javax.inject.Inject;
 import javax.inject.Named;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static java.util.Collections.reverse;
 import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
 import static java.util.stream.Collectors.toList;
-import static org.joda.time.DateTime.now;
 import static org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport.State.STARTED;
 import static org.sonatype.nexus.repository.cache.CacheInfo.invalidateAsset;
+import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_MEMBER_ORDER;
+import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_MEMBER_VERSIONS;
+import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_MERGED_VERSIONS;
 import static org.sonatype.nexus.repository.protop.internal.ProtopFacetUtils.*;
 import static org.sonatype.nexus.repository.protop.internal.ProtopFieldFactory.REMOVE_DEFAULT_FIELDS_MATCHERS;
 import static org.sonatype.nexus.repository.protop.internal.ProtopFieldFactory.rewriteTarballUrlMatcher;
 import static org.sonatype.nexus.repository.protop.internal.ProtopHandlers.projectId;
 import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.*;
+import static org.sonatype.nexus.repository.storage.AssetEntityAdapter.P_ASSET_KIND;
 import static org.sonatype.nexus.repository.view.Content.applyToAsset;
 import static org.sonatype.nexus.repository.view.Content.maintainLastModified;
 
@@ -70,6 +87,23 @@ public class ProtopGroupFacet extends GroupFacetImpl {
     @Nullable
     private Cooperation packageRootCooperation;
 
+    @Nullable
+    private ProtopPackageRootCache packageRootCache;
+
+    private int fanOutThreads;
+
+    private Time fanOutMemberTimeout;
+
+    private Time fanOutTimeout;
+
+    @Nullable
+    private ProtopGroupFanOut fanOut;
+
+    @Nullable
+    private Cache<ProtopProjectId, String> servingMembers;
+
+    private Path temporaryDirectory;
+
     @Inject
     public ProtopGroupFacet(
             @Named("${nexus.protop.mergeGroupMetadata:-true}") final boolean mergeMetadata,
@@ -95,6 +129,48 @@ public class ProtopGroupFacet extends GroupFacetImpl {
         }
     }
 
+    /**
+     * Merged package roots are served rendered from memory when recently served, see {@link ProtopPackageRootCache}.
+     */
+    @Inject
+    protected void configurePackageRootCache(final ProtopPackageRootCache packageRootCache) {
+        this.packageRootCache = packageRootCache;
+    }
+
+    /**
+     * Package roots and dist-tags are asked of the members in parallel, see {@link ProtopGroupFanOut}, zero threads
+     * asks them one after another.
+     */
+    @Inject
+    protected void configureFanOut(
+            @Named("${nexus.protop.group.fanOut.threads:-8}") final int fanOutThreads,
+            @Named("${nexus.protop.group.fanOut.memberTimeout:-30s}") final Time fanOutMemberTimeout,
+            @Named("${nexus.protop.group.fanOut.timeout:-60s}") final Time fanOutTimeout) {
+        this.fanOutThreads = fanOutThreads;
+        this.fanOutMemberTimeout = fanOutMemberTimeout;
+        this.fanOutTimeout = fanOutTimeout;
+    }
+
+    /**
+     * Merged package roots are written to temporary files in this directory before they are stored, see
+     * {@link ProtopFacetUtils#saveMergedPackageRoot(StorageTx, Repository, Path, Asset, ProtopPackageRootMerge)}.
+     */
+    @Inject
+    protected void configureTemporaryDirectory(final ApplicationDirectories applicationDirectories) {
+        this.temporaryDirectory = applicationDirectories.getTemporaryDirectory().toPath();
+    }
+
+    /**
+     * Tarball requests go to the member serving the package first, see {@link #servingMember(ProtopProjectId)}, for up
+     * to the given number of packages, zero walks the members in order for every tarball.
+     */
+    @Inject
+    protected void configureMemberAffinity(
+            @Named("${nexus.protop.group.memberAffinity.size:-10000}") final int memberAffinitySize) {
+        this.servingMembers = memberAffinitySize > 0
+                ? CacheBuilder.newBuilder().maximumSize(memberAffinitySize).build() : null;
+    }
+
     @VisibleForTesting
     void buildCooperation() {
         if (nonNull(cooperationBuilder)) {
@@ -108,6 +184,59 @@ public class ProtopGroupFacet extends GroupFacetImpl {
         buildCooperation();
     }
 
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        if (fanOutThreads > 0) {
+            this.fanOut = new ProtopGroupFanOut(getRepository().getName(), fanOutThreads, fanOutMemberTimeout,
+                    fanOutTimeout, SharedMetricRegistries.getOrCreate("nexus"));
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (nonNull(fanOut)) {
+            fanOut.shutdown();
+            fanOut = null;
+        }
+        super.doStop();
+    }
+
+    /**
+     * The parallel dispatch to the members of this group, {@code null} when members are to be asked one after another.
+     */
+    @Nullable
+    ProtopGroupFanOut getFanOut() {
+        return fanOut;
+    }
+
+    /**
+     * The member which served the latest version of the package when its package root was last merged, {@code null}
+     * when not known or no longer a member. Tarballs of the package are most likely found there.
+     */
+    @Nullable
+    Repository servingMember(final ProtopProjectId packageId) {
+        String memberName = nonNull(servingMembers) ? servingMembers.getIfPresent(packageId) : null;
+        if (isNull(memberName)) {
+            return null;
+        }
+        return members().stream().filter(member -> memberName.equals(member.getName())).findFirst().orElse(null);
+    }
+
+    /**
+     * Notes the member the latest version of the merged package root was taken from, or the first member when the
+     * package root has no latest version, see {@link #servingMember(ProtopProjectId)}.
+     */
+    private void rememberServingMember(final ProtopProjectId packageId,
+                                       final List<Repository> members,
+                                       final ProtopPackageRootMerge merge) {
+        if (nonNull(servingMembers)) {
+            String latestVersion = merge.header().child(DIST_TAGS).get(LATEST, String.class);
+            int member = nonNull(latestVersion) ? merge.memberOf(latestVersion) : -1;
+            servingMembers.put(packageId, members.get(Math.max(member, 0)).getName());
+        }
+    }
+
     /**
      * Build the protop Package Root merging all the given responses into one. This method allows {@link Cooperation} to
      * work, meaning that multiple requests to the same group request path will join in returning the same result.
@@ -121,13 +250,16 @@ public class ProtopGroupFacet extends GroupFacetImpl {
     @Nullable
     public Content buildPackageRoot(final Map<Repository, Response> responses, final Context context) throws IOException {
         if (isNull(packageRootCooperation)) {
-            return buildMergedPackageRoot(responses, context);
+            return revalidateOrBuildPackageRoot(responses, context);
         }
 
         final String requestPath = getRequestPath(context);
+        // followers are handed the leader's content, so abbreviated requests cooperate among themselves
+        final String cooperationKey = ProtopAbbreviatedPackageRoot.isRequested(context.getRequest())
+                ? requestPath + ":abbreviated" : requestPath;
 
         try {
-            return packageRootCooperation.cooperate(requestPath, failover -> {
+            return packageRootCooperation.cooperate(cooperationKey, failover -> {
 
                 if (failover) {
                     // re-check cache when failing over to new thread
@@ -137,7 +269,7 @@ public class ProtopGroupFacet extends GroupFacetImpl {
                     }
                 }
 
-                return buildMergedPackageRoot(responses, context);
+                return revalidateOrBuildPackageRoot(responses, context);
             });
         } catch (IOException e) {
             log.error("Unable to use Cooperation to merge {} for repository {}",
@@ -147,6 +279,45 @@ public class ProtopGroupFacet extends GroupFacetImpl {
         return null;
     }
 
+    @Nullable
+    private Content revalidateOrBuildPackageRoot(final Map<Repository, Response> responses, final Context context)
+            throws IOException {
+        Map<String, String> memberVersions = memberVersions(responses);
+        if (!MemberResponses.isPartial(responses) && nonNull(memberVersions) && !memberVersions.isEmpty()
+                && nonNull(revalidatePackageRootInCache(context, memberVersions))) {
+            Content content = getFromCache(responses, context);
+            if (nonNull(content)) {
+                log.debug("Members of {} did not change {}, merge skipped", getRepository().getName(),
+                        getRequestPath(context));
+                return content;
+            }
+        }
+        return buildMergedPackageRoot(responses, context);
+    }
+
+    /**
+     * Marks the cached package root fresh again if it was merged from the package roots the members responded with
+     * now, as recorded in {@link ProtopAttributes#P_MEMBER_VERSIONS}, so stale package roots are not merged again when
+     * members did not actually change. Members must be in the order they were merged in, which is their precedence.
+     *
+     * @return the package root asset if it was marked fresh, {@code null} otherwise
+     */
+    @Nullable
+    @TransactionalStoreMetadata
+    protected Asset revalidatePackageRootInCache(final Context context, final Map<String, String> memberVersions) {
+        StorageTx tx = UnitOfWork.currentTx();
+        Asset asset = findPackageRootAsset(tx, tx.findBucket(getRepository()), projectId(matcherState(context)));
+        if (isNull(asset) || !isMergedInOrderOf(asset, memberVersions)
+                || !memberVersions.equals(asset.formatAttributes().get(P_MEMBER_VERSIONS))) {
+            return null;
+        }
+        AttributesMap contentAttributes = new AttributesMap();
+        maintainCacheInfo(contentAttributes);
+        CacheInfo.applyToAsset(asset, contentAttributes.require(CacheInfo.class));
+        tx.saveAsset(asset);
+        return asset;
+    }
+
     /**
      * Get {@link Content} wrapping the protop Package root for the {@link Context} of the current request
      * to a Group Repository.
@@ -164,8 +335,7 @@ public class ProtopGroupFacet extends GroupFacetImpl {
             return null;
         }
 
-        ProtopContent protopContent = toContent(getRepository(), packageRootAsset);
-        protopContent.fieldMatchers(rewriteTarballUrlMatcher(getRepository(), packageRootAsset.name()));
+        ProtopContent protopContent = toCachedContent(context, packageRootAsset);
         protopContent.missingBlobInputStreamSupplier(
                 (missingBlobException) -> buildMergedPackageRootOnMissingBlob(responses, context, missingBlobException));
 
@@ -182,9 +352,58 @@ public class ProtopGroupFacet extends GroupFacetImpl {
             return null;
         }
 
+        ProtopContent protopContent = toCachedContent(context, packageRootAsset);
+        return !isStale(protopContent) ? protopContent : null;
+    }
+
+    /**
+     * Converts the cached package root to content, or to the abbreviated package root when the request accepts it and
+     * it was cached along.
+     */
+    private ProtopContent toCachedContent(final Context context, final Asset packageRootAsset) throws IOException {
+        if (ProtopAbbreviatedPackageRoot.isRequested(context.getRequest())) {
+            Asset abbreviatedAsset = getAbbreviatedPackageRootAssetFromCache(context);
+            if (nonNull(abbreviatedAsset)) {
+                ProtopContent protopContent = toAbbreviatedContent(getRepository(), abbreviatedAsset);
+                protopContent.fieldMatchers(rewriteTarballUrlMatcher(getRepository(), packageRootAsset.name()));
+                // the abbreviated package root is invalidated together with its package root
+                protopContent.getAttributes().set(CacheInfo.class, CacheInfo.extractFromAsset(packageRootAsset));
+                return protopContent;
+            }
+        }
         ProtopContent protopContent = toContent(getRepository(), packageRootAsset);
         protopContent.fieldMatchers(rewriteTarballUrlMatcher(getRepository(), packageRootAsset.name()));
-        return !isStale(protopContent) ? protopContent : null;
+        return nonNull(packageRootCache)
+                ? packageRootCache.rendered(getRepository(), packageRootAsset, protopContent) : protopContent;
+    }
+
+    /**
+     * Get the cached gzip package root, see {@link ProtopGzipPackageRoot}, for the {@link Context} of the current request
+     * to a Group Repository. Returns {@code null} when there is none for the base URL of the request or the package
+     * root is stale.
+     */
+    @Nullable
+    public Content getGzipFromCache(final Context context) throws IOException {
+        Content content = getGzipPackageRootFromCache(context);
+        return nonNull(content) && !isStale(content) ? content : null;
+    }
+
+    @Nullable
+    @TransactionalTouchBlob
+    protected Content getGzipPackageRootFromCache(final Context context) throws IOException {
+        checkNotNull(context);
+
+        StorageTx tx = UnitOfWork.currentTx();
+        Bucket bucket = tx.findBucket(getRepository());
+        ProtopProjectId packageId = projectId(matcherState(context));
+        Asset packageRootAsset = findPackageRootAsset(tx, bucket, packageId);
+        Asset gzipAsset = nonNull(packageRootAsset) ? findGzipPackageRootAsset(tx, bucket, packageId) : null;
+        Content content = nonNull(gzipAsset) ? toGzipContent(tx, gzipAsset) : null;
+        if (nonNull(content)) {
+            // the gzip package root is invalidated together with its package root
+            content.getAttributes().set(CacheInfo.class, CacheInfo.extractFromAsset(packageRootAsset));
+        }
+        return content;
     }
 
     @Nullable
@@ -196,6 +415,15 @@ public class ProtopGroupFacet extends GroupFacetImpl {
         return findPackageRootAsset(tx, tx.findBucket(getRepository()), projectId(matcherState(context)));
     }
 
+    @Nullable
+    @TransactionalTouchBlob
+    protected Asset getAbbreviatedPackageRootAssetFromCache(final Context context) throws IOException {
+        checkNotNull(context);
+
+        StorageTx tx = UnitOfWork.currentTx();
+        return findAbbreviatedPackageRootAsset(tx, tx.findBucket(getRepository()), projectId(matcherState(context)));
+    }
+
     @Nullable
     @VisibleForTesting
     protected Content buildMergedPackageRoot(final Map<Repository, Response> responses, final Context context)
@@ -213,44 +441,126 @@ public class ProtopGroupFacet extends GroupFacetImpl {
         List<Content> contents = responses
                 .values().stream().map(response -> (Content) response.getPayload()).collect(toList());
 
-        NestedAttributesMap result;
         ProtopProjectId packageId = projectId(matcherState(context));
 
-        if (shouldServeFirstResult(contents)) {
-            result = parseContent(contents.get(0));
-        } else {
+        if (!shouldServeFirstResult(contents)) {
             log.debug("Merging results from {} repositories", responses.size());
-
-            // we make the last package the dominant one, by reversing the list
-            reverse(contents);
-
-            result = mergeContents(contents);
         }
 
-        rewriteTarballUrl(context.getRepository().getName(), result);
-
-        return saveToCache(packageId, result);
+        // members come in order, the first one being the dominant one
+        ProtopPackageRootMerge merge = ProtopPackageRootMerge.index(contents);
+        Content content;
+        if (MemberResponses.isPartial(responses)) {
+            // versions of the members which timed out are missing, so this merge is served but never as fresh
+            log.debug("Members of {} timed out merging {}, caching it stale", getRepository().getName(), packageId);
+            content = saveToCache(packageId, merge, null, false);
+        } else {
+            rememberServingMember(packageId, new ArrayList<>(responses.keySet()), merge);
+            content = saveToCache(packageId, merge, memberVersions(responses), true);
+        }
+        if (ProtopAbbreviatedPackageRoot.isRequested(context.getRequest())) {
+            Asset abbreviatedAsset = getAbbreviatedPackageRootAssetFromCache(context);
+            if (nonNull(abbreviatedAsset)) {
+                return toAbbreviatedContent(getRepository(), abbreviatedAsset);
+            }
+        }
+        return content;
     }
 
-    protected Content saveToCache(final ProtopProjectId packageId, final NestedAttributesMap result) throws IOException {
-        Asset packageRootAsset = savePackageRootToCache(packageId, result);
+    protected Content saveToCache(final ProtopProjectId packageId,
+                                  final ProtopPackageRootMerge merge,
+                                  @Nullable final Map<String, String> memberVersions,
+                                  final boolean complete) throws IOException {
+        Asset packageRootAsset = savePackageRootToCache(packageId, merge, memberVersions, complete);
         return toContent(getRepository(), packageRootAsset).fieldMatchers(REMOVE_DEFAULT_FIELDS_MATCHERS);
     }
 
+    /**
+     * Saves the merged package root, which is stale right away unless it is {@code complete}, that is merged of the
+     * responses of all members.
+     */
     @TransactionalStoreBlob
-    protected Asset savePackageRootToCache(final ProtopProjectId packageId, final NestedAttributesMap result) throws IOException {
+    protected Asset savePackageRootToCache(final ProtopProjectId packageId,
+                                           final ProtopPackageRootMerge merge,
+                                           @Nullable final Map<String, String> memberVersions,
+                                           final boolean complete) throws IOException {
         StorageTx tx = UnitOfWork.currentTx();
 
         Asset asset = getAsset(tx, packageId);
+        ProtopPackageRootMerge delta = reusePreviousMerge(tx, asset, merge, memberVersions);
         AttributesMap contentAttributes = maintainLastModified(asset, null);
         maintainCacheInfo(contentAttributes);
         applyToAsset(asset, contentAttributes);
+        if (!complete) {
+            invalidateAsset(asset);
+        }
+        if (nonNull(memberVersions)) {
+            Map<String, List<String>> mergedVersions = new HashMap<>();
+            int member = 0;
+            for (String memberName : memberVersions.keySet()) {
+                mergedVersions.put(memberName, merge.versionsOf(member++));
+            }
+            asset.formatAttributes().set(P_MEMBER_VERSIONS, memberVersions);
+            asset.formatAttributes().set(P_MEMBER_ORDER, new ArrayList<>(memberVersions.keySet()));
+            asset.formatAttributes().set(P_MERGED_VERSIONS, mergedVersions);
+        } else {
+            asset.formatAttributes().remove(P_MEMBER_VERSIONS);
+            asset.formatAttributes().remove(P_MEMBER_ORDER);
+            asset.formatAttributes().remove(P_MERGED_VERSIONS);
+        }
 
-        savePackageRoot(tx, asset, result);
+        saveMergedPackageRoot(tx, getRepository(), temporaryDirectory, asset, delta);
 
         return asset;
     }
 
+    /**
+     * Returns the merge reusing the cached package root when exactly one member changed since it was merged, which is
+     * told by the recorded member versions, see {@link ProtopPackageRootMerge#reusing(Content, int, Collection)}. The
+     * members must be in the order they were merged in, as the previous merge holds their precedence then. Returns the
+     * merge as it is otherwise.
+     */
+    @VisibleForTesting
+    @SuppressWarnings("unchecked")
+    ProtopPackageRootMerge reusePreviousMerge(final StorageTx tx,
+                                              final Asset asset,
+                                              final ProtopPackageRootMerge merge,
+                                              @Nullable final Map<String, String> memberVersions) {
+        Object previousMemberVersions = asset.formatAttributes().get(P_MEMBER_VERSIONS);
+        Object previousMergedVersions = asset.formatAttributes().get(P_MERGED_VERSIONS);
+        if (isNull(memberVersions) || isNull(asset.blobRef()) || !(previousMemberVersions instanceof Map)
+                || !(previousMergedVersions instanceof Map) || !isMergedInOrderOf(asset, memberVersions)) {
+            return merge;
+        }
+
+        int changedMember = -1;
+        String changedMemberName = null;
+        int member = 0;
+        for (Map.Entry<String, String> memberVersion : memberVersions.entrySet()) {
+            if (!memberVersion.getValue().equals(((Map<?, ?>) previousMemberVersions).get(memberVersion.getKey()))) {
+                if (changedMember >= 0) {
+                    return merge;
+                }
+                changedMember = member;
+                changedMemberName = memberVersion.getKey();
+            }
+            member++;
+        }
+        Object previousChangedVersions = ((Map<?, ?>) previousMergedVersions).get(changedMemberName);
+        if (changedMember < 0 || !(previousChangedVersions instanceof Collection)) {
+            return merge;
+        }
+
+        Blob blob = tx.getBlob(asset.blobRef());
+        if (isNull(blob)) {
+            return merge;
+        }
+        log.debug("Only member {} of {} changed {}, reusing its previous merge", changedMemberName,
+                getRepository().getName(), asset.name());
+        return merge.reusing(toContent(asset, blob), changedMember,
+                (Collection<String>) previousChangedVersions);
+    }
+
     protected InputStream buildMergedPackageRootOnMissingBlob(final Map<Repository, Response> responses,
                                                               final Context context,
                                                               final MissingAssetBlobException e) throws IOException {
@@ -285,7 +595,7 @@ public class ProtopGroupFacet extends GroupFacetImpl {
     @AllowConcurrentEvents
     public void on(final AssetDeletedEvent deleted) {
         if (matchingEvent(deleted)) {
-            invalidatePackageRoot(deleted);
+            invalidatePackageRoot(deleted, null);
         }
     }
 
@@ -293,19 +603,22 @@ public class ProtopGroupFacet extends GroupFacetImpl {
     @Guarded(by = STARTED)
     @AllowConcurrentEvents
     public void on(final AssetUpdatedEvent updated) {
-        if (matchingEvent(updated) && hasBlobBeenUpdated(updated)) {
-            invalidatePackageRoot(updated);
+        if (matchingEvent(updated)) {
+            HashCode sha1 = updated.getAsset().getChecksum(HashAlgorithm.SHA1);
+            invalidatePackageRoot(updated, nonNull(sha1) ? sha1.toString() : null);
         }
     }
 
     @Nullable
     @Transactional(retryOn = ONeedRetryException.class, swallow = ORecordNotFoundException.class)
-    protected void doInvalidate(final ProtopProjectId packageId) {
+    protected void doInvalidate(final ProtopProjectId packageId,
+                                final String memberName,
+                                @Nullable final String memberSha1) {
         StorageTx tx = UnitOfWork.currentTx();
         Bucket bucket = tx.findBucket(getRepository());
 
         Asset asset = findPackageRootAsset(tx, bucket, packageId);
-        if (nonNull(asset) && invalidateAsset(asset)) {
+        if (nonNull(asset) && !isMergedFrom(asset, memberName, memberSha1) && invalidateAsset(asset)) {
             tx.saveAsset(asset);
         }
     }
@@ -343,7 +656,12 @@ public class ProtopGroupFacet extends GroupFacetImpl {
     }
 
     private boolean matchingEvent(final AssetEvent event) {
-        return matchesRepository(event) && isNull(event.getComponentId());
+        // abbreviated and gzip package roots and version documents change along with their package root
+        Object assetKind = event.getAsset().formatAttributes().get(P_ASSET_KIND);
+        return matchesRepository(event) && isNull(event.getComponentId())
+                && !AssetKind.PACKAGE_ROOT_ABBREVIATED.name().equals(assetKind)
+                && !AssetKind.PACKAGE_ROOT_GZIP.name().equals(assetKind)
+                && !AssetKind.PACKAGE_VERSION.name().equals(assetKind);
     }
 
     private boolean matchesRepository(final AssetEvent event) {
@@ -351,18 +669,54 @@ public class ProtopGroupFacet extends GroupFacetImpl {
         return event.isLocal() && member(event.getRepositoryName());
     }
 
-    private void invalidatePackageRoot(final AssetEvent event) {
+    private void invalidatePackageRoot(final AssetEvent event, @Nullable final String memberSha1) {
         UnitOfWork.begin(getRepository().facet(StorageFacet.class).txSupplier());
         try {
-            doInvalidate(ProtopProjectId.parse(event.getAsset().name()));
+            doInvalidate(ProtopProjectId.parse(event.getAsset().name()), event.getRepositoryName(), memberSha1);
         } finally {
             UnitOfWork.end();
         }
     }
 
-    private boolean hasBlobBeenUpdated(final AssetUpdatedEvent updated) {
-        DateTime blobUpdated = updated.getAsset().blobUpdated();
-        DateTime oneMinuteAgo = now().minusMinutes(1);
-        return isNull(blobUpdated) || blobUpdated.isAfter(oneMinuteAgo);
+    /**
+     * Returns {@code true} if the cached package root was merged from the given package root of the member, so a
+     * change to the member asset which left its blob as it was, or the replay of an event, keeps it fresh.
+     */
+    private static boolean isMergedFrom(final Asset packageRootAsset,
+                                        final String memberName,
+                                        @Nullable final String memberSha1) {
+        Object memberVersions = packageRootAsset.formatAttributes().get(P_MEMBER_VERSIONS);
+        return nonNull(memberSha1) && memberVersions instanceof Map
+                && memberSha1.equals(((Map<?, ?>) memberVersions).get(memberName));
+    }
+
+    /**
+     * Returns {@code true} if the cached package root was merged from the members of given member versions in their
+     * order, as recorded in {@link ProtopAttributes#P_MEMBER_ORDER}.
+     */
+    private static boolean isMergedInOrderOf(final Asset packageRootAsset, final Map<String, String> memberVersions) {
+        return new ArrayList<>(memberVersions.keySet()).equals(packageRootAsset.formatAttributes().get(P_MEMBER_ORDER));
+    }
+
+    /**
+     * Returns the SHA-1 of the package root each member responded with, by member name, or {@code null} if one of them
+     * is unknown, as for package roots streamed through from upstream.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> memberVersions(final Map<Repository, Response> responses) {
+        // in member order, as merges are
+        Map<String, String> memberVersions = new LinkedHashMap<>();
+        for (Map.Entry<Repository, Response> response : responses.entrySet()) {
+            Payload payload = response.getValue().getPayload();
+            Map<HashAlgorithm, HashCode> hashes = payload instanceof Content
+                    ? ((Content) payload).getAttributes().get(Content.CONTENT_HASH_CODES_MAP, Map.class) : null;
+            HashCode sha1 = nonNull(hashes) ? hashes.get(HashAlgorithm.SHA1) : null;
+            if (isNull(sha1)) {
+                return null;
+            }
+            memberVersions.put(response.getKey().getName(), sha1.toString());
+        }
+        return memberVersions;
     }
 }
@@ -0,0 +1,267 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonatype.goodies.common.Time;
+import org.sonatype.nexus.common.app.BaseUrlHolder;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.group.GroupHandler.DispatchedRepositories;
+import org.sonatype.nexus.repository.types.GroupType;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.Payload;
+import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.repository.view.ViewFacet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Dispatches a request to the members of a group in parallel, where {@code GroupHandler#getAll} asks them one after
+ * another, so a request missing the caches of several proxies waits for the slowest upstream instead of all of them.
+ * <p>
+ * Members are dispatched on a bounded pool, a member finding no idle thread is dispatched on the request thread once
+ * the others are on their way. Members being groups themselves are dispatched on the request thread too, as their
+ * dispatch tracks the repositories dispatched to in the attributes of the request, which are not safe to share
+ * between threads. A member is given the member timeout from the start of its dispatch, and no member is
+ * waited for past the overall timeout of the fan-out. A member answering late is left to finish, filling its caches
+ * for the requests to come, and is treated as absent, which is counted by the "timeouts" meter of the group. Its late
+ * response is closed once it arrives, and the responses are marked partial, so what is merged of them is not cached
+ * as if complete. Responses are returned in member order, which is the precedence of merges.
+ */
+class ProtopGroupFanOut {
+    private static final Logger log = LoggerFactory.getLogger(ProtopGroupFanOut.class);
+
+    private final String groupName;
+
+    private final long memberTimeoutNanos;
+
+    private final long timeoutNanos;
+
+    private final ThreadPoolExecutor executor;
+
+    private final Meter timeouts;
+
+    ProtopGroupFanOut(final String groupName,
+                      final int threads,
+                      final Time memberTimeout,
+                      final Time timeout,
+                      final MetricRegistry metricRegistry) {
+        this.groupName = checkNotNull(groupName);
+        checkArgument(threads > 0, "Threads must be positive");
+        this.memberTimeoutNanos = memberTimeout.toNanos();
+        this.timeoutNanos = timeout.toNanos();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("protop-group-fan-out-" + groupName + "-%d")
+                        .setDaemon(true)
+                        .build());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.timeouts = metricRegistry.meter(MetricRegistry.name(ProtopGroupFanOut.class, groupName, "timeouts"));
+    }
+
+    /**
+     * Dispatches the request of the context to the members not dispatched to yet, returning the responses of those
+     * answering in time, in member order.
+     */
+    MemberResponses dispatch(final Context context,
+                             final List<Repository> members,
+                             final DispatchedRepositories dispatched) throws Exception {
+        long start = System.nanoTime();
+        List<Repository> dispatchedMembers = new ArrayList<>(members.size());
+        List<MemberDispatch> dispatches = new ArrayList<>(members.size());
+        List<MemberDispatch> onRequestThread = new ArrayList<>();
+        for (Repository member : members) {
+            // track repositories we have dispatched to, prevent circular dispatch for nested groups
+            if (dispatched.contains(member)) {
+                log.trace("Skipping already dispatched member: {}", member);
+                continue;
+            }
+            dispatched.add(member);
+
+            MemberDispatch memberDispatch = new MemberDispatch(member, context);
+            if (member.getType() instanceof GroupType) {
+                onRequestThread.add(memberDispatch);
+            } else {
+                try {
+                    executor.execute(memberDispatch);
+                } catch (RejectedExecutionException e) {
+                    log.trace("No thread available for member {}", member);
+                    onRequestThread.add(memberDispatch);
+                }
+            }
+            dispatchedMembers.add(member);
+            dispatches.add(memberDispatch);
+        }
+        for (MemberDispatch memberDispatch : onRequestThread) {
+            log.trace("Dispatching member {} on request thread", memberDispatch.member);
+            memberDispatch.run();
+        }
+
+        long deadline = start + timeoutNanos;
+        MemberResponses responses = new MemberResponses();
+        for (int i = 0; i < dispatches.size(); i++) {
+            Repository member = dispatchedMembers.get(i);
+            Response response = await(dispatches.get(i), deadline);
+            if (response != null) {
+                log.trace("Member {} response {}", member, response.getStatus());
+                responses.put(member, response);
+            } else {
+                responses.markPartial();
+            }
+        }
+        return responses;
+    }
+
+    private Response await(final MemberDispatch memberDispatch, final long deadline) throws Exception {
+        try {
+            long memberDeadline = memberDispatch.started + memberTimeoutNanos;
+            long wait = Math.min(deadline, memberDeadline) - System.nanoTime();
+            return memberDispatch.isDone() ? memberDispatch.get() : memberDispatch.get(wait, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            timeouts.mark();
+            log.warn("Member {} of group {} did not answer in time, treating it as absent",
+                    memberDispatch.member.getName(), groupName);
+            memberDispatch.abandon();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for member " + memberDispatch.member.getName());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    long timeouts() {
+        return timeouts.getCount();
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Responses of members, in member order, which are partial when a member was left out for not answering in time.
+     */
+    static final class MemberResponses
+            extends LinkedHashMap<Repository, Response> {
+        private boolean partial;
+
+        void markPartial() {
+            partial = true;
+        }
+
+        boolean isPartial() {
+            return partial;
+        }
+
+        /**
+         * Whether given responses are partial, responses not gathered by a fan-out never are.
+         */
+        static boolean isPartial(final Map<Repository, Response> responses) {
+            return responses instanceof MemberResponses && ((MemberResponses) responses).isPartial();
+        }
+    }
+
+    /**
+     * The dispatch of the request to a member, carrying the base URL and the subject of the request thread over.
+     */
+    private static final class MemberDispatch
+            extends FutureTask<Response> {
+        private final Repository member;
+
+        private final AtomicBoolean abandoned = new AtomicBoolean();
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private volatile long started = System.nanoTime();
+
+        private MemberDispatch(final Repository member, final Context context) {
+            super(callable(member, context));
+            this.member = member;
+        }
+
+        @Override
+        public void run() {
+            started = System.nanoTime();
+            super.run();
+        }
+
+        /**
+         * Gives up on the response, which is closed as soon as it is there, as nobody else will.
+         */
+        void abandon() {
+            abandoned.set(true);
+            if (isDone()) {
+                closeLateResponse();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (abandoned.get()) {
+                closeLateResponse();
+            }
+        }
+
+        private void closeLateResponse() {
+            if (isCancelled() || !closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                Response response = get();
+                Payload payload = response != null ? response.getPayload() : null;
+                if (payload instanceof Closeable) {
+                    ((Closeable) payload).close();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | IOException e) {
+                log.debug("Late response of member {} not closed", member.getName(), e);
+            }
+        }
+
+        private static Callable<Response> callable(final Repository member, final Context context) {
+            String baseUrl = BaseUrlHolder.isSet() ? BaseUrlHolder.get() : null;
+            Callable<Response> dispatch = () -> {
+                // members dispatched on the request thread already see its base URL
+                if (baseUrl == null || BaseUrlHolder.isSet()) {
+                    return member.facet(ViewFacet.class).dispatch(context.getRequest(), context);
+                }
+                BaseUrlHolder.set(baseUrl);
+                try {
+                    return member.facet(ViewFacet.class).dispatch(context.getRequest(), context);
+                } finally {
+                    BaseUrlHolder.unset();
+                }
+            };
+            Subject subject = ThreadContext.getSubject();
+            return subject != null ? subject.associateWith(dispatch) : dispatch;
+        }
+    }
+}
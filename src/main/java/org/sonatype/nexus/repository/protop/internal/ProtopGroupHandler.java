@@ -5,10 +5,10 @@ import org.sonatype.nexus.repository.Repository;
 import org.sonatype.nexus.repository.group.GroupFacet;
 import org.sonatype.nexus.repository.group.GroupHandler;
 import org.sonatype.nexus.repository.http.HttpStatus;
+import org.sonatype.nexus.repository.protop.internal.ProtopGroupFanOut.MemberResponses;
 import org.sonatype.nexus.repository.view.Context;
 import org.sonatype.nexus.repository.view.Response;
 
-import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -20,9 +20,16 @@ public class ProtopGroupHandler extends GroupHandler {
                                                      final DispatchedRepositories dispatched,
                                                      final ProtopGroupFacet groupFacet) throws Exception {
 
-        // get all and filter for HTTP OK responses
-        Map<Repository, Response> responses = getAll(context, groupFacet.members(), dispatched);
-        Map<Repository, Response> okResponses = new LinkedHashMap<>();
+        // get all, in parallel when the group fans out, and filter for HTTP OK responses
+        ProtopGroupFanOut fanOut = groupFacet.getFanOut();
+        Map<Repository, Response> responses = fanOut != null
+                ? fanOut.dispatch(context, groupFacet.members(), dispatched)
+                : getAll(context, groupFacet.members(), dispatched);
+        // partial responses are kept marked as such, so their merge is not cached as complete
+        MemberResponses okResponses = new MemberResponses();
+        if (MemberResponses.isPartial(responses)) {
+            okResponses.markPartial();
+        }
         responses.forEach((repository, response) -> {
             if (response.getStatus().getCode() == HttpStatus.OK) {
                 okResponses.put(repository, response);
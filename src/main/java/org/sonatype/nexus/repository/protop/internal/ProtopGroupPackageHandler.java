@@ -4,7 +4,9 @@ import org.codehaus.groovy.runtime.DefaultGroovyMethods;
 import org.sonatype.nexus.repository.http.HttpStatus;
 import org.sonatype.nexus.repository.storage.MissingAssetBlobException;
 import org.sonatype.nexus.repository.storage.StorageFacet;
+import org.sonatype.nexus.repository.view.Content;
 import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.Request;
 import org.sonatype.nexus.repository.view.Response;
 import org.sonatype.nexus.repository.view.Status;
 import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher;
@@ -15,8 +17,12 @@ import javax.inject.Singleton;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Objects;
 
+import static org.apache.http.HttpHeaders.ACCEPT;
+import static org.apache.http.HttpHeaders.ACCEPT_ENCODING;
+
 /**
  * Merge metadata results from all member repositories.
  */
@@ -39,7 +45,18 @@ public class ProtopGroupPackageHandler extends ProtopGroupHandler {
         final ProtopGroupFacet groupFacet = getGroupFacet(context);
 
         // Dispatch requests to members to trigger update events and group cache invalidation when a member has changed
-        final Map responses = getResponses(context, dispatched, groupFacet);
+        final Map responses = getResponses(memberContext(context), dispatched, groupFacet);
+
+        if (ProtopGzipPackageRoot.isAccepted(context.getRequest())
+                && !ProtopAbbreviatedPackageRoot.isRequested(context.getRequest())) {
+            Content gzipContent = groupFacet.getGzipFromCache(context);
+            if (Objects.nonNull(gzipContent)) {
+                return new Response.Builder().status(Status.success(HttpStatus.OK))
+                        .payload(gzipContent)
+                        .attributes(gzipContent.getAttributes())
+                        .build();
+            }
+        }
 
         ProtopContent content = groupFacet.getFromCache(context);
 
@@ -61,6 +78,31 @@ public class ProtopGroupPackageHandler extends ProtopGroupHandler {
                 .build();
     }
 
+    /**
+     * Members are always asked for the complete, not encoded, package root, as that is what gets merged, even when this
+     * request accepts the abbreviated or gzip one.
+     */
+    private Context memberContext(final Context context) {
+        Request request = context.getRequest();
+        if (!ProtopAbbreviatedPackageRoot.isRequested(request) && !ProtopGzipPackageRoot.isAccepted(request)) {
+            return context;
+        }
+
+        Request.Builder builder = new Request.Builder()
+                .action(request.getAction())
+                .path(request.getPath())
+                .parameters(request.getParameters())
+                .attributes(request.getAttributes());
+        for (Entry<String, String> header : request.getHeaders()) {
+            if (!ACCEPT.equalsIgnoreCase(header.getKey()) && !ACCEPT_ENCODING.equalsIgnoreCase(header.getKey())) {
+                builder.header(header.getKey(), header.getValue());
+            }
+        }
+        Context memberContext = new Context(context.getRepository(), builder.build());
+        memberContext.getAttributes().backing().putAll(context.getAttributes().backing());
+        return memberContext;
+    }
+
     private StorageFacet getStorageFacet(final Context context) {
         return DefaultGroovyMethods.asType(context.getRepository()
                 .facet(StorageFacet.class), StorageFacet.class);
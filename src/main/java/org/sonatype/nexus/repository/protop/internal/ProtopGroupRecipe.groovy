@@ -4,7 +4,6 @@ import org.sonatype.nexus.repository.Facet
 import org.sonatype.nexus.repository.Format
 import org.sonatype.nexus.repository.Repository
 import org.sonatype.nexus.repository.Type
-import org.sonatype.nexus.repository.group.GroupHandler
 import org.sonatype.nexus.repository.http.HttpHandlers
 import org.sonatype.nexus.repository.protop.internal.search.ProtopSearchGroupHandler
 import org.sonatype.nexus.repository.types.GroupType
@@ -40,7 +39,7 @@ class ProtopGroupRecipe extends ProtopRecipeSupport {
     ProtopGroupDistTagsHandler distTagsHandler
 
     @Inject
-    GroupHandler tarballHandler
+    ProtopGroupTarballHandler tarballHandler
 
     @Inject
     ProtopSearchGroupHandler searchHandler
@@ -109,6 +108,7 @@ class ProtopGroupRecipe extends ProtopRecipeSupport {
         builder.route(maybeVersionedPackageMatcher(GET, HEAD)
                 .handler(timingHandler)
                 .handler(securityHandler)
+                .handler(ProtopHandlers.contentEncoding)
                 .handler(unitOfWorkHandler)
                 .handler(conditionalRequestHandler)
                 .handler(contentHeadersHandler)
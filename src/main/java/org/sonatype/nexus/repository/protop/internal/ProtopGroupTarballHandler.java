@@ -0,0 +1,44 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher;
+
+import javax.annotation.Nonnull;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import static java.util.Collections.singletonList;
+import static java.util.Objects.nonNull;
+import static org.sonatype.nexus.repository.protop.internal.ProtopHandlers.projectId;
+
+/**
+ * Asks the member serving the package of the tarball first, as noted by {@link ProtopGroupFacet} when merging its
+ * package root, so packages living in later members do not pay for misses in the members before. Falls back to asking
+ * the other members in order when the tarball is not there.
+ */
+@Named
+@Singleton
+public class ProtopGroupTarballHandler extends ProtopGroupHandler {
+
+    @Override
+    protected Response doGet(@Nonnull final Context context,
+                             @Nonnull final DispatchedRepositories dispatched) throws Exception {
+        ProtopGroupFacet groupFacet = getGroupFacet(context);
+        ProtopProjectId packageId = projectId(context.getAttributes().require(TokenMatcher.State.class));
+
+        Repository servingMember = groupFacet.servingMember(packageId);
+        if (nonNull(servingMember) && !dispatched.contains(servingMember)) {
+            Response response = getFirst(context, singletonList(servingMember), dispatched);
+            if (isValidResponse(response)) {
+                return response;
+            }
+            log.debug("Tarball of {} not in its serving member {}, asking all members of {}", packageId,
+                    servingMember.getName(), context.getRepository().getName());
+        }
+
+        // the serving member, having been dispatched to, is skipped
+        return getFirst(context, groupFacet.members(), dispatched);
+    }
+}
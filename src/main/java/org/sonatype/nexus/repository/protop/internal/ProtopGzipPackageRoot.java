@@ -0,0 +1,173 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Supplier;
+import org.sonatype.nexus.common.app.BaseUrlHolder;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.Headers;
+import org.sonatype.nexus.repository.view.Request;
+import org.sonatype.nexus.repository.view.Response;
+
+import javax.annotation.Nullable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.GZIPOutputStream;
+
+import static com.fasterxml.jackson.core.JsonGenerator.Feature.AUTO_CLOSE_TARGET;
+import static com.fasterxml.jackson.databind.SerializationFeature.FLUSH_AFTER_WRITE_VALUE;
+import static java.util.Collections.singletonList;
+import static org.apache.http.HttpHeaders.ACCEPT_ENCODING;
+import static org.apache.http.HttpHeaders.CONTENT_ENCODING;
+import static org.apache.http.HttpHeaders.VARY;
+import static org.sonatype.nexus.repository.protop.internal.ProtopFieldFactory.rewriteTarballUrlMatcher;
+
+/**
+ * Pre-compressed rendition of a package root. It is stored gzip encoded as its own asset next to the package root, with
+ * "_id" added and tarball URLs already rewritten for the repository, so clients accepting gzip are served its bytes as
+ * they are, without any JSON processing or compression on the way out.
+ * <p>
+ * Tarball URLs depend on the base URL of the request, hence the rendition is only served to requests having the base
+ * URL it was rendered for. It stays with the base URL it was first rendered for, being rendered again for that one on
+ * every save of its package root, whichever base URL the save came through, if any.
+ */
+public final class ProtopGzipPackageRoot {
+    /**
+     * Content attribute marking content which is gzip encoded, see {@link #encodingHeaders(Response)}.
+     */
+    static final String CONTENT_ENCODING_ATTRIBUTE = "protop.contentEncoding";
+
+    private static final String GZIP = "gzip";
+
+    private static final String ASSET_NAME_SUFFIX = "/-/package.json.gz";
+
+    private ProtopGzipPackageRoot() {
+        // nop
+    }
+
+    /**
+     * Returns {@code true} if the request accepts gzip encoded content.
+     */
+    public static boolean isAccepted(@Nullable final Request request) {
+        Headers headers = request != null ? request.getHeaders() : null;
+        String acceptEncoding = headers != null ? headers.get(ACCEPT_ENCODING) : null;
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : Splitter.on(',').trimResults().omitEmptyStrings().split(acceptEncoding)) {
+            List<String> parts = Splitter.on(';').trimResults().splitToList(coding);
+            if (GZIP.equalsIgnoreCase(parts.get(0))) {
+                return !parts.contains("q=0") && !parts.contains("q=0.0");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Formats the name of the gzip package root asset of a package.
+     */
+    static String assetName(final ProtopProjectId packageId) {
+        return assetName(packageId.id());
+    }
+
+    /**
+     * Formats the name of the gzip package root asset out of the name of the package root asset.
+     */
+    static String assetName(final String packageRootAssetName) {
+        return packageRootAssetName + ASSET_NAME_SUFFIX;
+    }
+
+    /**
+     * Returns {@code true} if the gzip package root asset was rendered for the base URL of the current request.
+     */
+    static boolean isServable(final Asset gzipAsset) {
+        return BaseUrlHolder.isSet()
+                && Objects.equals(BaseUrlHolder.get(), gzipAsset.formatAttributes().get(ProtopAttributes.P_BASE_URL));
+    }
+
+    /**
+     * Carries the base URL of the current request over to a background task, so package roots it saves get their gzip
+     * rendition.
+     */
+    static Runnable withBaseUrl(final Runnable task) {
+        if (!BaseUrlHolder.isSet()) {
+            return task;
+        }
+        String baseUrl = BaseUrlHolder.get();
+        return () -> {
+            BaseUrlHolder.set(baseUrl);
+            try {
+                task.run();
+            } finally {
+                BaseUrlHolder.unset();
+            }
+        };
+    }
+
+    /**
+     * Renders the serialized package root as it would be streamed out to clients through the given base URL, gzip
+     * encoded into the output stream, which is left open.
+     */
+    static void render(final String repositoryName,
+                       final String packageRootAssetName,
+                       final String baseUrl,
+                       final Supplier<InputStream> packageRoot,
+                       final OutputStream out) throws IOException {
+        String requestBaseUrl = BaseUrlHolder.isSet() ? BaseUrlHolder.get() : null;
+        // tarball URLs are rewritten against the base URL held for the current thread
+        BaseUrlHolder.set(baseUrl);
+        try (InputStream in = packageRoot.get(); GZIPOutputStream gzip = new GZIPOutputStream(nonClosing(out))) {
+            new ProtopStreamingObjectMapper(packageRootAssetName, null,
+                    singletonList(rewriteTarballUrlMatcher(repositoryName, packageRootAssetName)))
+                    .configure(FLUSH_AFTER_WRITE_VALUE, false)
+                    .disable(AUTO_CLOSE_TARGET)
+                    .readAndWrite(in, gzip);
+        } finally {
+            if (requestBaseUrl != null) {
+                BaseUrlHolder.set(requestBaseUrl);
+            } else {
+                BaseUrlHolder.unset();
+            }
+        }
+    }
+
+    private static OutputStream nonClosing(final OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    /**
+     * Marks the content as gzip encoded.
+     */
+    static Content encoded(final Content content) {
+        content.getAttributes().set(CONTENT_ENCODING_ATTRIBUTE, GZIP);
+        return content;
+    }
+
+    /**
+     * Adds the "Content-Encoding" header to responses carrying gzip encoded content. Responses carrying content are
+     * marked as varying by "Accept-Encoding" either way, so shared caches do not serve one encoding for the other.
+     */
+    static Response encodingHeaders(final Response response) {
+        if (response.getPayload() instanceof Content) {
+            if (((Content) response.getPayload()).getAttributes().contains(CONTENT_ENCODING_ATTRIBUTE)) {
+                response.getHeaders().set(CONTENT_ENCODING, GZIP);
+            }
+            response.getHeaders().set(VARY, ACCEPT_ENCODING);
+        }
+        return response;
+    }
+}
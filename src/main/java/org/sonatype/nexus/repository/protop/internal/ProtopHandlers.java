@@ -141,6 +141,17 @@ public final class ProtopHandlers {
         }
     };
 
+    /**
+     * Adds the "Content-Encoding" header to responses serving gzip encoded content, see {@link ProtopGzipPackageRoot}.
+     */
+    static Handler contentEncoding = new Handler() {
+        @Nonnull
+        @Override
+        public Response handle(@Nonnull final Context context) throws Exception {
+            return ProtopGzipPackageRoot.encodingHeaders(context.proceed());
+        }
+    };
+
     static Handler getPackage = new Handler() {
 
         @Nonnull
@@ -151,8 +162,15 @@ public final class ProtopHandlers {
             log.debug("[getPackage] repository: {} tokens: {}", repository.getName(), state.getTokens());
 
             ProtopProjectId packageId = projectId(state);
-            Content content = repository.facet(ProtopHostedFacet.class)
-                    .getPackage(packageId);
+            ProtopHostedFacet hostedFacet = repository.facet(ProtopHostedFacet.class);
+            Content content;
+            if (ProtopAbbreviatedPackageRoot.isRequested(context.getRequest())) {
+                content = hostedFacet.getAbbreviatedPackage(packageId);
+            } else if (ProtopGzipPackageRoot.isAccepted(context.getRequest())) {
+                content = hostedFacet.getGzipPackage(packageId);
+            } else {
+                content = hostedFacet.getPackage(packageId);
+            }
             if (content != null) {
                 return ProtopResponses.ok(content);
             } else {
@@ -249,6 +267,19 @@ public final class ProtopHandlers {
         }
     };
 
+    static Handler searchIndex = new Handler() {
+
+        @Nonnull
+        @Override
+        public Response handle(@Nonnull final Context context) throws Exception {
+            Repository repository = context.getRepository();
+            DateTime since = indexSince(context.getRequest().getParameters());
+            log.debug("[searchIndex] repository: {} since: {}", repository.getName(), since);
+
+            return ProtopResponses.ok(repository.facet(ProtopSearchIndexFacet.class).searchIndex(since));
+        }
+    };
+
     static Handler createToken = new Handler() {
 
         @Nonnull
@@ -1,29 +1,69 @@
 package org.sonatype.nexus.repository.protop.internal;
 
-import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import com.google.common.collect.Lists;
 import org.sonatype.nexus.common.entity.EntityId;
 import org.sonatype.nexus.repository.protop.internal.ProtopAttributes.AssetKind;
 import org.sonatype.nexus.repository.storage.*;
 import org.sonatype.nexus.repository.transaction.TransactionalDeleteBlob;
+import org.sonatype.nexus.repository.transaction.TransactionalTouchMetadata;
 import org.sonatype.nexus.transaction.UnitOfWork;
 
+import javax.annotation.Nullable;
 import javax.inject.Named;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Optional;
+import java.util.List;
 import java.util.Set;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static org.sonatype.nexus.repository.storage.AssetEntityAdapter.P_ASSET_KIND;
 
 /**
  * protop format specific hosted {@link ComponentMaintenance}.
+ * <p>
+ * Deleting a package root, a version document of a sharded package root or a tarball writes the package root, so
+ * those go through the {@link ProtopHostedFacet} holding the lock of the package, taken before their transaction.
+ * Deletes within a transaction begun by the caller, as by batch deletes, join that transaction instead.
  *
  * @since 3.0
  */
 @Named
 public class ProtopHostedComponentMaintenanceImpl
         extends DefaultComponentMaintenanceImpl {
+    @Override
+    public Set<String> deleteComponent(final EntityId componentId, final boolean deleteBlobs) {
+        checkNotNull(componentId);
+        UnitOfWork.begin(getRepository().facet(StorageFacet.class).txSupplier());
+        try {
+            List<Asset> assets = findAssetsOfComponentTx(componentId);
+            if (assets.stream().noneMatch(ProtopHostedComponentMaintenanceImpl::writesPackageRoot)) {
+                return deleteComponentTx(componentId, deleteBlobs).getAssets();
+            }
+            Set<String> deletedAssets = new HashSet<>();
+            assets.forEach(a -> deletedAssets.addAll(deleteAsset(a, deleteBlobs)));
+            return deletedAssets;
+        } finally {
+            UnitOfWork.end();
+        }
+    }
+
+    @Override
+    public Set<String> deleteAsset(final EntityId assetId, final boolean deleteBlob) {
+        checkNotNull(assetId);
+        UnitOfWork.begin(getRepository().facet(StorageFacet.class).txSupplier());
+        try {
+            Asset asset = findAssetTx(assetId);
+            if (asset == null || !writesPackageRoot(asset)) {
+                return deleteAssetTx(assetId, deleteBlob);
+            }
+            return deleteAsset(asset, deleteBlob);
+        } finally {
+            UnitOfWork.end();
+        }
+    }
+
     @Override
     @TransactionalDeleteBlob
     protected DeletionResult deleteComponentTx(final EntityId componentId, final boolean deleteBlobs) {
@@ -33,7 +73,7 @@ public class ProtopHostedComponentMaintenanceImpl
             return new DeletionResult(null, Collections.emptySet());
         }
         Set<String> deletedAssets = new HashSet<>();
-        tx.browseAssets(component).forEach(a -> deletedAssets.addAll(deleteAssetTx(a, deleteBlobs)));
+        tx.browseAssets(component).forEach(a -> deletedAssets.addAll(deleteAsset(a, deleteBlobs)));
         return new DeletionResult(component, deletedAssets);
     }
 
@@ -48,73 +88,64 @@ public class ProtopHostedComponentMaintenanceImpl
         if (asset == null) {
             return Collections.emptySet();
         }
-        return deleteAssetTx(asset, deleteBlob);
+        return deleteAsset(asset, deleteBlob);
     }
 
-    private Set<String> deleteAssetTx(final Asset asset, final boolean deleteBlob) {
-        AssetKind assetKind = AssetKind.valueOf(asset.formatAttributes().get(P_ASSET_KIND, String.class));
-        Set<String> deletedAssets = new HashSet<>();
-        try {
-            if (AssetKind.PACKAGE_ROOT == assetKind) {
-                ProtopProjectId packageId = ProtopProjectId.parse(asset.name());
-                deletedAssets.addAll(deletePackageRoot(packageId, deleteBlob));
-            } else if (AssetKind.TARBALL == assetKind) {
-                ProtopProjectId packageId = ProtopProjectId.parse(asset.name().substring(0, asset.name().indexOf("/-/")));
-                String tarballName = ProtopMetadataUtils.extractTarballName(asset.name());
-                deletedAssets.addAll(deleteTarball(packageId, tarballName, deleteBlob));
+    @Nullable
+    @TransactionalTouchMetadata
+    protected Asset findAssetTx(final EntityId assetId) {
+        StorageTx tx = UnitOfWork.currentTx();
+        return tx.findAsset(assetId, tx.findBucket(getRepository()));
+    }
 
-                EntityId componentId = asset.componentId();
-                if (componentId != null) {
-                    StorageTx tx = UnitOfWork.currentTx();
-                    Component component = tx.findComponent(componentId);
-                    if (component != null && !tx.browseAssets(component).iterator().hasNext()) {
-                        deletedAssets.addAll(deleteComponentTx(componentId, deleteBlob).getAssets());
-                    }
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    @TransactionalTouchMetadata
+    protected List<Asset> findAssetsOfComponentTx(final EntityId componentId) {
+        StorageTx tx = UnitOfWork.currentTx();
+        Component component = tx.findComponentInBucket(componentId, tx.findBucket(getRepository()));
+        if (component == null) {
+            return Collections.emptyList();
         }
+        return Lists.newArrayList(tx.browseAssets(component));
+    }
 
-        return deletedAssets;
+    private static boolean writesPackageRoot(final Asset asset) {
+        AssetKind assetKind = assetKind(asset);
+        return AssetKind.PACKAGE_ROOT == assetKind || AssetKind.PACKAGE_VERSION == assetKind
+                || AssetKind.TARBALL == assetKind;
     }
 
-    /**
-     * Deletes package and all related tarballs too.
-     */
-    private Set<String> deletePackageRoot(final ProtopProjectId packageId, final boolean deleteBlob) throws IOException {
-        return getRepository().facet(ProtopHostedFacet.class).deletePackage(packageId, null, deleteBlob);
+    private static AssetKind assetKind(final Asset asset) {
+        return AssetKind.valueOf(asset.formatAttributes().get(P_ASSET_KIND, String.class));
     }
 
     /**
-     * Deletes tarball and updates package root.
+     * Deletes depending on what it is, within the current transaction if any, or else the package root writes in their
+     * own transaction holding the lock of the package.
      */
-    private Set<String> deleteTarball(final ProtopProjectId packageId, final String tarballName, final boolean deleteBlob)
-            throws IOException {
-        final StorageTx tx = UnitOfWork.currentTx();
-        Asset packageRootAsset = ProtopFacetUtils.findPackageRootAsset(
-                tx, tx.findBucket(getRepository()), packageId
-        );
-        if (packageRootAsset == null) {
-            return Collections.emptySet();
-        }
-        NestedAttributesMap packageRoot = ProtopFacetUtils.loadPackageRoot(tx, packageRootAsset);
-        Optional<NestedAttributesMap> maybeVersion = ProtopMetadataUtils.selectVersionByTarballName(packageRoot, tarballName);
-        if (maybeVersion.isPresent()) {
-            NestedAttributesMap version = maybeVersion.get();
-            packageRoot.child(ProtopMetadataUtils.VERSIONS).remove(version.getKey());
-            if (packageRoot.child(ProtopMetadataUtils.VERSIONS).isEmpty()) {
-                return getRepository().facet(ProtopHostedFacet.class).deletePackage(packageId, null, deleteBlob);
-            } else {
-                ProtopFacetUtils.removeDistTagsFromTagsWithVersion(packageRoot, version.getKey());
-
-                packageRoot.child(ProtopMetadataUtils.TIME).remove(version.getKey());
-                ProtopMetadataUtils.maintainTime(packageRoot);
-                ProtopFacetUtils.savePackageRoot(UnitOfWork.currentTx(), packageRootAsset, packageRoot);
-                return getRepository().facet(ProtopHostedFacet.class).deleteTarball(packageId, tarballName, deleteBlob);
+    private Set<String> deleteAsset(final Asset asset, final boolean deleteBlob) {
+        AssetKind assetKind = assetKind(asset);
+        ProtopHostedFacet hostedFacet = getRepository().facet(ProtopHostedFacet.class);
+        try {
+            if (AssetKind.PACKAGE_ROOT == assetKind) {
+                // deletes all related tarballs too
+                return hostedFacet.deletePackage(ProtopProjectId.parse(asset.name()), null, deleteBlob);
+            } else if (AssetKind.TARBALL == assetKind) {
+                ProtopProjectId packageId = ProtopProjectId.parse(asset.name().substring(0, asset.name().indexOf("/-/")));
+                String tarballName = ProtopMetadataUtils.extractTarballName(asset.name());
+                return hostedFacet.deleteTarballVersion(packageId, tarballName, deleteBlob);
+            } else if (AssetKind.PACKAGE_VERSION == assetKind) {
+                // a version document of a sharded package root, deleting the version
+                ProtopProjectId packageId =
+                        ProtopProjectId.parse(ProtopShardedPackageRoot.packageRootAssetName(asset.name()));
+                return hostedFacet.deleteVersion(packageId, ProtopShardedPackageRoot.version(asset.name()), deleteBlob);
+            } else if (AssetKind.PACKAGE_ROOT_ABBREVIATED == assetKind || AssetKind.PACKAGE_ROOT_GZIP == assetKind) {
+                // it is saved again along with its package root
+                UnitOfWork.currentTx().deleteAsset(asset, deleteBlob);
+                return Collections.singleton(asset.name());
             }
-        } else {
-            return Collections.emptySet();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        return Collections.emptySet();
     }
 }
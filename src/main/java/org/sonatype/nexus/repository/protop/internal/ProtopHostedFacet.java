@@ -11,6 +11,7 @@ import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Predicate;
 
 /**
  * protop hosted facet.
@@ -25,11 +26,32 @@ public interface ProtopHostedFacet extends Facet {
     @Nullable
     Content getPackage(ProtopProjectId packageId) throws IOException;
 
+    /**
+     * Returns the abbreviated package metadata, see {@link ProtopAbbreviatedPackageRoot}, or {@code null}. Packages
+     * stored before it was maintained return the complete package metadata instead.
+     */
+    @Nullable
+    Content getAbbreviatedPackage(ProtopProjectId packageId) throws IOException;
+
+    /**
+     * Returns the gzip encoded package metadata, see {@link ProtopGzipPackageRoot}, or {@code null}. Packages without
+     * a rendition for the current base URL return the package metadata instead.
+     */
+    @Nullable
+    Content getGzipPackage(ProtopProjectId packageId) throws IOException;
+
     /**
      * Performs a "publish" of a package as sent by protop CLI.
      */
     void putPackage(ProtopProjectId packageId, @Nullable String revision, Payload payload) throws IOException;
 
+    /**
+     * Performs a batch "publish" of newline delimited publish documents, see {@link ProtopBatchPublishRequest}, of those
+     * packages the predicate permits. Publish documents of the same package are stored together, updating the package
+     * metadata once. Returns the outcome of each document, in request order.
+     */
+    NestedAttributesMap putPackages(Payload payload, Predicate<ProtopProjectId> permitted) throws IOException;
+
     /**
      * Add the package using the protop.json and <code>TempBlob</code>.
      *
@@ -73,6 +95,22 @@ public interface ProtopHostedFacet extends Facet {
      */
     Set<String> deleteTarball(ProtopProjectId packageId, String tarballName, boolean deleteBlob) throws IOException;
 
+    /**
+     * Deletes given tarball, if exists, along with its version in the package metadata, if listed, and maybe deletes
+     * the blob. The complete package is deleted when its last version is.
+     *
+     * @return name of deleted asset(s).
+     */
+    Set<String> deleteTarballVersion(ProtopProjectId packageId, String tarballName, boolean deleteBlob) throws IOException;
+
+    /**
+     * Deletes given version from the package metadata, if listed, along with its tarball, and maybe deletes the blobs.
+     * The complete package is deleted when its last version is.
+     *
+     * @return name of deleted asset(s).
+     */
+    Set<String> deleteVersion(ProtopProjectId packageId, String version, boolean deleteBlob) throws IOException;
+
     /**
      * Updates the package root.
      *
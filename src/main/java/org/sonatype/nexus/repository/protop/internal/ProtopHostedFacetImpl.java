@@ -1,7 +1,14 @@
 package org.sonatype.nexus.repository.protop.internal;
 
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Sets;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.io.IOUtils;
+import org.sonatype.goodies.common.Time;
+import org.sonatype.nexus.common.app.ApplicationDirectories;
 import org.sonatype.nexus.common.collect.AttributesMap;
 import org.sonatype.nexus.common.collect.NestedAttributesMap;
 import org.sonatype.nexus.common.entity.EntityHelper;
@@ -24,19 +31,33 @@ import javax.inject.Inject;
 import javax.inject.Named;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 import static com.google.common.base.Preconditions.*;
 import static java.util.Arrays.asList;
+import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_REV;
 import static org.sonatype.nexus.repository.protop.internal.ProtopFacetUtils.*;
 import static org.sonatype.nexus.repository.protop.internal.ProtopFieldFactory.missingRevFieldMatcher;
 import static org.sonatype.nexus.repository.protop.internal.ProtopFieldFactory.rewriteTarballUrlMatcher;
 import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.*;
 import static org.sonatype.nexus.repository.protop.internal.ProtopPackageRootMetadataUtils.createFullPackageMetadata;
 import static org.sonatype.nexus.repository.protop.internal.ProtopVersionComparator.extractAlwaysPackageVersion;
+import static org.sonatype.nexus.repository.storage.MetadataNodeEntityAdapter.P_NAME;
 
 /**
  * {@link ProtopHostedFacet} implementation.
@@ -49,17 +70,137 @@ public class ProtopHostedFacetImpl
         implements ProtopHostedFacet {
     private final ProtopRequestParser protopRequestParser;
 
+    private int shardVersionsThreshold;
+
+    private int revisionUpgradeQueueSize;
+
+    @Nullable
+    private ProtopDeduplicatingExecutor revisionUpgradeExecutor;
+
+    private int batchPublishThreads;
+
+    @Nullable
+    private ThreadPoolExecutor batchPublishExecutor;
+
+    @Nullable
+    private ProtopPackageRootCache packageRootCache;
+
+    private int packageLockStripes;
+
+    private Time packageLockTimeout;
+
+    @Nullable
+    private ProtopPackageLocks packageLocks;
+
+    private Path temporaryDirectory;
+
     @Inject
     public ProtopHostedFacetImpl(final ProtopRequestParser protopRequestParser) {
         this.protopRequestParser = checkNotNull(protopRequestParser);
     }
 
+    /**
+     * Package roots are serialized to temporary files in this directory before they are stored.
+     */
+    @Inject
+    protected void configureTemporaryDirectory(final ApplicationDirectories applicationDirectories) {
+        this.temporaryDirectory = applicationDirectories.getTemporaryDirectory().toPath();
+    }
+
+    /**
+     * Package roots having at least this many versions are stored sharded, see {@link ProtopShardedPackageRoot}, zero
+     * disables sharding. Package roots once sharded stay sharded.
+     */
+    @Inject
+    protected void configureProtopSharding(
+            @Named("${nexus.protop.hosted.sharding.versionsThreshold:-1000}") final int shardVersionsThreshold) {
+        this.shardVersionsThreshold = shardVersionsThreshold;
+    }
+
+    /**
+     * Package roots lacking a "_rev" get it written by a single background worker, at most once per package root
+     * while an upgrade is pending, see {@link #on(ProtopRevisionUpgradeRequestEvent)}.
+     */
+    @Inject
+    protected void configureProtopRevisionUpgrade(
+            @Named("${nexus.protop.hosted.revisionUpgrade.queueSize:-1000}") final int revisionUpgradeQueueSize) {
+        this.revisionUpgradeQueueSize = revisionUpgradeQueueSize;
+    }
+
+    /**
+     * Documents of a batch publish are parsed, and their tarballs decoded, on up to this many threads, zero parses them
+     * on the request thread, see {@link #putPackages(Payload, Predicate)}. As many documents again may wait for a free
+     * thread, beyond that the request thread parses them itself.
+     */
+    @Inject
+    protected void configureProtopBatchPublish(
+            @Named("${nexus.protop.hosted.batchPublish.threads:-4}") final int batchPublishThreads) {
+        this.batchPublishThreads = batchPublishThreads;
+    }
+
+    /**
+     * Package roots are served out of the shared node-local cache of rendered package roots, see
+     * {@link ProtopPackageRootCache}.
+     */
+    @Inject
+    protected void configurePackageRootCache(final ProtopPackageRootCache packageRootCache) {
+        this.packageRootCache = packageRootCache;
+    }
+
+    /**
+     * Writers of the same package root queue up on striped locks instead of retrying their transactions, see
+     * {@link ProtopPackageLocks}, zero stripes disables locking.
+     */
+    @Inject
+    protected void configureProtopPackageLocks(
+            @Named("${nexus.protop.hosted.packageLocks.stripes:-64}") final int packageLockStripes,
+            @Named("${nexus.protop.hosted.packageLocks.timeout:-60s}") final Time packageLockTimeout) {
+        this.packageLockStripes = packageLockStripes;
+        this.packageLockTimeout = packageLockTimeout;
+    }
+
     @Override
     protected void doInit(final Configuration configuration) throws Exception {
         super.doInit(configuration);
         getRepository().facet(StorageFacet.class).registerWritePolicySelector(new ProtopWritePolicySelector());
     }
 
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        if (packageLockStripes > 0) {
+            this.packageLocks = new ProtopPackageLocks(getRepository().getName(), packageLockStripes,
+                    packageLockTimeout, SharedMetricRegistries.getOrCreate("nexus"));
+        }
+        if (revisionUpgradeQueueSize > 0) {
+            this.revisionUpgradeExecutor = new ProtopDeduplicatingExecutor(
+                    "protop-revision-upgrade-" + getRepository().getName(), 1, revisionUpgradeQueueSize);
+        }
+        if (batchPublishThreads > 0) {
+            this.batchPublishExecutor = new ThreadPoolExecutor(batchPublishThreads, batchPublishThreads,
+                    60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(batchPublishThreads),
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("protop-batch-publish-" + getRepository().getName() + "-%d")
+                            .setDaemon(true)
+                            .build(),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            this.batchPublishExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (revisionUpgradeExecutor != null) {
+            revisionUpgradeExecutor.shutdown();
+            revisionUpgradeExecutor = null;
+        }
+        if (batchPublishExecutor != null) {
+            batchPublishExecutor.shutdown();
+            batchPublishExecutor = null;
+        }
+        super.doStop();
+    }
+
     @Nullable
     @Override
     @TransactionalTouchBlob
@@ -71,11 +212,44 @@ public class ProtopHostedFacetImpl
             return null;
         }
 
-        return toContent(getRepository(), packageRootAsset)
+        ProtopContent content = toContent(getRepository(), packageRootAsset)
                 .fieldMatchers(asList(
                         missingRevFieldMatcher(() -> generateNewRevId(packageRootAsset)),
                         rewriteTarballUrlMatcher(getRepository().getName(), packageId.id())))
                 .packageId(packageRootAsset.name());
+        return packageRootCache != null ? packageRootCache.rendered(getRepository(), packageRootAsset, content) : content;
+    }
+
+    @Nullable
+    @Override
+    @TransactionalTouchBlob
+    public Content getAbbreviatedPackage(final ProtopProjectId packageId) throws IOException {
+        checkNotNull(packageId);
+        StorageTx tx = UnitOfWork.currentTx();
+        Asset abbreviatedAsset = findAbbreviatedPackageRootAsset(tx, tx.findBucket(getRepository()), packageId);
+        if (abbreviatedAsset == null) {
+            return getPackage(packageId);
+        }
+
+        return toAbbreviatedContent(getRepository(), abbreviatedAsset)
+                .fieldMatchers(rewriteTarballUrlMatcher(getRepository().getName(), packageId.id()));
+    }
+
+    @Nullable
+    @Override
+    @TransactionalTouchBlob
+    public Content getGzipPackage(final ProtopProjectId packageId) throws IOException {
+        checkNotNull(packageId);
+        StorageTx tx = UnitOfWork.currentTx();
+        Asset gzipAsset = findGzipPackageRootAsset(tx, tx.findBucket(getRepository()), packageId);
+        // package roots without a rev get one generated as they are served, which the rendition can not do
+        if (gzipAsset != null && gzipAsset.formatAttributes().contains(P_REV)) {
+            Content content = toGzipContent(tx, gzipAsset);
+            if (content != null) {
+                return content;
+            }
+        }
+        return getPackage(packageId);
     }
 
     protected String generateNewRevId(final Asset packageRootAsset) {
@@ -91,19 +265,58 @@ public class ProtopHostedFacetImpl
      * For NEXUS-18094 we moved the revision number to live in the package root file so that the revision number doesn't
      * change as the database record changes (previously it used the Orient Document Version number). This method allows
      * us to avoid the need for an upgrade step by upgrading package roots without a rev as they are fetched.
+     * <p>
+     * Every read of such a package root requests the upgrade, so they are queued by asset and performed by a single
+     * background worker: requests for a package root with an upgrade already pending are dropped, as are requests while
+     * the queue is full, a later read requesting it again.
      */
     @Subscribe
     public void on(final ProtopRevisionUpgradeRequestEvent event) {
+        ProtopDeduplicatingExecutor executor = revisionUpgradeExecutor;
+        if (executor == null) {
+            upgradeRevision(event);
+            return;
+        }
+        String key = EntityHelper.id(event.getPackageRootAsset()).getValue();
+        if (!executor.submit(key, ProtopGzipPackageRoot.withBaseUrl(() -> upgradeRevision(event)))) {
+            log.debug("Revision upgrade queue full, skipping upgrade of {}", event.getPackageRootAsset().name());
+        }
+    }
+
+    private void upgradeRevision(final ProtopRevisionUpgradeRequestEvent event) {
         UnitOfWork.begin(getRepository().facet(StorageFacet.class).txSupplier());
         try {
-            upgradeRevisionOnPackageRoot(event.getPackageRootAsset(), event.getRevision());
+            withPackageLock(ProtopProjectId.parse(event.getPackageRootAsset().name()), () -> {
+                upgradeRevisionOnPackageRoot(event.getPackageRootAsset(), event.getRevision());
+                return null;
+            });
+        } catch (IOException e) {
+            log.warn("Failed to upgrade revision of {}", event.getPackageRootAsset().name(), e);
         } finally {
             UnitOfWork.end();
         }
     }
 
+    /**
+     * Performs a write of the package root holding the lock of the package, so that it commits before the next writer
+     * of the package reads the package root. Must be called outside of the transaction of the write.
+     */
+    private <T> T withPackageLock(final ProtopProjectId packageId,
+                                  final ProtopPackageLocks.IOCall<T> write) throws IOException {
+        ProtopPackageLocks locks = packageLocks;
+        return locks != null ? locks.withLock(packageId, write) : write.call();
+    }
+
+    private void packageRootWriteAttempt() {
+        ProtopPackageLocks locks = packageLocks;
+        if (locks != null) {
+            locks.attempt();
+        }
+    }
+
     @TransactionalTouchBlob
     protected void upgradeRevisionOnPackageRoot(final Asset packageRootAsset, final String revision) {
+        packageRootWriteAttempt();
         StorageTx tx = UnitOfWork.currentTx();
 
         ProtopProjectId packageId = ProtopProjectId.parse(packageRootAsset.name());
@@ -117,9 +330,12 @@ public class ProtopHostedFacetImpl
         // if there is a transaction failure and we fail to upgrade the package root with _rev
         // then the user who fetched the package root will not be able to run a delete command
         try {
-            NestedAttributesMap packageRoot = ProtopFacetUtils.loadPackageRoot(tx, asset);
+            NestedAttributesMap packageRoot = ProtopFacetUtils.loadPackageRootHeader(tx, asset);
+            if (packageRoot.contains(META_REV)) {
+                return; // upgraded by an earlier request, or updated since
+            }
             packageRoot.set(META_REV, revision);
-            savePackageRoot(UnitOfWork.currentTx(), packageRootAsset, packageRoot);
+            savePackageRootHeader(UnitOfWork.currentTx(), getRepository(), temporaryDirectory, asset, packageRoot);
         } catch (IOException e) {
             log.warn("Failed to update revision in package root. Revision '{}' was not set" +
                             " and might cause delete for that revision to fail for Asset {}",
@@ -132,7 +348,10 @@ public class ProtopHostedFacetImpl
         checkNotNull(packageId);
         checkNotNull(payload);
         try (ProtopPublishRequest request = protopRequestParser.parsePublish(getRepository(), payload)) {
-            putPublishRequest(packageId, revision, request);
+            withPackageLock(packageId, () -> {
+                putPublishRequest(packageId, revision, request);
+                return null;
+            });
         }
     }
 
@@ -154,10 +373,11 @@ public class ProtopHostedFacetImpl
                 tempBlob.getHashes().get(HashAlgorithm.SHA1).toString(),
                 null,
                 extractAlwaysPackageVersion);
+        setDistDigests(metadata.child(VERSIONS).child(version), tempBlob.getHashes());
 
         ProtopProjectId projectId = new ProtopProjectId(org, name);
 
-        return putPackage(projectId, metadata, tempBlob);
+        return withPackageLock(projectId, () -> putPackage(projectId, metadata, tempBlob));
     }
 
     @TransactionalStoreBlob
@@ -187,6 +407,73 @@ public class ProtopHostedFacetImpl
                                      final ProtopPublishRequest request) throws IOException {
         StorageTx tx = UnitOfWork.currentTx();
 
+        putAttachments(tx, packageId, request);
+
+        putProjectRoot(packageId, revision, request.getPackageRoot());
+    }
+
+    @Override
+    public NestedAttributesMap putPackages(final Payload payload,
+                                           final Predicate<ProtopProjectId> permitted) throws IOException {
+        checkNotNull(payload);
+        checkNotNull(permitted);
+        Executor executor = batchPublishExecutor != null ? batchPublishExecutor : MoreExecutors.directExecutor();
+        try (ProtopBatchPublishRequest batch = protopRequestParser.parseBatchPublish(getRepository(), payload, executor)) {
+            Map<ProtopProjectId, List<ProtopBatchPublishRequest.Item>> itemsByPackage = new LinkedHashMap<>();
+            for (ProtopBatchPublishRequest.Item item : batch.getItems()) {
+                if (item.isDone()) {
+                    continue;
+                }
+                ProtopProjectId packageId = item.getPackageId();
+                if (permitted.test(packageId)) {
+                    itemsByPackage.computeIfAbsent(packageId, id -> new ArrayList<>()).add(item);
+                } else {
+                    item.failed("Not permitted to publish package '" + packageId + "'");
+                }
+            }
+
+            for (Map.Entry<ProtopProjectId, List<ProtopBatchPublishRequest.Item>> entry : itemsByPackage.entrySet()) {
+                List<ProtopPublishRequest> requests = new ArrayList<>(entry.getValue().size());
+                for (ProtopBatchPublishRequest.Item item : entry.getValue()) {
+                    requests.add(item.getRequest());
+                }
+                try {
+                    withPackageLock(entry.getKey(), () -> {
+                        putPublishRequests(entry.getKey(), requests);
+                        return null;
+                    });
+                    entry.getValue().forEach(ProtopBatchPublishRequest.Item::published);
+                } catch (IOException | RuntimeException e) {
+                    log.debug("Batch publish of package {} failed", entry.getKey(), e);
+                    String error = String.valueOf(e.getMessage());
+                    entry.getValue().forEach(item -> item.failed(error));
+                }
+            }
+            return batch.results();
+        }
+    }
+
+    /**
+     * Stores the tarballs of all the publish requests of a package, then the package root once, with the requests
+     * overlaid in order.
+     */
+    @TransactionalStoreBlob
+    protected void putPublishRequests(final ProtopProjectId packageId,
+                                      final List<ProtopPublishRequest> requests) throws IOException {
+        StorageTx tx = UnitOfWork.currentTx();
+
+        NestedAttributesMap packageRoot = new NestedAttributesMap("packageRoot", new HashMap<>());
+        for (ProtopPublishRequest request : requests) {
+            putAttachments(tx, packageId, request);
+            ProtopMetadataUtils.overlay(packageRoot, request.getPackageRoot());
+        }
+
+        putProjectRoot(packageId, null, packageRoot);
+    }
+
+    private void putAttachments(final StorageTx tx,
+                                final ProtopProjectId packageId,
+                                final ProtopPublishRequest request) throws IOException {
         NestedAttributesMap packageRoot = request.getPackageRoot();
 
         // process attachments, if any
@@ -203,8 +490,6 @@ public class ProtopHostedFacetImpl
                 }
             }
         }
-
-        putProjectRoot(packageId, revision, packageRoot);
     }
 
     /**
@@ -214,14 +499,20 @@ public class ProtopHostedFacetImpl
     public void putProjectRoot(final ProtopProjectId projectId,
                                @Nullable final String revision,
                                final NestedAttributesMap newPackageRoot) throws IOException {
+        packageRootWriteAttempt();
         StorageTx tx = UnitOfWork.currentTx();
         Bucket bucket = tx.findBucket(getRepository());
         boolean update = false;
 
         NestedAttributesMap projectRoot = newPackageRoot;
+        NestedAttributesMap oldPackageRoot = null;
         Asset packageRootAsset = findPackageRootAsset(tx, bucket, projectId);
+        boolean sharded = packageRootAsset != null && ProtopShardedPackageRoot.isSharded(packageRootAsset);
+        Set<String> oldShardedVersions = sharded
+                ? ProtopShardedPackageRoot.shards(packageRootAsset).keySet() : Collections.emptySet();
         if (packageRootAsset != null) {
-            NestedAttributesMap oldPackageRoot = ProtopFacetUtils.loadPackageRoot(tx, packageRootAsset);
+            // sharded package roots are overlaid on their header only, so only the versions being sent get written
+            oldPackageRoot = ProtopFacetUtils.loadPackageRootHeader(tx, packageRootAsset);
 
             String rev = revision;
             if (rev == null) {
@@ -247,10 +538,52 @@ public class ProtopHostedFacetImpl
 
         updateRevision(projectRoot, packageRootAsset, createdPackageRoot);
 
-        savePackageRoot(tx, packageRootAsset, projectRoot);
+        Set<String> changedVersions;
+        if (sharded) {
+            // with a revision the full document was sent, replacing all versions; the old version documents were not
+            // loaded, those rewritten or removed are the ones that changed
+            changedVersions = new HashSet<>(
+                    saveShardedPackageRoot(tx, getRepository(), packageRootAsset, projectRoot, update));
+            changedVersions.addAll(Sets.difference(oldShardedVersions, projectRoot.child(VERSIONS).keys()));
+        } else {
+            changedVersions = update ? deprecationChanges(oldPackageRoot, projectRoot) : Collections.emptySet();
+            if (ProtopShardedPackageRoot.shouldShard(projectRoot, shardVersionsThreshold)) {
+                saveShardedPackageRoot(tx, getRepository(), packageRootAsset, projectRoot, true);
+            } else {
+                savePackageRoot(tx, getRepository(), temporaryDirectory, packageRootAsset, projectRoot);
+            }
+        }
         if (update) {
-            updateDeprecationFlags(tx, projectId, projectRoot);
+            updateDeprecationFlags(tx, projectId, projectRoot, changedVersions);
+        }
+    }
+
+    /**
+     * Returns the versions whose deprecation may differ between the old and new package root: versions present in only
+     * one of them, and versions whose "deprecated" message changed.
+     */
+    @VisibleForTesting
+    static Set<String> deprecationChanges(final NestedAttributesMap oldPackageRoot,
+                                          final NestedAttributesMap newPackageRoot) {
+        NestedAttributesMap oldVersions = oldPackageRoot.child(VERSIONS);
+        NestedAttributesMap newVersions = newPackageRoot.child(VERSIONS);
+        Set<String> changed = new HashSet<>(Sets.symmetricDifference(oldVersions.keys(), newVersions.keys()));
+        for (String version : Sets.intersection(oldVersions.keys(), newVersions.keys())) {
+            if (!Objects.equals(deprecationMessage(oldVersions, version), deprecationMessage(newVersions, version))) {
+                changed.add(version);
+            }
+        }
+        return changed;
+    }
+
+    @Nullable
+    private static String deprecationMessage(final NestedAttributesMap versions, final String version) {
+        Object versionDocument = versions.get(version);
+        if (!(versionDocument instanceof Map)) {
+            return null;
         }
+        Object deprecated = ((Map<?, ?>) versionDocument).get(DEPRECATED);
+        return deprecated instanceof String && !Strings2.isBlank((String) deprecated) ? (String) deprecated : null;
     }
 
     private void updateRevision(final NestedAttributesMap packageRoot,
@@ -280,14 +613,20 @@ public class ProtopHostedFacetImpl
     }
 
     /**
-     * Updates all the tarball components that belong to given package, updating their deprecated flags. Only changed
-     * {@link Component}s are modified and saved.
+     * Updates the tarball components of the given versions of the package, updating their deprecated flags. They are
+     * fetched in a single query, and only changed {@link Component}s are modified and saved.
      */
-    private void updateDeprecationFlags(final StorageTx tx,
-                                        final ProtopProjectId packageId,
-                                        final NestedAttributesMap packageRoot) {
+    @VisibleForTesting
+    void updateDeprecationFlags(final StorageTx tx,
+                                final ProtopProjectId packageId,
+                                final NestedAttributesMap packageRoot,
+                                final Set<String> changedVersions) {
+        if (changedVersions.isEmpty()) {
+            return;
+        }
         final NestedAttributesMap versions = packageRoot.child(ProtopMetadataUtils.VERSIONS);
-        for (Component tarballComponent : ProtopFacetUtils.findPackageTarballComponents(tx, getRepository(), packageId)) {
+        for (Component tarballComponent : ProtopFacetUtils
+                .findPackageTarballComponents(tx, getRepository(), packageId, changedVersions)) {
             // integrity check: package doc must contain the tarball version
             checkState(versions.contains(tarballComponent.version()), "Package %s lacks tarball version %s", packageId,
                     tarballComponent.version());
@@ -318,6 +657,7 @@ public class ProtopHostedFacetImpl
                 tarballName);
 
         TempBlob tempBlob = request.requireBlob(attachment.require("data", String.class));
+        setDistDigests(packageVersion, tempBlob.getHashes());
         AssetBlob assetBlob = ProtopFacetUtils.createTarballAssetBlob(tx, packageId, tarballName, tempBlob);
 
         ProtopFacet protopFacet = facet(ProtopFacet.class);
@@ -325,22 +665,28 @@ public class ProtopHostedFacetImpl
     }
 
     @Override
-    @TransactionalDeleteBlob
     public Set<String> deletePackage(final ProtopProjectId packageId, @Nullable final String revision) throws IOException {
         return deletePackage(packageId, revision, true);
     }
 
     @Override
-    @TransactionalDeleteBlob
     public Set<String> deletePackage(final ProtopProjectId packageId,
                                      @Nullable final String revision,
                                      final boolean deleteBlobs) throws IOException {
         checkNotNull(packageId);
+        return withPackageLock(packageId, () -> doDeletePackage(packageId, revision, deleteBlobs));
+    }
+
+    @TransactionalDeleteBlob
+    protected Set<String> doDeletePackage(final ProtopProjectId packageId,
+                                          @Nullable final String revision,
+                                          final boolean deleteBlobs) throws IOException {
+        packageRootWriteAttempt();
         StorageTx tx = UnitOfWork.currentTx();
         if (revision != null) {
             Asset packageRootAsset = findPackageRootAsset(tx, tx.findBucket(getRepository()), packageId);
             if (packageRootAsset != null) {
-                NestedAttributesMap oldPackageRoot = ProtopFacetUtils.loadPackageRoot(tx, packageRootAsset);
+                NestedAttributesMap oldPackageRoot = ProtopFacetUtils.loadPackageRootHeader(tx, packageRootAsset);
                 checkArgument(revision.equals(oldPackageRoot.get(META_REV, String.class)));
             }
         }
@@ -359,16 +705,23 @@ public class ProtopHostedFacetImpl
     }
 
     @Override
-    @TransactionalDeleteBlob
-    public Set<String> deleteTarball(final ProtopProjectId packageId, final String tarballName) {
+    public Set<String> deleteTarball(final ProtopProjectId packageId, final String tarballName) throws IOException {
         return deleteTarball(packageId, tarballName, true);
     }
 
     @Override
-    @TransactionalDeleteBlob
-    public Set<String> deleteTarball(final ProtopProjectId packageId, final String tarballName, final boolean deleteBlob) {
+    public Set<String> deleteTarball(final ProtopProjectId packageId,
+                                     final String tarballName,
+                                     final boolean deleteBlob) throws IOException {
         checkNotNull(packageId);
         checkNotNull(tarballName);
+        return withPackageLock(packageId, () -> doDeleteTarball(packageId, tarballName, deleteBlob));
+    }
+
+    @TransactionalDeleteBlob
+    protected Set<String> doDeleteTarball(final ProtopProjectId packageId,
+                                          final String tarballName,
+                                          final boolean deleteBlob) {
         StorageTx tx = UnitOfWork.currentTx();
         Bucket bucket = tx.findBucket(getRepository());
 
@@ -383,6 +736,98 @@ public class ProtopHostedFacetImpl
         return tx.deleteComponent(tarballComponent, deleteBlob);
     }
 
+    @Override
+    public Set<String> deleteTarballVersion(final ProtopProjectId packageId,
+                                            final String tarballName,
+                                            final boolean deleteBlob) throws IOException {
+        checkNotNull(packageId);
+        checkNotNull(tarballName);
+        return withPackageLock(packageId, () -> doDeleteTarballVersion(packageId, tarballName, deleteBlob));
+    }
+
+    @TransactionalDeleteBlob
+    protected Set<String> doDeleteTarballVersion(final ProtopProjectId packageId,
+                                                 final String tarballName,
+                                                 final boolean deleteBlob) throws IOException {
+        packageRootWriteAttempt();
+        StorageTx tx = UnitOfWork.currentTx();
+        Asset packageRootAsset = findPackageRootAsset(tx, tx.findBucket(getRepository()), packageId);
+        if (packageRootAsset == null) {
+            return doDeleteTarball(packageId, tarballName, deleteBlob);
+        }
+        NestedAttributesMap packageRoot = ProtopFacetUtils.loadPackageRoot(tx, packageRootAsset);
+        Optional<NestedAttributesMap> maybeVersion = selectVersionByTarballName(packageRoot, tarballName);
+        if (!maybeVersion.isPresent()) {
+            return doDeleteTarball(packageId, tarballName, deleteBlob);
+        }
+        return removeVersion(tx, packageRootAsset, packageRoot, packageId, maybeVersion.get().getKey(), deleteBlob);
+    }
+
+    @Override
+    public Set<String> deleteVersion(final ProtopProjectId packageId,
+                                     final String version,
+                                     final boolean deleteBlob) throws IOException {
+        checkNotNull(packageId);
+        checkNotNull(version);
+        return withPackageLock(packageId, () -> doDeleteVersion(packageId, version, deleteBlob));
+    }
+
+    @TransactionalDeleteBlob
+    protected Set<String> doDeleteVersion(final ProtopProjectId packageId,
+                                          final String version,
+                                          final boolean deleteBlob) throws IOException {
+        packageRootWriteAttempt();
+        StorageTx tx = UnitOfWork.currentTx();
+        Bucket bucket = tx.findBucket(getRepository());
+        Asset packageRootAsset = findPackageRootAsset(tx, bucket, packageId);
+        if (packageRootAsset != null) {
+            NestedAttributesMap packageRoot = ProtopFacetUtils.loadPackageRoot(tx, packageRootAsset);
+            if (packageRoot.child(VERSIONS).contains(version)) {
+                return removeVersion(tx, packageRootAsset, packageRoot, packageId, version, deleteBlob);
+            }
+        }
+
+        // a version document no longer listed by its package root
+        String versionAssetName = ProtopShardedPackageRoot.versionAssetName(packageId.id(), version);
+        Asset versionAsset = tx.findAssetWithProperty(P_NAME, versionAssetName, bucket);
+        if (versionAsset == null) {
+            return Collections.emptySet();
+        }
+        tx.deleteAsset(versionAsset, deleteBlob);
+        return Collections.singleton(versionAssetName);
+    }
+
+    /**
+     * Removes the version from the package root and deletes its tarball, or deletes the complete package when it was
+     * its last version.
+     */
+    private Set<String> removeVersion(final StorageTx tx,
+                                      final Asset packageRootAsset,
+                                      final NestedAttributesMap packageRoot,
+                                      final ProtopProjectId packageId,
+                                      final String version,
+                                      final boolean deleteBlob) throws IOException {
+        String tarballUrl = packageRoot.child(VERSIONS).child(version).child(DIST).get(TARBALL, String.class);
+        packageRoot.child(VERSIONS).remove(version);
+        if (packageRoot.child(VERSIONS).isEmpty()) {
+            return ProtopFacetUtils.deletePackageRoot(tx, getRepository(), packageId, deleteBlob);
+        }
+        ProtopFacetUtils.removeDistTagsFromTagsWithVersion(packageRoot, version);
+        packageRoot.child(TIME).remove(version);
+        maintainTime(packageRoot);
+
+        Set<String> deletedAssets = new HashSet<>();
+        if (ProtopShardedPackageRoot.isSharded(packageRootAsset)) {
+            // the document of the version is deleted along with saving the package root
+            deletedAssets.add(ProtopShardedPackageRoot.versionAssetName(packageRootAsset.name(), version));
+        }
+        ProtopFacetUtils.savePackageRoot(tx, getRepository(), temporaryDirectory, packageRootAsset, packageRoot);
+        if (tarballUrl != null) {
+            deletedAssets.addAll(doDeleteTarball(packageId, extractTarballName(tarballUrl), deleteBlob));
+        }
+        return deletedAssets;
+    }
+
     @Nullable
     @Override
     @TransactionalTouchBlob
@@ -396,8 +841,7 @@ public class ProtopHostedFacetImpl
         }
 
         try {
-            final NestedAttributesMap packageRoot = ProtopFacetUtils.loadPackageRoot(tx, packageRootAsset);
-            final NestedAttributesMap distTags = packageRoot.child(DIST_TAGS);
+            final NestedAttributesMap distTags = ProtopFacetUtils.loadDistTags(tx, packageRootAsset);
             return ProtopFacetUtils.distTagsToContent(distTags);
         } catch (IOException e) {
             log.info("Unable to obtain dist-tags for {}", projectId.id(), e);
@@ -416,11 +860,15 @@ public class ProtopHostedFacetImpl
         }
 
         String version = parseVersionToTag(packageId, tag, payload);
-        doPutDistTags(packageId, tag, version);
+        withPackageLock(packageId, () -> {
+            doPutDistTags(packageId, tag, version);
+            return null;
+        });
     }
 
     @TransactionalStoreMetadata
     protected void doPutDistTags(final ProtopProjectId packageId, final String tag, final String version) throws IOException {
+        packageRootWriteAttempt();
         StorageTx tx = UnitOfWork.currentTx();
         Asset packageRootAsset = findPackageRootAsset(tx, tx.findBucket(getRepository()), packageId);
         if (packageRootAsset == null) {
@@ -434,13 +882,12 @@ public class ProtopHostedFacetImpl
         }
 
         try {
-            ProtopFacetUtils.updateDistTags(tx, packageRootAsset, tag, version);
+            ProtopFacetUtils.updateDistTags(tx, getRepository(), temporaryDirectory, packageRootAsset, tag, version);
         } catch (IOException e) {
             log.error("Unable to update dist-tags for {}", packageId.id(), e);
         }
     }
 
-    @TransactionalStoreMetadata
     @Override
     public void deleteDistTags(final ProtopProjectId packageId, final String tag, final Payload payload) throws IOException {
         checkNotNull(packageId);
@@ -452,6 +899,15 @@ public class ProtopHostedFacetImpl
             throw new IOException("Unable to delete latest");
         }
 
+        withPackageLock(packageId, () -> {
+            doDeleteDistTags(packageId, tag);
+            return null;
+        });
+    }
+
+    @TransactionalStoreMetadata
+    protected void doDeleteDistTags(final ProtopProjectId packageId, final String tag) {
+        packageRootWriteAttempt();
         StorageTx tx = UnitOfWork.currentTx();
         Asset packageRootAsset = findPackageRootAsset(tx, tx.findBucket(getRepository()), packageId);
         if (packageRootAsset == null) {
@@ -459,7 +915,7 @@ public class ProtopHostedFacetImpl
         }
 
         try {
-            ProtopFacetUtils.deleteDistTags(tx, packageRootAsset, tag);
+            ProtopFacetUtils.deleteDistTags(tx, getRepository(), temporaryDirectory, packageRootAsset, tag);
         } catch (IOException e) {
             log.info("Unable to obtain dist-tags for {}", packageId.id(), e);
         }
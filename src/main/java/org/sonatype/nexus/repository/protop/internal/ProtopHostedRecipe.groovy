@@ -41,12 +41,18 @@ class ProtopHostedRecipe extends ProtopRecipeSupport {
     @Inject
     Provider<ProtopSearchFacetHosted> protopSearchFacet
 
+    @Inject
+    Provider<ProtopSearchIndexFacetHosted> protopSearchIndexFacet
+
     @Inject
     ProtopWhoamiHandler protopWhoamiHandler
 
     @Inject
     ProtopPingHandler pingHandler
 
+    @Inject
+    ProtopBatchPublishHandler batchPublishHandler
+
     @Inject
     ProtopHostedRecipe(@Named(HostedType.NAME) final Type type,
                        @Named(ProtopFormat.NAME) final Format format) {
@@ -65,6 +71,7 @@ class ProtopHostedRecipe extends ProtopRecipeSupport {
         repository.attach(protopHostedFacet.get())
         repository.attach(protopHostedComponentMaintenanceProvider.get())
         repository.attach(protopSearchFacet.get())
+        repository.attach(protopSearchIndexFacet.get())
     }
 
     /**
@@ -77,17 +84,17 @@ class ProtopHostedRecipe extends ProtopRecipeSupport {
 
         createUserRoutes(builder)
 
-//        // GET /-/all (protop search)
-//        builder.route(searchIndexMatcher()
-//                .handler(timingHandler)
-//                .handler(securityHandler)
-//                .handler(ProtopHandlers.protopErrorHandler)
-//                .handler(conditionalRequestHandler)
-//                .handler(contentHeadersHandler)
-//                .handler(unitOfWorkHandler)
-//                .handler(lastDownloadedHandler)
-//                .handler(ProtopHandlers.searchIndex)
-//                .create())
+        // GET /-/all (protop search)
+        builder.route(searchIndexMatcher()
+                .handler(timingHandler)
+                .handler(securityHandler)
+                .handler(ProtopHandlers.protopErrorHandler)
+                .handler(conditionalRequestHandler)
+                .handler(contentHeadersHandler)
+                .handler(unitOfWorkHandler)
+                .handler(lastDownloadedHandler)
+                .handler(ProtopHandlers.searchIndex)
+                .create())
 
         // GET /-/search (protop search)
         builder.route(searchMatcher()
@@ -113,11 +120,22 @@ class ProtopHostedRecipe extends ProtopRecipeSupport {
                 .handler(pingHandler)
                 .create())
 
+        // POST /-/batch-publish
+        builder.route(batchPublishMatcher()
+                .handler(timingHandler)
+                .handler(securityHandler)
+                .handler(ProtopHandlers.protopErrorHandler)
+                .handler(contentHeadersHandler)
+                .handler(unitOfWorkHandler)
+                .handler(batchPublishHandler)
+                .create())
+
         // GET /packageOrg/packageName (protop install)
         builder.route(maybeVersionedPackageMatcher(GET, HEAD)
                 .handler(timingHandler)
                 .handler(securityHandler)
                 .handler(ProtopHandlers.protopErrorHandler)
+                .handler(ProtopHandlers.contentEncoding)
                 .handler(conditionalRequestHandler)
                 .handler(contentHeadersHandler)
                 .handler(unitOfWorkHandler)
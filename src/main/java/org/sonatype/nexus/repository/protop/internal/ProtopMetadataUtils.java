@@ -3,6 +3,7 @@ package org.sonatype.nexus.repository.protop.internal;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormatter;
@@ -11,18 +12,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonatype.nexus.common.app.BaseUrlHolder;
 import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.common.hash.HashAlgorithm;
 import org.sonatype.nexus.repository.view.Content;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Base64;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 
 import static com.google.common.collect.Lists.newArrayList;
+import static org.sonatype.nexus.common.hash.HashAlgorithm.SHA1;
+import static org.sonatype.nexus.common.hash.HashAlgorithm.SHA512;
 import static org.sonatype.nexus.repository.protop.internal.ProtopVersionComparator.versionComparator;
 
 /**
@@ -65,6 +70,8 @@ public final class ProtopMetadataUtils {
 
     static final String TARBALL = "tarball";
 
+    static final String INTEGRITY = "integrity";
+
     static final String META_ID = "_id";
 
     static final String META_REV = "_rev";
@@ -140,6 +147,14 @@ public final class ProtopMetadataUtils {
      * Maintains the time fields of protop package root. Sets created time if it doesn't exist, updates the modified time.
      */
     static DateTime maintainTime(final NestedAttributesMap packageRoot) {
+        return maintainTime(packageRoot, packageRoot.child(VERSIONS).keys());
+    }
+
+    /**
+     * Same as {@link #maintainTime(NestedAttributesMap)} for a package root whose versions are not part of it, as when
+     * they are streamed in after its other fields.
+     */
+    static DateTime maintainTime(final NestedAttributesMap packageRoot, final Iterable<String> versions) {
         final NestedAttributesMap time = packageRoot.child(TIME);
         final DateTime now = DateTime.now();
         final String nowString = PROTOP_TIMESTAMP_FORMAT.print(now);
@@ -147,7 +162,7 @@ public final class ProtopMetadataUtils {
             time.set(CREATED, nowString);
         }
         time.set(MODIFIED, nowString);
-        for (String version : packageRoot.child(VERSIONS).keys()) {
+        for (String version : versions) {
             if (!time.contains(version)) {
                 time.set(version, nowString);
             }
@@ -176,25 +191,50 @@ public final class ProtopMetadataUtils {
             NestedAttributesMap versions = packageRoot.child(VERSIONS);
             for (String v : versions.keys()) {
                 if (versions.get(v) instanceof Map) { // only if not incomplete
-                    NestedAttributesMap version = versions.child(v);
-                    NestedAttributesMap dist = version.child(DIST);
-                    String tarballName = extractTarballName(dist.get(TARBALL, String.class));
-                    dist.set(
-                            TARBALL,
-                            String.format(
-                                    "%s/repository/%s/%s/%s/-/%s",
-                                    BaseUrlHolder.get(),
-                                    repositoryName,
-                                    version.get(ORG),
-                                    version.get(NAME),
-                                    tarballName
-                            )
-                    );
+                    rewriteVersionTarballUrl(repositoryName, versions.child(v));
                 }
             }
         }
     }
 
+    /**
+     * Rewrites the dist/tarball entry URL of a single version document, see
+     * {@link #rewriteTarballUrl(String, NestedAttributesMap)}.
+     */
+    static void rewriteVersionTarballUrl(final String repositoryName, final NestedAttributesMap version) {
+        if (BaseUrlHolder.isSet()) {
+            NestedAttributesMap dist = version.child(DIST);
+            String tarballName = extractTarballName(dist.get(TARBALL, String.class));
+            dist.set(
+                    TARBALL,
+                    String.format(
+                            "%s/repository/%s/%s/%s/-/%s",
+                            BaseUrlHolder.get(),
+                            repositoryName,
+                            version.get(ORG),
+                            version.get(NAME),
+                            tarballName
+                    )
+            );
+        }
+    }
+
+    /**
+     * Writes the digests of a tarball, as computed while it was received, into the dist entry of its version: the SHA-1
+     * "shasum" and the SHA-512 "integrity". Digests that were not computed are left as they are.
+     */
+    static void setDistDigests(final NestedAttributesMap version, final Map<HashAlgorithm, HashCode> hashes) {
+        NestedAttributesMap dist = version.child(DIST);
+        HashCode sha1 = hashes.get(SHA1);
+        if (sha1 != null) {
+            dist.set(ProtopAttributes.P_SHASUM, sha1.toString());
+        }
+        HashCode sha512 = hashes.get(SHA512);
+        if (sha512 != null) {
+            dist.set(INTEGRITY, "sha512-" + Base64.getEncoder().encodeToString(sha512.asBytes()));
+        }
+    }
+
     /**
      * Rewrites dist/tarball entry URLs to point back to this Nexus instance and given repository.
      *
@@ -0,0 +1,120 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.Striped;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonatype.goodies.common.Time;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Striped locks serializing the writers of a package root within a repository, so concurrent publishes, unpublishes
+ * and dist-tag edits of the same package queue up instead of failing each other's transactions and retrying them,
+ * parse and serialize included. Writers of packages on different stripes proceed in parallel.
+ * <p>
+ * A writer waiting longer than the timeout proceeds unlocked, relying on transaction retries as before, which is
+ * logged and metered. Time spent waiting for locks and transaction retries of locked writers are published as metrics
+ * too, named after the repository.
+ */
+class ProtopPackageLocks {
+    private static final Logger log = LoggerFactory.getLogger(ProtopPackageLocks.class);
+
+    /**
+     * An operation performed while holding the lock of a package.
+     */
+    @FunctionalInterface
+    interface IOCall<T> {
+        T call() throws IOException;
+    }
+
+    private final Striped<Lock> locks;
+
+    private final long timeoutMillis;
+
+    private final Timer lockWait;
+
+    private final Counter retries;
+
+    private final Meter unlocked;
+
+    private final ThreadLocal<int[]> attempts = new ThreadLocal<>();
+
+    ProtopPackageLocks(final String repositoryName,
+                       final int stripes,
+                       final Time timeout,
+                       final MetricRegistry metricRegistry) {
+        checkNotNull(repositoryName);
+        checkArgument(stripes > 0, "Stripes must be positive");
+        this.locks = Striped.lock(stripes);
+        this.timeoutMillis = timeout.toMillis();
+        this.lockWait = metricRegistry.timer(MetricRegistry.name(ProtopPackageLocks.class, repositoryName, "wait"));
+        this.retries = metricRegistry.counter(MetricRegistry.name(ProtopPackageLocks.class, repositoryName, "retries"));
+        this.unlocked = metricRegistry.meter(MetricRegistry.name(ProtopPackageLocks.class, repositoryName, "unlocked"));
+    }
+
+    /**
+     * Performs the operation holding the lock of the package.
+     */
+    <T> T withLock(final ProtopProjectId packageId, final IOCall<T> operation) throws IOException {
+        Lock lock = locks.get(packageId.id());
+        boolean locked;
+        try (Timer.Context ignored = lockWait.time()) {
+            locked = lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for lock of package " + packageId);
+        }
+        if (!locked) {
+            unlocked.mark();
+            log.warn("Timed out waiting for lock of package {}, proceeding unlocked", packageId);
+        }
+
+        int[] outerAttempts = attempts.get();
+        int[] operationAttempts = new int[1];
+        attempts.set(operationAttempts);
+        try {
+            return operation.call();
+        } finally {
+            if (outerAttempts != null) {
+                attempts.set(outerAttempts);
+            } else {
+                attempts.remove();
+            }
+            if (operationAttempts[0] > 1) {
+                retries.inc(operationAttempts[0] - 1L);
+            }
+            if (locked) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Records an attempt of the transaction of the operation being performed on this thread, to be called at the start
+     * of the transactional method, so that its retries are counted.
+     */
+    void attempt() {
+        int[] operationAttempts = attempts.get();
+        if (operationAttempts != null) {
+            operationAttempts[0]++;
+        }
+    }
+
+    long retries() {
+        return retries.getCount();
+    }
+
+    long unlocked() {
+        return unlocked.getCount();
+    }
+}
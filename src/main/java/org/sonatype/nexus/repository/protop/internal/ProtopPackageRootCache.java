@@ -0,0 +1,165 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.common.app.BaseUrlHolder;
+import org.sonatype.nexus.common.entity.EntityHelper;
+import org.sonatype.nexus.common.event.EventAware;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.storage.AssetDeletedEvent;
+import org.sonatype.nexus.repository.storage.AssetEvent;
+import org.sonatype.nexus.repository.storage.AssetUpdatedEvent;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.Objects;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Node-local cache of package roots rendered as they are served, that is with "_id" added and tarball URLs rewritten,
+ * shared by all protop repositories. Serving a cached package root needs no blob read and no JSON processing.
+ * <p>
+ * Entries are bounded by their total size in bytes, least recently used ones being evicted first. Each package root
+ * has a single entry, valid for the version of its asset and the base URL it was rendered for, so a package root saved
+ * since, or requested through another base URL, is rendered again. Entries are also dropped as their asset is updated
+ * or deleted, to free the memory early. Package roots larger than an entry may be, sharded ones included, are always
+ * streamed.
+ */
+@Named
+@Singleton
+public class ProtopPackageRootCache
+        extends ComponentSupport
+        implements EventAware {
+    private final long maxEntryBytes;
+
+    @Nullable
+    private final Cache<Key, Rendered> cache;
+
+    @Inject
+    public ProtopPackageRootCache(
+            @Named("${nexus.protop.packageRootCache.maxBytes:-67108864}") final long maxBytes,
+            @Named("${nexus.protop.packageRootCache.maxEntryBytes:-2097152}") final long maxEntryBytes) {
+        this.maxEntryBytes = maxEntryBytes;
+        this.cache = maxBytes > 0 && maxEntryBytes > 0
+                ? CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Key key, Rendered rendered) -> rendered.bytes.length)
+                .build()
+                : null;
+    }
+
+    /**
+     * Returns the content of the package root asset with its payload replaced by the rendered package root, taken from
+     * the cache or rendered and cached now. Returns the content as it is when the package root is not to be cached,
+     * when no base URL is set or when its blob is missing.
+     */
+    ProtopContent rendered(final Repository repository,
+                           final Asset packageRootAsset,
+                           final ProtopContent content) throws IOException {
+        checkNotNull(repository);
+        checkNotNull(packageRootAsset);
+        checkNotNull(content);
+        if (isNull(cache) || !BaseUrlHolder.isSet() || !isCacheable(packageRootAsset)) {
+            return content;
+        }
+
+        Key key = new Key(repository.getName(), packageRootAsset.name());
+        String version = EntityHelper.version(packageRootAsset).getValue();
+        String baseUrl = BaseUrlHolder.get();
+        Rendered rendered = cache.getIfPresent(key);
+        if (isNull(rendered) || !rendered.version.equals(version) || !rendered.baseUrl.equals(baseUrl)) {
+            byte[] bytes = ((ProtopStreamPayload) content.getPayload()).render();
+            if (isNull(bytes)) {
+                return content;
+            }
+            rendered = new Rendered(version, baseUrl, bytes);
+            cache.put(key, rendered);
+        }
+
+        ProtopContent renderedContent = new ProtopContent(
+                ProtopStreamPayload.rendered(rendered.bytes, content.getContentType()));
+        renderedContent.getAttributes().backing().putAll(content.getAttributes().backing());
+        return renderedContent;
+    }
+
+    private boolean isCacheable(final Asset packageRootAsset) {
+        Long size = packageRootAsset.size();
+        return size != null && size <= maxEntryBytes && !ProtopShardedPackageRoot.isSharded(packageRootAsset);
+    }
+
+    @VisibleForTesting
+    long size() {
+        return isNull(cache) ? 0 : cache.size();
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final AssetDeletedEvent deleted) {
+        invalidate(deleted);
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final AssetUpdatedEvent updated) {
+        invalidate(updated);
+    }
+
+    private void invalidate(final AssetEvent event) {
+        if (nonNull(cache)) {
+            cache.invalidate(new Key(event.getRepositoryName(), event.getAsset().name()));
+        }
+    }
+
+    private static final class Key {
+        private final String repositoryName;
+
+        private final String assetName;
+
+        private Key(final String repositoryName, final String assetName) {
+            this.repositoryName = repositoryName;
+            this.assetName = assetName;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return repositoryName.equals(key.repositoryName) && assetName.equals(key.assetName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(repositoryName, assetName);
+        }
+    }
+
+    private static final class Rendered {
+        private final String version;
+
+        private final String baseUrl;
+
+        private final byte[] bytes;
+
+        private Rendered(final String version, final String baseUrl, final byte[] bytes) {
+            this.version = version;
+            this.baseUrl = baseUrl;
+            this.bytes = bytes;
+        }
+    }
+}
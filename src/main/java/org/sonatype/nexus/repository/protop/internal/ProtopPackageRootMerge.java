@@ -0,0 +1,343 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.repository.view.Content;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.Collections.emptySet;
+import static java.util.Objects.nonNull;
+import static org.sonatype.nexus.repository.protop.internal.ProtopJsonUtils.mapper;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.DIST_TAGS;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.LATEST;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.META_ID;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.META_REV;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.VERSIONS;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.overlay;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.rewriteVersionTarballUrl;
+import static org.sonatype.nexus.repository.protop.internal.ProtopVersionComparator.versionComparator;
+
+/**
+ * Merge of the package roots of group members which streams their version documents into the merged package root,
+ * where {@link ProtopMergeObjectMapper} deserializes all members into a single map first. The outcome is the same: the
+ * first member prevails, versions are taken whole from the first member having them, other objects are overlaid, the
+ * "dist-tags/latest" is the latest of the members and "_id" and "_rev" are dropped.
+ * <p>
+ * Members are read twice. The first pass, {@link #index(List)}, merges the header of the members, that is everything
+ * but their versions, in memory, and notes which member each version is taken from. The second pass,
+ * {@link #write(String, OutputStream, OutputStream)}, writes the header and then copies the versions over one document
+ * at a time, so memory does not grow with the number of versions of the package nor with the number of members.
+ * <p>
+ * When only one member changed since the previous merge, {@link #reusing(Content, int, Collection)} copies the versions
+ * the change does not affect from the previous merged package root, so the other members are read for their headers
+ * only. This saves re-reading the unchanged members, not work: every member is still tokenized by the first pass, and
+ * as the merged package root is a single document, all of its versions are still written out.
+ */
+final class ProtopPackageRootMerge {
+    private final List<Content> members;
+
+    private final NestedAttributesMap header;
+
+    private final Map<String, Integer> versionMembers;
+
+    @Nullable
+    private final Content previous;
+
+    private final int changedMember;
+
+    private final Set<String> previousChangedVersions;
+
+    private ProtopPackageRootMerge(final List<Content> members,
+                                   final NestedAttributesMap header,
+                                   final Map<String, Integer> versionMembers,
+                                   @Nullable final Content previous,
+                                   final int changedMember,
+                                   final Set<String> previousChangedVersions) {
+        this.members = members;
+        this.header = header;
+        this.versionMembers = versionMembers;
+        this.previous = previous;
+        this.changedMember = changedMember;
+        this.previousChangedVersions = previousChangedVersions;
+    }
+
+    /**
+     * Reads the headers of the package roots of the members, given in member order, and merges them. The members are
+     * read again by {@link #write(String, OutputStream, OutputStream)}, hence their contents must be re-readable.
+     */
+    static ProtopPackageRootMerge index(final List<Content> members) throws IOException {
+        checkNotNull(members);
+        checkArgument(!members.isEmpty(), "Nothing to merge");
+
+        Map<String, Object> header = new LinkedHashMap<>();
+        Map<String, Integer> versionMembers = new LinkedHashMap<>();
+        String latestVersion = null;
+        for (int i = 0; i < members.size(); i++) {
+            Map<String, Object> memberHeader = readHeader(members.get(i), i, versionMembers);
+            String memberLatestVersion = latestVersion(memberHeader);
+            if (nonNull(memberLatestVersion) && (latestVersion == null ||
+                    versionComparator.compare(memberLatestVersion, latestVersion) > 0)) {
+                latestVersion = memberLatestVersion;
+            }
+            overlayHeader(header, memberHeader);
+        }
+
+        NestedAttributesMap merged = new NestedAttributesMap("packageRoot", header);
+        // note that latestVersion might be null leaving an empty dist-tags in the json output
+        merged.child(DIST_TAGS).set(LATEST, latestVersion);
+        merged.remove(META_ID);
+        merged.remove(META_REV);
+        return new ProtopPackageRootMerge(new ArrayList<>(members), merged, versionMembers, null, -1, emptySet());
+    }
+
+    /**
+     * Returns this merge taking the versions which neither the changed member has now nor it had in the previous merge
+     * from the previous merged package root, as they were taken from the same members then. Only the versions of the
+     * changed member, and the versions it no longer has which were taken from it, are read from the members.
+     *
+     * @param previous                the previous merged package root, must be re-readable
+     * @param changedMember           the index of the only member which changed since the previous merge
+     * @param previousChangedVersions the versions the previous merge took from the changed member
+     */
+    ProtopPackageRootMerge reusing(final Content previous,
+                                   final int changedMember,
+                                   final Collection<String> previousChangedVersions) {
+        checkNotNull(previous);
+        checkArgument(changedMember >= 0 && changedMember < members.size(), "No such member: %s", changedMember);
+        return new ProtopPackageRootMerge(members, header, versionMembers, previous, changedMember,
+                new HashSet<>(previousChangedVersions));
+    }
+
+    /**
+     * The merged package root without its versions. Changes to it are written out by
+     * {@link #write(String, OutputStream, OutputStream)}.
+     */
+    NestedAttributesMap header() {
+        return header;
+    }
+
+    /**
+     * The versions of the merged package root.
+     */
+    Set<String> versions() {
+        return versionMembers.keySet();
+    }
+
+    /**
+     * The index of the member the version is taken from, -1 if no member has it.
+     */
+    int memberOf(final String version) {
+        return versionMembers.getOrDefault(version, -1);
+    }
+
+    /**
+     * The versions taken from the member at the given index.
+     */
+    List<String> versionsOf(final int member) {
+        List<String> versions = new ArrayList<>();
+        for (Entry<String, Integer> versionMember : versionMembers.entrySet()) {
+            if (versionMember.getValue() == member) {
+                versions.add(versionMember.getKey());
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Writes the merged package root, with its tarball URLs rewritten to point at the repository, and optionally its
+     * abbreviated package root, see {@link ProtopAbbreviatedPackageRoot}. The streams are left open.
+     */
+    void write(final String repositoryName,
+               final OutputStream out,
+               @Nullable final OutputStream abbreviatedOut) throws IOException {
+        JsonGenerator generator = mapper.getFactory().createGenerator(out);
+        JsonGenerator abbreviatedGenerator = nonNull(abbreviatedOut)
+                ? mapper.getFactory().createGenerator(abbreviatedOut) : null;
+
+        writeHeader(generator, header);
+        if (nonNull(abbreviatedGenerator)) {
+            writeHeader(abbreviatedGenerator, ProtopAbbreviatedPackageRoot.abbreviateHeader(header));
+        }
+
+        Set<String> written = new HashSet<>();
+        if (nonNull(previous)) {
+            // the tarball URLs of the previous merge point at the repository already
+            copyVersions(previous, this::isUnchanged, null, written, generator, abbreviatedGenerator);
+        }
+        Set<Integer> unwrittenMembers = new HashSet<>();
+        for (Entry<String, Integer> versionMember : versionMembers.entrySet()) {
+            if (!written.contains(versionMember.getKey())) {
+                unwrittenMembers.add(versionMember.getValue());
+            }
+        }
+        for (int i = 0; i < members.size(); i++) {
+            if (unwrittenMembers.contains(i)) {
+                Integer member = i;
+                copyVersions(members.get(i), version -> member.equals(versionMembers.get(version)), repositoryName,
+                        written, generator, abbreviatedGenerator);
+            }
+        }
+
+        generator.writeEndObject();
+        generator.writeEndObject();
+        generator.close();
+        if (nonNull(abbreviatedGenerator)) {
+            abbreviatedGenerator.writeEndObject();
+            abbreviatedGenerator.writeEndObject();
+            abbreviatedGenerator.close();
+        }
+    }
+
+    /**
+     * Writes the fields of the header and opens the versions object.
+     */
+    private static void writeHeader(final JsonGenerator generator,
+                                    final NestedAttributesMap header) throws IOException {
+        generator.writeStartObject();
+        for (Entry<String, Object> field : header.backing().entrySet()) {
+            if (!VERSIONS.equals(field.getKey())) {
+                generator.writeFieldName(field.getKey());
+                generator.writeObject(field.getValue());
+            }
+        }
+        generator.writeFieldName(VERSIONS);
+        generator.writeStartObject();
+    }
+
+    /**
+     * Whether the version is taken from the same member as in the previous merge, with the same document.
+     */
+    private boolean isUnchanged(final String version) {
+        Integer versionMember = versionMembers.get(version);
+        return nonNull(versionMember) && versionMember != changedMember && !previousChangedVersions.contains(version);
+    }
+
+    /**
+     * Copies the versions of the package root which the predicate takes and which were not written yet, rewriting their
+     * tarball URLs to point at the repository, unless no repository name is given.
+     */
+    @SuppressWarnings("unchecked")
+    private static void copyVersions(final Content source,
+                                     final Predicate<String> takes,
+                                     @Nullable final String repositoryName,
+                                     final Set<String> written,
+                                     final JsonGenerator generator,
+                                     @Nullable final JsonGenerator abbreviatedGenerator) throws IOException {
+        try (InputStream in = source.openInputStream();
+             JsonParser parser = mapper.getFactory().createParser(in)) {
+            if (!skipToVersions(parser)) {
+                return;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String version = parser.getCurrentName();
+                parser.nextToken();
+                if (takes.test(version) && written.add(version)) {
+                    Object document = parser.readValueAs(Object.class);
+                    if (nonNull(repositoryName) && document instanceof Map) { // only if not incomplete
+                        rewriteVersionTarballUrl(repositoryName, new NestedAttributesMap(version, (Map) document));
+                    }
+                    generator.writeFieldName(version);
+                    generator.writeObject(document);
+                    Map<String, Object> abbreviated = nonNull(abbreviatedGenerator)
+                            ? ProtopAbbreviatedPackageRoot.abbreviateVersion(document) : null;
+                    if (nonNull(abbreviated)) {
+                        abbreviatedGenerator.writeFieldName(version);
+                        abbreviatedGenerator.writeObject(abbreviated);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the fields of the package root of a member but its versions, noting the versions not taken from a member
+     * before it yet.
+     */
+    private static Map<String, Object> readHeader(final Content member,
+                                                  final int index,
+                                                  final Map<String, Integer> versionMembers) throws IOException {
+        Map<String, Object> header = new LinkedHashMap<>();
+        try (InputStream in = member.openInputStream(); JsonParser parser = mapper.getFactory().createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Package root is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (!VERSIONS.equals(field)) {
+                    header.put(field, parser.readValueAs(Object.class));
+                } else if (value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        versionMembers.putIfAbsent(parser.getCurrentName(), index);
+                        parser.nextToken();
+                        parser.skipChildren();
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Positions the parser on the start of the versions object of the package root, returns {@code false} if there is
+     * none.
+     */
+    private static boolean skipToVersions(final JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return false;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.START_OBJECT && VERSIONS.equals(field)) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    /**
+     * Overlays the header of a member over the merged headers of the members before it, which prevail, in the way
+     * {@link ProtopNestedAttributesMapUntypedObjectDeserializer} overlays top level fields.
+     */
+    @SuppressWarnings("unchecked")
+    private static void overlayHeader(final Map<String, Object> merged, final Map<String, Object> memberHeader) {
+        for (Entry<String, Object> field : memberHeader.entrySet()) {
+            Object dominant = merged.get(field.getKey());
+            if (!merged.containsKey(field.getKey())) {
+                merged.put(field.getKey(), field.getValue());
+            } else if (dominant instanceof Map && field.getValue() instanceof Map) {
+                merged.put(field.getKey(), overlay((Map) field.getValue(), (Map) dominant, false));
+            }
+        }
+    }
+
+    @Nullable
+    private static String latestVersion(final Map<String, Object> memberHeader) {
+        Object distTags = memberHeader.get(DIST_TAGS);
+        Object latest = distTags instanceof Map ? ((Map<?, ?>) distTags).get(LATEST) : null;
+        return latest instanceof String ? (String) latest : null;
+    }
+}
@@ -1,17 +1,31 @@
 package org.sonatype.nexus.repository.protop.internal;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
+import org.joda.time.DateTime;
+import org.sonatype.goodies.common.Time;
 import org.sonatype.nexus.blobstore.api.BlobRef;
+import org.sonatype.nexus.common.app.ApplicationDirectories;
 import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.common.hash.HashAlgorithm;
+import org.sonatype.nexus.common.io.Cooperation;
+import org.sonatype.nexus.common.io.CooperationFactory;
 import org.sonatype.nexus.repository.cache.CacheController;
 import org.sonatype.nexus.repository.cache.CacheControllerHolder;
 import org.sonatype.nexus.repository.cache.CacheControllerHolder.CacheType;
 import org.sonatype.nexus.repository.cache.CacheInfo;
+import org.sonatype.nexus.repository.config.Configuration;
+import org.sonatype.nexus.repository.config.ConfigurationFacet;
 import org.sonatype.nexus.repository.httpclient.HttpClientFacet;
 import org.sonatype.nexus.repository.protop.ProtopFacet;
 import org.sonatype.nexus.repository.proxy.ProxyFacet;
@@ -27,19 +41,44 @@ import org.sonatype.nexus.transaction.UnitOfWork;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.inject.Inject;
 import javax.inject.Named;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.lang.String.format;
+import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
 import static org.sonatype.nexus.repository.http.HttpMethods.GET;
+import static org.apache.http.HttpHeaders.IF_MODIFIED_SINCE;
+import static org.apache.http.HttpHeaders.IF_NONE_MATCH;
 import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_NAME;
+import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_UPSTREAM_ETAG;
+import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_UPSTREAM_LAST_MODIFIED;
 import static org.sonatype.nexus.repository.protop.internal.ProtopFacetUtils.*;
 import static org.sonatype.nexus.repository.protop.internal.ProtopFieldFactory.rewriteTarballUrlMatcher;
 import static org.sonatype.nexus.repository.protop.internal.ProtopHandlers.projectId;
@@ -54,19 +93,354 @@ import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.
 @Named
 public class ProtopProxyFacetImpl
         extends ProxyFacetSupport {
+    @VisibleForTesting
+    static final String CONFIG_KEY = "protop";
+
+    /**
+     * Context attribute marking requests issued by background revalidation, which must not be served stale.
+     */
+    private static final String BACKGROUND_REVALIDATION = ProtopProxyFacetImpl.class.getName() + ".backgroundRevalidation";
+
+    /**
+     * Context attribute holding the cached content a fetch revalidates, which may be answered with "304 Not Modified".
+     */
+    private static final String CONDITIONAL_FETCH = ProtopProxyFacetImpl.class.getName() + ".conditionalFetch";
+
+    /**
+     * Content attribute carrying the tarball names the package root listed before it was stored, see
+     * {@link #prefetchTarballs(ProtopProjectId, NestedAttributesMap, Set)}.
+     */
+    private static final String PREVIOUS_TARBALLS = ProtopProxyFacetImpl.class.getName() + ".previousTarballs";
+
+    @VisibleForTesting
+    static class Config {
+        /**
+         * Serve expired package roots and dist-tags from cache right away, revalidating them in background.
+         */
+        public boolean staleWhileRevalidate;
+
+        /**
+         * Dist-tags, like "latest", whose tarballs are fetched in background once their package root was stored.
+         */
+        public List<String> prefetchDistTags;
+
+        /**
+         * Count of newest versions whose tarballs are fetched in background once their package root was stored.
+         */
+        public int prefetchNewestVersions;
+
+        boolean isPrefetching() {
+            return (nonNull(prefetchDistTags) && !prefetchDistTags.isEmpty()) || prefetchNewestVersions > 0;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "{" +
+                    "staleWhileRevalidate=" + staleWhileRevalidate +
+                    ", prefetchDistTags=" + prefetchDistTags +
+                    ", prefetchNewestVersions=" + prefetchNewestVersions +
+                    '}';
+        }
+    }
+
+    private Config protopConfig;
+
+    @Nullable
+    private CooperationFactory.Builder cooperationBuilder;
+
+    @Nullable
+    private Cooperation proxyCooperation;
+
+    private boolean streamThroughEnabled;
+
+    private int streamThroughThreads;
+
+    private Time streamThroughPersistTimeout;
+
+    private Time streamThroughReadTimeout;
+
+    private Path temporaryDirectory;
+
+    @Nullable
+    private ExecutorService streamThroughExecutor;
+
+    private final ConcurrentMap<String, CompletableFuture<Void>> pendingStreamThroughs = new ConcurrentHashMap<>();
+
+    private int revalidationThreads;
+
+    private int revalidationQueueSize;
+
+    @Nullable
+    private ProtopDeduplicatingExecutor revalidationExecutor;
+
+    private int prefetchThreads;
+
+    private int prefetchQueueSize;
+
+    private int prefetchPerUpstream;
+
+    @Nullable
+    private ProtopDeduplicatingExecutor prefetchExecutor;
+
+    private final ConcurrentMap<String, Semaphore> prefetchPermits = new ConcurrentHashMap<>();
+
+    @Nullable
+    private ProtopPackageRootCache packageRootCache;
+
+    @Inject
+    protected void configureProtopCooperation(
+            final CooperationFactory cooperationFactory,
+            @Named("${nexus.protop.proxy.cooperation.enabled:-true}") final boolean cooperationEnabled,
+            @Named("${nexus.protop.proxy.cooperation.majorTimeout:-0s}") final Time majorTimeout,
+            @Named("${nexus.protop.proxy.cooperation.minorTimeout:-30s}") final Time minorTimeout,
+            @Named("${nexus.protop.proxy.cooperation.threadsPerKey:-100}") final int threadsPerKey) {
+        if (cooperationEnabled) {
+            this.cooperationBuilder = cooperationFactory.configure()
+                    .majorTimeout(majorTimeout)
+                    .minorTimeout(minorTimeout)
+                    .threadsPerKey(threadsPerKey);
+        }
+    }
+
+    /**
+     * Package roots are spooled and serialized to temporary files in this directory before they are stored.
+     */
+    @Inject
+    protected void configureTemporaryDirectory(final ApplicationDirectories applicationDirectories) {
+        this.temporaryDirectory = applicationDirectories.getTemporaryDirectory().toPath();
+    }
+
+    /**
+     * When enabled, package roots fetched for GET requests are streamed to the client while they are being downloaded
+     * from upstream, and are merged and saved in background afterwards.
+     */
+    @Inject
+    protected void configureProtopStreamThrough(
+            @Named("${nexus.protop.proxy.streamThrough.enabled:-false}") final boolean streamThroughEnabled,
+            @Named("${nexus.protop.proxy.streamThrough.threads:-20}") final int streamThroughThreads,
+            @Named("${nexus.protop.proxy.streamThrough.persistTimeout:-60s}") final Time streamThroughPersistTimeout,
+            @Named("${nexus.protop.proxy.streamThrough.readTimeout:-60s}") final Time streamThroughReadTimeout) {
+        this.streamThroughEnabled = streamThroughEnabled;
+        this.streamThroughThreads = streamThroughThreads;
+        this.streamThroughPersistTimeout = checkNotNull(streamThroughPersistTimeout);
+        this.streamThroughReadTimeout = checkNotNull(streamThroughReadTimeout);
+    }
+
+    @Inject
+    protected void configureProtopRevalidation(
+            @Named("${nexus.protop.proxy.revalidation.threads:-10}") final int revalidationThreads,
+            @Named("${nexus.protop.proxy.revalidation.queueSize:-1000}") final int revalidationQueueSize) {
+        this.revalidationThreads = revalidationThreads;
+        this.revalidationQueueSize = revalidationQueueSize;
+    }
+
+    @Inject
+    protected void configureProtopPrefetch(
+            @Named("${nexus.protop.proxy.prefetch.threads:-4}") final int prefetchThreads,
+            @Named("${nexus.protop.proxy.prefetch.queueSize:-500}") final int prefetchQueueSize,
+            @Named("${nexus.protop.proxy.prefetch.perUpstream:-2}") final int prefetchPerUpstream) {
+        this.prefetchThreads = prefetchThreads;
+        this.prefetchQueueSize = prefetchQueueSize;
+        this.prefetchPerUpstream = prefetchPerUpstream;
+    }
+
+    /**
+     * Cached package roots are served rendered from memory when recently served, see {@link ProtopPackageRootCache}.
+     */
+    @Inject
+    protected void configurePackageRootCache(final ProtopPackageRootCache packageRootCache) {
+        this.packageRootCache = packageRootCache;
+    }
+
+    @VisibleForTesting
+    void buildProtopCooperation() {
+        if (nonNull(cooperationBuilder)) {
+            this.proxyCooperation = cooperationBuilder.build(getRepository().getName() + ":protopProxy");
+        }
+    }
+
+    @VisibleForTesting
+    void buildStreamThroughExecutor() {
+        if (streamThroughEnabled) {
+            // no queueing: when all threads are busy package roots are stored synchronously instead
+            this.streamThroughExecutor = new ThreadPoolExecutor(0, streamThroughThreads, 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(),
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("protop-stream-through-" + getRepository().getName() + "-%d")
+                            .setDaemon(true)
+                            .build());
+        }
+    }
+
+    @Override
+    protected void doInit(final Configuration configuration) throws Exception {
+        super.doInit(configuration);
+        buildProtopCooperation();
+    }
+
+    @Override
+    protected void doConfigure(final Configuration configuration) throws Exception {
+        super.doConfigure(configuration);
+        protopConfig = facet(ConfigurationFacet.class).readSection(configuration, CONFIG_KEY, Config.class);
+        log.debug("protop config: {}", protopConfig);
+    }
+
+    @Override
+    protected void doDestroy() throws Exception {
+        protopConfig = null;
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        if (nonNull(protopConfig) && protopConfig.staleWhileRevalidate) {
+            this.revalidationExecutor = new ProtopDeduplicatingExecutor(
+                    "protop-revalidation-" + getRepository().getName(), revalidationThreads, revalidationQueueSize);
+        }
+        if (nonNull(protopConfig) && protopConfig.isPrefetching()) {
+            this.prefetchExecutor = new ProtopDeduplicatingExecutor(
+                    "protop-prefetch-" + getRepository().getName(), prefetchThreads, prefetchQueueSize);
+        }
+        buildStreamThroughExecutor();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (nonNull(revalidationExecutor)) {
+            revalidationExecutor.shutdown();
+            revalidationExecutor = null;
+        }
+        if (nonNull(prefetchExecutor)) {
+            prefetchExecutor.shutdown();
+            prefetchExecutor = null;
+            prefetchPermits.clear();
+        }
+        if (nonNull(streamThroughExecutor)) {
+            streamThroughExecutor.shutdown();
+            streamThroughExecutor = null;
+        }
+        super.doStop();
+    }
+
+    /**
+     * Fetches and stores the requested content. This method allows {@link Cooperation} to work, meaning that concurrent
+     * requests for the same package root or tarball wait for a single upstream fetch and store, and are then served
+     * the freshly stored content.
+     */
+    @Override
+    protected Content doGet(final Context context, @Nullable final Content staleContent) throws IOException {
+        if (nonNull(staleContent) && revalidateInBackground(context)) {
+            return staleContent;
+        }
+
+        String key = cooperationKey(context);
+        if (isNull(proxyCooperation) || isNull(key)) {
+            return super.doGet(context, staleContent);
+        }
+
+        return proxyCooperation.cooperate(key, failover -> {
+            if (failover) {
+                // re-check cache when failing over to new thread
+                Content latestContent = proxyCooperation.join(() -> getCachedContent(context));
+                if (isFresh(context, latestContent)) {
+                    return latestContent;
+                }
+            }
+            return super.doGet(context, staleContent);
+        });
+    }
+
+    /**
+     * Key used to cooperate on, which is the package id for package roots and dist-tags, and the tarball asset name for
+     * tarballs. Returns {@code null} for targets that do not cooperate.
+     */
+    @Nullable
+    @VisibleForTesting
+    String cooperationKey(final Context context) {
+        ProxyTarget proxyTarget = context.getAttributes().require(ProxyTarget.class);
+        if (ProxyTarget.PACKAGE == proxyTarget && isAbbreviatedRequest(context)) {
+            // followers are handed the leader's content, so abbreviated requests cooperate among themselves
+            return proxyTarget.name() + ":" + projectId(matcherState(context)).id() + ":abbreviated";
+        } else if (ProxyTarget.PACKAGE == proxyTarget && ProtopGzipPackageRoot.isAccepted(context.getRequest())) {
+            return proxyTarget.name() + ":" + projectId(matcherState(context)).id() + ":gzip";
+        } else if (ProxyTarget.PACKAGE == proxyTarget || ProxyTarget.DIST_TAGS == proxyTarget) {
+            return proxyTarget.name() + ":" + projectId(matcherState(context)).id();
+        } else if (ProxyTarget.TARBALL == proxyTarget) {
+            TokenMatcher.State state = matcherState(context);
+            return proxyTarget.name() + ":" + tarballAssetName(projectId(state), tarballName(state));
+        }
+        return null;
+    }
+
+    /**
+     * Schedules background revalidation of an expired package root or dist-tags when the repository serves them
+     * stale-while-revalidate. Refreshes of the same package are deduplicated, whichever rendition of its package root
+     * was requested. Returns {@code false} when the caller must revalidate itself, which is also the case when the
+     * revalidation executor is saturated.
+     */
+    private boolean revalidateInBackground(final Context context) {
+        ProtopDeduplicatingExecutor executor = revalidationExecutor;
+        if (isNull(executor) || context.getAttributes().contains(BACKGROUND_REVALIDATION)) {
+            return false;
+        }
+        ProxyTarget proxyTarget = context.getAttributes().require(ProxyTarget.class);
+        if (ProxyTarget.PACKAGE != proxyTarget && ProxyTarget.DIST_TAGS != proxyTarget) {
+            return false;
+        }
+
+        Context revalidationContext = new Context(getRepository(), context.getRequest());
+        revalidationContext.getAttributes().set(ProxyTarget.class, proxyTarget);
+        revalidationContext.getAttributes().set(TokenMatcher.State.class, matcherState(context));
+        revalidationContext.getAttributes().set(BACKGROUND_REVALIDATION, Boolean.TRUE);
+        // keyed on the package alone, as its abbreviated, gzip and full renditions are all refreshed by one fetch
+        String key = proxyTarget.name() + ":" + projectId(matcherState(context)).id();
+        return executor.submit(key, ProtopGzipPackageRoot.withBaseUrl(() -> revalidate(revalidationContext)));
+    }
+
+    private void revalidate(final Context context) {
+        UnitOfWork.begin(facet(StorageFacet.class).txSupplier());
+        try {
+            get(context);
+        } catch (IOException e) {
+            log.warn("Failed to revalidate {} in background", getUrl(context), log.isDebugEnabled() ? e : null);
+        } finally {
+            UnitOfWork.end();
+        }
+    }
+
+    private static boolean isAbbreviatedRequest(final Context context) {
+        return ProtopAbbreviatedPackageRoot.isRequested(context.getRequest());
+    }
+
+    private boolean isFresh(final Context context, @Nullable final Content content) {
+        if (isNull(content)) {
+            return false;
+        }
+        CacheInfo cacheInfo = content.getAttributes().get(CacheInfo.class);
+        return nonNull(cacheInfo) && !getCacheController(context).isStale(cacheInfo);
+    }
+
     @Override
     @Nullable
     protected Content fetch(final Context context, Content stale) throws IOException {
+        if (nonNull(stale)) {
+            context.getAttributes().set(CONDITIONAL_FETCH, stale);
+        }
         try {
-            return super.fetch(context, stale);
+            Content remote = super.fetch(context, stale);
+            return nonNull(remote) && remote != stale && isStreamedThrough(context) ? handOverable(remote) : remote;
         } catch (NonResolvableTarballNameException e) { //NOSONAR
             log.debug("protop tarball URL not resolvable: {}", e.getMessage());
             return null;
+        } finally {
+            context.getAttributes().remove(CONDITIONAL_FETCH);
         }
     }
 
     /**
-     * Execute http client request.
+     * Execute http client request. Revalidation of a cached package root is made conditional on its upstream validators,
+     * so an unchanged package root is answered with "304 Not Modified" and only gets its cache info updated.
      */
     protected HttpResponse execute(final Context context, final HttpClient client, final HttpRequestBase request)
             throws IOException {
@@ -74,9 +448,42 @@ public class ProtopProxyFacetImpl
         if (StringUtils.isNotBlank(bearerToken)) {
             request.setHeader("Authorization", "Bearer " + bearerToken);
         }
+        Content stale = context.getAttributes().get(CONDITIONAL_FETCH, Content.class);
+        if (nonNull(stale) && ProxyTarget.PACKAGE == context.getAttributes().require(ProxyTarget.class)) {
+            addUpstreamValidators(stale, request);
+        }
         return super.execute(context, client, request);
     }
 
+    /**
+     * Adds the upstream validators recorded on the package root asset the cached content was loaded from.
+     */
+    private void addUpstreamValidators(final Content stale, final HttpRequestBase request) {
+        Asset asset = stale.getAttributes().get(Asset.class);
+        if (isNull(asset)) {
+            return;
+        }
+        String etag = asset.formatAttributes().get(P_UPSTREAM_ETAG, String.class);
+        if (nonNull(etag)) {
+            request.setHeader(IF_NONE_MATCH, quotedEtag(etag));
+        }
+        String lastModified = asset.formatAttributes().get(P_UPSTREAM_LAST_MODIFIED, String.class);
+        if (nonNull(lastModified)) {
+            request.setHeader(IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+
+    /**
+     * Quotes the entity tag unless it already is, strong or weak.
+     */
+    @VisibleForTesting
+    static String quotedEtag(final String etag) {
+        if (etag.startsWith("\"") || etag.startsWith("W/\"")) {
+            return etag;
+        }
+        return "\"" + etag + "\"";
+    }
+
     @Override
     protected Content getCachedContent(final Context context) throws IOException {
         ProxyTarget proxyTarget = context.getAttributes().require(ProxyTarget.class);
@@ -91,13 +498,8 @@ public class ProtopProxyFacetImpl
             TokenMatcher.State state = matcherState(context);
             return getTarball(projectId(state), tarballName(state));
         } else if (ProxyTarget.SEARCH_INDEX == proxyTarget) {
-            Content fullIndex = getRepositoryRoot();
-            if (fullIndex == null) {
-                return null;
-            }
-            // TODO figure out how to reimplement this?
-//      return ProtopSearchIndexFilter.filterModifiedSince(
-//          fullIndex, ProtopHandlers.indexSince(context.getRequest().getParameters()));
+            // the full index, since filtering is done by ProtopSearchIndexFacetProxy
+            return getRepositoryRoot();
         }
         throw new IllegalStateException();
     }
@@ -116,26 +518,186 @@ public class ProtopProxyFacetImpl
             return content; // we do not cache search results
         }
 
+        // tarballs are prefetched for package roots fetched for clients, not for background revalidations
+        boolean prefetch = !context.getAttributes().contains(BACKGROUND_REVALIDATION);
+        if (content.getPayload() instanceof HandOverPayload && isStreamedThrough(context)) {
+            Content streamed = streamThrough(projectId(matcherState(context)), content, prefetch);
+            if (nonNull(streamed)) {
+                return streamed;
+            }
+        }
+
         StorageFacet storageFacet = facet(StorageFacet.class);
-        try (TempBlob tempBlob = storageFacet.createTempBlob(content, ProtopFacetUtils.HASH_ALGORITHMS)) {
-            if (ProxyTarget.PACKAGE == proxyTarget) {
-                return putPackageRoot(projectId(matcherState(context)), tempBlob, content);
+        List<HashAlgorithm> hashAlgorithms = ProxyTarget.TARBALL == proxyTarget
+                ? ProtopFacetUtils.TARBALL_HASH_ALGORITHMS : ProtopFacetUtils.HASH_ALGORITHMS;
+        try (TempBlob tempBlob = storageFacet.createTempBlob(content, hashAlgorithms)) {
+            if (ProxyTarget.PACKAGE == proxyTarget && isAbbreviatedRequest(context)) {
+                putPackageRoot(projectId(matcherState(context)), tempBlob, content, prefetch);
+                return getPackageRoot(context, projectId(matcherState(context)));
+            } else if (ProxyTarget.PACKAGE == proxyTarget) {
+                return putPackageRoot(projectId(matcherState(context)), tempBlob, content, prefetch);
             } else if (ProxyTarget.DIST_TAGS == proxyTarget) {
-                putPackageRoot(projectId(matcherState(context)), tempBlob, content);
+                putPackageRoot(projectId(matcherState(context)), tempBlob, content, prefetch);
                 return getDistTags(projectId(matcherState(context)));
             } else if (ProxyTarget.TARBALL == proxyTarget) {
                 TokenMatcher.State state = matcherState(context);
                 return putTarball(projectId(state), tarballName(state), tempBlob, content, context);
             } else if (ProxyTarget.SEARCH_INDEX == proxyTarget) {
-                // TODO figure out how to reimplement this?
-//        Content fullIndex = putRepositoryRoot(tempBlob, content);
-//        return ProtopSearchIndexFilter.filterModifiedSince(
-//            fullIndex, ProtopHandlers.indexSince(context.getRequest().getParameters()));
+                return putRepositoryRoot(tempBlob, content);
             }
             throw new IllegalStateException();
         }
     }
 
+    private boolean isStreamedThrough(final Context context) {
+        return nonNull(streamThroughExecutor) && ProxyTarget.PACKAGE == context.getAttributes().require(ProxyTarget.class)
+                && GET.equals(context.getRequest().getAction()) && !isAbbreviatedRequest(context);
+    }
+
+    /**
+     * Wraps fetched upstream content so that its payload can be handed over to the stream through producer, see
+     * {@link HandOverPayload}.
+     */
+    @VisibleForTesting
+    static Content handOverable(final Content remote) {
+        Content content = new Content(new HandOverPayload(remote.getPayload()));
+        remote.getAttributes().backing().forEach((key, value) -> content.getAttributes().set(key, value));
+        return content;
+    }
+
+    /**
+     * Hands the upstream package root over to a background thread, which spools it locally and then merges and saves
+     * it. The returned content streams the spool while it is being written, so clients receive upstream bytes (with
+     * tarball URLs rewritten) right away instead of after parse, merge and save. Any reader opening the content after
+     * the spool is gone is served the saved package root. Returns {@code null} when stream through is disabled or no
+     * thread is available, in which case the package root is to be stored synchronously.
+     * <p>
+     * The upstream stream is opened here, on the request thread, and owned by the producer from then on: closing the
+     * fetched content after store returned no longer closes it.
+     */
+    @Nullable
+    private Content streamThrough(final ProtopProjectId packageId,
+                                  final Content content,
+                                  final boolean prefetch) throws IOException {
+        ExecutorService executor = streamThroughExecutor;
+        if (isNull(executor)) {
+            return null;
+        }
+
+        ProtopStreamThroughSpool spool = ProtopStreamThroughSpool.create(temporaryDirectory,
+                streamThroughReadTimeout);
+        CompletableFuture<InputStream> upstream = new CompletableFuture<>();
+        CompletableFuture<Void> persisted = new CompletableFuture<>();
+        try {
+            executor.execute(withSubject(ProtopGzipPackageRoot.withBaseUrl(
+                    () -> spoolAndPersist(packageId, content, prefetch, upstream, spool, persisted))));
+        } catch (RejectedExecutionException e) { // NOSONAR
+            log.debug("No thread available to stream through package root {}, storing it synchronously", packageId);
+            spool.release();
+            return null;
+        }
+        pendingStreamThroughs.put(packageId.id(), persisted);
+        persisted.whenComplete((result, failure) -> pendingStreamThroughs.remove(packageId.id(), persisted));
+
+        try {
+            upstream.complete(((HandOverPayload) content.getPayload()).handOver());
+        } catch (IOException | RuntimeException e) {
+            upstream.completeExceptionally(e);
+            throw e;
+        }
+
+        ProtopContent streamed = new ProtopContent(new ProtopStreamPayload(() -> {
+            InputStream in = spool.openReader();
+            return nonNull(in) ? in : openPersistedPackageRoot(packageId);
+        }));
+        // the upstream ETag does not identify the content served by us, leave it out
+        streamed.getAttributes().set(Content.CONTENT_LAST_MODIFIED,
+                content.getAttributes().get(Content.CONTENT_LAST_MODIFIED));
+        streamed.getAttributes().set(CacheInfo.class, content.getAttributes().get(CacheInfo.class));
+        return streamed
+                .fieldMatchers(rewriteTarballUrlMatcher(getRepository(), packageId.id()))
+                .packageId(packageId.id());
+    }
+
+    /**
+     * The stream through producer. Whatever goes wrong fails the spool, so readers following it are never left waiting.
+     */
+    private void spoolAndPersist(final ProtopProjectId packageId,
+                                 final Content content,
+                                 final boolean prefetch,
+                                 final CompletableFuture<InputStream> upstream,
+                                 final ProtopStreamThroughSpool spool,
+                                 final CompletableFuture<Void> persisted) {
+        Throwable failure = null;
+        try {
+            try (InputStream in = upstream.get(streamThroughReadTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                spool.transfer(in);
+            } finally {
+                ((HandOverPayload) content.getPayload()).release();
+            }
+            try (InputStream spooled = spool.openReader()) {
+                persistStreamedThrough(packageId, checkNotNull(spooled), content, prefetch);
+            }
+        } catch (Throwable e) { // NOSONAR
+            failure = e;
+            spool.fail(e);
+            log.warn("Failed to store streamed through package root {}", packageId, log.isDebugEnabled() ? e : null);
+        } finally {
+            spool.release();
+        }
+        // only once the spool was released, readers opening the content from then on are served the saved package root
+        if (isNull(failure)) {
+            persisted.complete(null);
+        } else {
+            persisted.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Merges and saves a package root which was streamed through, only the attributes of the fetched content are used.
+     */
+    @VisibleForTesting
+    void persistStreamedThrough(final ProtopProjectId packageId,
+                                final InputStream spooled,
+                                final Content content,
+                                final boolean prefetch) throws IOException {
+        StorageFacet storageFacet = facet(StorageFacet.class);
+        UnitOfWork.begin(storageFacet.txSupplier());
+        try (TempBlob tempBlob = storageFacet.createTempBlob(spooled, ProtopFacetUtils.HASH_ALGORITHMS)) {
+            putPackageRoot(packageId, tempBlob, content, prefetch);
+        } finally {
+            UnitOfWork.end();
+        }
+    }
+
+    @VisibleForTesting
+    InputStream openPersistedPackageRoot(final ProtopProjectId packageId) throws IOException {
+        Asset asset = Transactional.operation.withDb(facet(StorageFacet.class).txSupplier())
+                .call(() -> findPackageRootAsset(packageId));
+        if (isNull(asset)) {
+            throw new IOException("Could not retrieve package " + packageId);
+        }
+        return ProtopFacetUtils.loadPackageRoot(getRepository(), asset).get();
+    }
+
+    /**
+     * Waits for a package root that is being streamed through to be saved, so it can be looked up in storage.
+     */
+    @VisibleForTesting
+    void awaitStreamThrough(final ProtopProjectId packageId) {
+        CompletableFuture<Void> persisted = pendingStreamThroughs.get(packageId.id());
+        if (isNull(persisted)) {
+            return;
+        }
+        try {
+            persisted.get(streamThroughPersistTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) { // NOSONAR
+            log.debug("Package root {} streamed through was not saved: {}", packageId, e.toString());
+        }
+    }
+
     @Override
     protected void indicateVerified(final Context context,
                                     final Content content,
@@ -153,8 +715,7 @@ public class ProtopProxyFacetImpl
         if (ProxyTarget.TARBALL == proxyTarget) {
             TokenMatcher.State state = matcherState(context);
             try {
-                NestedAttributesMap packageVersion = retrievePackageVersion(projectId(state), tarballName(state), context);
-                url = packageVersion.child(ProtopMetadataUtils.DIST).get(ProtopMetadataUtils.TARBALL, String.class);
+                url = resolveTarballUrl(projectId(state), tarballName(state), context);
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
@@ -168,6 +729,9 @@ public class ProtopProxyFacetImpl
             String newUrl = packageId.org() + "%2f" + packageId.name();
             log.trace("Scoped package URL fix: {} -> {}", url, newUrl);
             url = newUrl;
+        } else if (ProxyTarget.SEARCH_INDEX == proxyTarget) {
+            // incremental requests are answered out of the full index
+            url = ProtopFacetUtils.REPOSITORY_ROOT_ASSET;
         } else if (ProxyTarget.SEARCH_RESULTS == proxyTarget) {
             Parameters parameters = context.getRequest().getParameters();
             if (parameters != null) {
@@ -199,15 +763,39 @@ public class ProtopProxyFacetImpl
     public Content getPackageRoot(final Context context, final ProtopProjectId packageId) throws IOException {
         checkNotNull(packageId);
         StorageTx tx = UnitOfWork.currentTx();
-        Asset packageRootAsset = ProtopFacetUtils.findPackageRootAsset(tx, tx.findBucket(getRepository()), packageId);
+        Bucket bucket = tx.findBucket(getRepository());
+        Asset packageRootAsset = ProtopFacetUtils.findPackageRootAsset(tx, bucket, packageId);
         if (packageRootAsset == null) {
             return null;
         }
 
-        return toContent(getRepository(), packageRootAsset)
+        if (isAbbreviatedRequest(context)) {
+            Asset abbreviatedAsset = findAbbreviatedPackageRootAsset(tx, bucket, packageId);
+            if (abbreviatedAsset != null) {
+                // the abbreviated package root expires and is verified together with its package root
+                Content content = toAbbreviatedContent(getRepository(), abbreviatedAsset)
+                        .fieldMatchers(rewriteTarballUrlMatcher(getRepository(), packageId.id()))
+                        .missingBlobInputStreamSupplier(missingBlobException -> doGetOnMissingBlob(context, missingBlobException));
+                content.getAttributes().set(Asset.class, packageRootAsset);
+                content.getAttributes().set(CacheInfo.class, CacheInfo.extractFromAsset(packageRootAsset));
+                return content;
+            }
+        } else if (ProtopGzipPackageRoot.isAccepted(context.getRequest())) {
+            Asset gzipAsset = findGzipPackageRootAsset(tx, bucket, packageId);
+            Content content = gzipAsset != null ? toGzipContent(tx, gzipAsset) : null;
+            if (content != null) {
+                // the gzip package root expires and is verified together with its package root
+                content.getAttributes().set(Asset.class, packageRootAsset);
+                content.getAttributes().set(CacheInfo.class, CacheInfo.extractFromAsset(packageRootAsset));
+                return content;
+            }
+        }
+
+        ProtopContent content = toContent(getRepository(), packageRootAsset)
                 .fieldMatchers(rewriteTarballUrlMatcher(getRepository(), packageId.id()))
                 .packageId(packageRootAsset.name())
                 .missingBlobInputStreamSupplier(missingBlobException -> doGetOnMissingBlob(context, missingBlobException));
+        return nonNull(packageRootCache) ? packageRootCache.rendered(getRepository(), packageRootAsset, content) : content;
     }
 
     @TransactionalTouchMetadata
@@ -217,9 +805,12 @@ public class ProtopProxyFacetImpl
         Asset packageRootAsset = ProtopFacetUtils.findPackageRootAsset(tx, tx.findBucket(getRepository()), packageId);
         if (packageRootAsset != null) {
             try {
-                final NestedAttributesMap attributesMap = ProtopFacetUtils.loadPackageRoot(tx, packageRootAsset);
-                final NestedAttributesMap distTags = attributesMap.child(DIST_TAGS);
-                return ProtopFacetUtils.distTagsToContent(distTags);
+                final NestedAttributesMap distTags = ProtopFacetUtils.loadDistTags(tx, packageRootAsset);
+                // dist-tags expire and are verified together with their package root
+                Content content = ProtopFacetUtils.distTagsToContent(distTags);
+                content.getAttributes().set(Asset.class, packageRootAsset);
+                content.getAttributes().set(CacheInfo.class, CacheInfo.extractFromAsset(packageRootAsset));
+                return content;
             } catch (IOException e) {
                 log.error("Unable to read packageRoot {}", packageId.id(), e);
             }
@@ -229,16 +820,121 @@ public class ProtopProxyFacetImpl
 
     private Content putPackageRoot(final ProtopProjectId packageId,
                                    final TempBlob tempBlob,
-                                   final Content payload) throws IOException {
+                                   final Content payload,
+                                   final boolean prefetch) throws IOException {
         checkNotNull(packageId);
         checkNotNull(payload);
         checkNotNull(tempBlob);
 
         NestedAttributesMap packageRoot = ProtopFacetUtils.parse(tempBlob);
+        Content content;
         try {
-            return doPutPackageRoot(packageId, packageRoot, payload, true);
+            content = doPutPackageRoot(packageId, packageRoot, payload, true);
         } catch (RetryDeniedException | MissingBlobException e) {
-            return maybeHandleMissingBlob(e, packageId, packageRoot, payload);
+            content = maybeHandleMissingBlob(e, packageId, packageRoot, payload);
+        }
+        Object previousTarballs = content.getAttributes().get(PREVIOUS_TARBALLS);
+        content.getAttributes().remove(PREVIOUS_TARBALLS);
+        if (prefetch && previousTarballs instanceof Set) {
+            prefetchTarballs(packageId, packageRoot, (Set<?>) previousTarballs);
+        }
+        return content;
+    }
+
+    /**
+     * Schedules background fetches of the tarballs of the configured dist-tags and newest versions of a just stored
+     * package root, hiding upstream tarball latency behind the client's own processing of the package root. Only
+     * tarballs the package root did not list before are fetched, so unchanged package roots prefetch nothing. Prefetches
+     * are dispatched through the repository as the requesting user, like any request for the tarball, run bounded,
+     * limited per upstream host, and join any in-flight fetch of the same tarball.
+     */
+    private void prefetchTarballs(final ProtopProjectId packageId,
+                                  final NestedAttributesMap packageRoot,
+                                  final Set<?> previousTarballs) {
+        ProtopDeduplicatingExecutor executor = prefetchExecutor;
+        Config config = protopConfig;
+        if (isNull(executor) || isNull(config)) {
+            return;
+        }
+        NestedAttributesMap versions = packageRoot.child(VERSIONS);
+        for (String version : selectPrefetchVersions(packageRoot, config.prefetchDistTags, config.prefetchNewestVersions)) {
+            if (!(versions.get(version) instanceof Map)) {
+                continue;
+            }
+            String url = versions.child(version).child(DIST).get(TARBALL, String.class);
+            if (StringUtils.isBlank(url)) {
+                continue;
+            }
+            String tarballName = extractTarballName(url);
+            if (previousTarballs.contains(tarballName)) {
+                continue;
+            }
+            String key = tarballAssetName(packageId, tarballName);
+            if (!executor.submit(key, withSubject(() -> prefetchTarball(packageId, tarballName, url)))) {
+                log.debug("Prefetch of {} skipped, executor saturated", key);
+            }
+        }
+    }
+
+    /**
+     * Versions pointed to by given dist-tags, followed by the given count of newest versions of a package root.
+     */
+    @VisibleForTesting
+    static Set<String> selectPrefetchVersions(final NestedAttributesMap packageRoot,
+                                              @Nullable final List<String> distTags,
+                                              final int newestVersions) {
+        Set<String> selected = new LinkedHashSet<>();
+        if (nonNull(distTags)) {
+            NestedAttributesMap tags = packageRoot.child(DIST_TAGS);
+            for (String distTag : distTags) {
+                String version = tags.get(distTag, String.class);
+                if (nonNull(version)) {
+                    selected.add(version);
+                }
+            }
+        }
+        if (newestVersions > 0) {
+            List<String> versions = new ArrayList<>(packageRoot.child(VERSIONS).keys());
+            versions.sort(Collections.reverseOrder(ProtopVersionComparator.versionComparator));
+            selected.addAll(versions.subList(0, Math.min(newestVersions, versions.size())));
+        }
+        return selected;
+    }
+
+    private void prefetchTarball(final ProtopProjectId packageId, final String tarballName, final String url) {
+        Semaphore permits = prefetchPermits.computeIfAbsent(upstreamHost(url), host -> new Semaphore(prefetchPerUpstream));
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        String path = "/" + tarballAssetName(packageId, tarballName);
+        try {
+            Response response = getRepository().facet(ViewFacet.class)
+                    .dispatch(new Request.Builder().action(GET).path(path).build());
+            log.debug("Prefetch of {}: {}", path, response.getStatus());
+        } catch (Exception e) {
+            log.debug("Prefetch of {} failed", path, e);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Binds the subject of the current thread, if any, to the task run in background.
+     */
+    private static Runnable withSubject(final Runnable task) {
+        Subject subject = ThreadContext.getSubject();
+        return subject != null ? subject.associateWith(task) : task;
+    }
+
+    private static String upstreamHost(final String url) {
+        try {
+            String host = URI.create(url).getHost();
+            return nonNull(host) ? host : "";
+        } catch (IllegalArgumentException e) { // NOSONAR
+            return "";
         }
     }
 
@@ -254,6 +950,7 @@ public class ProtopProxyFacetImpl
         NestedAttributesMap newPackageRoot = packageRoot;
 
         Asset asset = ProtopFacetUtils.findPackageRootAsset(tx, bucket, packageId);
+        Set<String> previousTarballs = nonNull(asset) ? ProtopTarballIndex.tarballNames(asset) : Collections.emptySet();
         if (asset == null) {
             asset = tx.createAsset(bucket, getRepository().getFormat()).name(packageId.id());
         } else if (mergePackageRoot) {
@@ -261,12 +958,35 @@ public class ProtopProxyFacetImpl
         }
 
         Content.applyToAsset(asset, Content.maintainLastModified(asset, content.getAttributes()));
-        ProtopFacetUtils.savePackageRoot(tx, asset, newPackageRoot);
+        maintainUpstreamValidators(asset, content);
+        ProtopTarballIndex.maintain(asset, newPackageRoot);
+        ProtopFacetUtils.savePackageRoot(tx, getRepository(), temporaryDirectory, asset, newPackageRoot);
 
-        return toContent(getRepository(), asset)
+        ProtopContent stored = toContent(getRepository(), asset)
                 .fieldMatchers(rewriteTarballUrlMatcher(getRepository(), packageId.id()))
                 .revId(asset.name())
                 .packageId(packageId.id());
+        stored.getAttributes().set(PREVIOUS_TARBALLS, previousTarballs);
+        return stored;
+    }
+
+    /**
+     * Records the upstream validators of the package root, as received with the remote content, on its asset.
+     */
+    private void maintainUpstreamValidators(final Asset asset, final Content content) {
+        NestedAttributesMap formatAttributes = asset.formatAttributes();
+        String etag = content.getAttributes().get(Content.CONTENT_ETAG, String.class);
+        if (nonNull(etag)) {
+            formatAttributes.set(P_UPSTREAM_ETAG, etag);
+        } else {
+            formatAttributes.remove(P_UPSTREAM_ETAG);
+        }
+        DateTime lastModified = content.getAttributes().get(Content.CONTENT_LAST_MODIFIED, DateTime.class);
+        if (nonNull(lastModified)) {
+            formatAttributes.set(P_UPSTREAM_LAST_MODIFIED, DateUtils.formatDate(lastModified.toDate()));
+        } else {
+            formatAttributes.remove(P_UPSTREAM_LAST_MODIFIED);
+        }
     }
 
     /*
@@ -278,7 +998,7 @@ public class ProtopProxyFacetImpl
                                                              final NestedAttributesMap newPackageRoot,
                                                              final Asset asset) throws IOException {
         NestedAttributesMap existingPackageRoot = ProtopFacetUtils.loadPackageRoot(tx, asset);
-        List<String> cachedVersions = findCachedVersionsRemovedFromRemote(existingPackageRoot, newPackageRoot, tx);
+        Set<String> cachedVersions = findCachedVersionsRemovedFromRemote(existingPackageRoot, newPackageRoot, tx);
         NestedAttributesMap mergedRoot = newPackageRoot;
         if (!cachedVersions.isEmpty()) {
             mergedRoot = merge(existingPackageRoot.getKey(), ImmutableList.of(existingPackageRoot, newPackageRoot));
@@ -294,29 +1014,33 @@ public class ProtopProxyFacetImpl
      */
     private void removeVersionsNotCachedAndNotInNewRoot(final NestedAttributesMap newPackageRoot,
                                                         final NestedAttributesMap existingPackageRoot,
-                                                        final List<String> cachedVersions) {
-        for (String version : newPackageRoot.child(VERSIONS).keys()) {
-            if (!cachedVersions.contains(version) && !existingPackageRoot.child(VERSIONS).keys().contains(version)) {
-                newPackageRoot.child(VERSIONS).remove(version);
+                                                        final Set<String> cachedVersions) {
+        Set<String> existingVersions = new HashSet<>(existingPackageRoot.child(VERSIONS).keys());
+        NestedAttributesMap versions = newPackageRoot.child(VERSIONS);
+        for (String version : new ArrayList<>(versions.keys())) {
+            if (!cachedVersions.contains(version) && !existingVersions.contains(version)) {
+                versions.remove(version);
             }
         }
     }
 
-    private List<String> findCachedVersionsRemovedFromRemote(final NestedAttributesMap cachedRoot,
-                                                             final NestedAttributesMap newPackageRoot,
-                                                             final StorageTx tx) {
-        List<String> cachedVersionsRemovedFromRemote = new ArrayList<>();
-        Set<String> newVersions = newPackageRoot.child(VERSIONS).keys();
-        ProtopProjectId packageId = ProtopProjectId.parse((String) checkNotNull(newPackageRoot.get(P_NAME)));
-
-        for (String version : cachedRoot.child(VERSIONS).keys()) {
-            if (!newVersions.contains(version)
-                    && tx.componentExists(packageId.org(), packageId.name(), version, getRepository())) {
-
-                cachedVersionsRemovedFromRemote.add(version);
-            }
+    /*
+     * Versions of the cached root that are gone from the new root, but still have their tarball cached. The cached
+     * tarball versions are loaded with a single query and diffed in memory.
+     */
+    @VisibleForTesting
+    Set<String> findCachedVersionsRemovedFromRemote(final NestedAttributesMap cachedRoot,
+                                                    final NestedAttributesMap newPackageRoot,
+                                                    final StorageTx tx) {
+        Set<String> removedFromRemote = new HashSet<>(cachedRoot.child(VERSIONS).keys());
+        removedFromRemote.removeAll(newPackageRoot.child(VERSIONS).keys());
+        if (removedFromRemote.isEmpty()) {
+            return removedFromRemote;
         }
-        return cachedVersionsRemovedFromRemote;
+
+        ProtopProjectId packageId = ProtopProjectId.parse((String) checkNotNull(newPackageRoot.get(P_NAME)));
+        removedFromRemote.retainAll(findPackageTarballVersions(tx, getRepository(), packageId));
+        return removedFromRemote;
     }
 
     @Nullable
@@ -355,14 +1079,12 @@ public class ProtopProxyFacetImpl
         return ProtopFacetUtils.getTarballContent(tx, tx.findBucket(getRepository()), packageId, tarballName);
     }
 
-//  private Content putRepositoryRoot(final TempBlob tempBlob,
-//                                    final Content content) throws IOException {
-//    checkNotNull(tempBlob);
-//    checkNotNull(content);
-//    Content result = doPutRepositoryRoot(tempBlob, content);
-//    getEventManager().post(new ProtopSearchIndexInvalidatedEvent(getRepository()));
-//    return result;
-//  }
+    private Content putRepositoryRoot(final TempBlob tempBlob,
+                                      final Content content) throws IOException {
+        checkNotNull(tempBlob);
+        checkNotNull(content);
+        return doPutRepositoryRoot(tempBlob, content);
+    }
 
     @Nullable
     @TransactionalTouchBlob
@@ -377,25 +1099,47 @@ public class ProtopProxyFacetImpl
         return toContent(asset, tx.requireBlob(asset.requireBlobRef()));
     }
 
-//  @TransactionalStoreBlob
-//  protected Content doPutRepositoryRoot(final TempBlob tempBlob,
-//                                        final Content content) throws IOException {
-//    StorageTx tx = UnitOfWork.currentTx();
-//    Bucket bucket = tx.findBucket(getRepository());
-//    Asset asset = findRepositoryRootAsset(tx, bucket);
-//    if (asset == null) {
-//      asset = tx.createAsset(bucket, getRepository().getFormat()).name(ProtopFacetUtils.REPOSITORY_ROOT_ASSET);
-//    }
-//    return saveRepositoryRoot(tx, asset, tempBlob, content);
-//  }
-
-    protected NestedAttributesMap retrievePackageVersion(final ProtopProjectId packageId,
-                                                         final String tarballName,
-                                                         final Context context) throws IOException {
-        // ensure package root is up to date
-        retrievePackageRoot(packageId, context);
+    @TransactionalStoreBlob
+    protected Content doPutRepositoryRoot(final TempBlob tempBlob,
+                                          final Content content) throws IOException {
+        StorageTx tx = UnitOfWork.currentTx();
+        Bucket bucket = tx.findBucket(getRepository());
+        Asset asset = findRepositoryRootAsset(tx, bucket);
+        if (asset == null) {
+            asset = tx.createAsset(bucket, getRepository().getFormat()).name(ProtopFacetUtils.REPOSITORY_ROOT_ASSET);
+        }
+        return saveRepositoryRoot(tx, asset, tempBlob, content);
+    }
+
+    /**
+     * Resolves the upstream URL of a tarball using the tarball index of the package root. Only when the tarball is not
+     * indexed is the package root dispatched (to bring it up to date), and only package roots cached before the index
+     * existed are parsed.
+     */
+    protected String resolveTarballUrl(final ProtopProjectId packageId,
+                                       final String tarballName,
+                                       final Context context) throws IOException {
+        ProtopTarballIndex.Entry entry = findTarballIndexEntry(packageId, tarballName);
+        if (entry == null) {
+            // ensure package root is up to date
+            retrievePackageRoot(packageId, context);
+            awaitStreamThrough(packageId);
+            entry = findTarballIndexEntry(packageId, tarballName);
+        }
+        if (entry != null) {
+            return entry.getUrl();
+        }
         // do the work in TX
-        return retrievePackageVersionTx(packageId, tarballName);
+        NestedAttributesMap packageVersion = retrievePackageVersionTx(packageId, tarballName);
+        return packageVersion.child(ProtopMetadataUtils.DIST).get(ProtopMetadataUtils.TARBALL, String.class);
+    }
+
+    @Nullable
+    @Transactional
+    protected ProtopTarballIndex.Entry findTarballIndexEntry(final ProtopProjectId packageId, final String tarballName) {
+        StorageTx tx = UnitOfWork.currentTx();
+        Asset asset = ProtopFacetUtils.findPackageRootAsset(tx, tx.findBucket(getRepository()), packageId);
+        return asset == null ? null : ProtopTarballIndex.lookup(asset, tarballName);
     }
 
     @TransactionalTouchBlob
@@ -424,15 +1168,17 @@ public class ProtopProxyFacetImpl
      * This method MUST NOT be called from within a TX, as it dispatches a new request! It fails with
      * {@code java.lang.IllegalStateException}: "Transaction already in progress" otherwise!
      */
-    private NestedAttributesMap retrievePackageRoot(final ProtopProjectId packageId, final Context context) throws IOException {
+    private void retrievePackageRoot(final ProtopProjectId packageId, final Context context) throws IOException {
         try {
             Request getRequest = new Request.Builder().action(GET).path("/" + packageId.id()).build();
             Response response = getRepository().facet(ViewFacet.class).dispatch(getRequest, context);
             if (response.getPayload() == null) {
                 throw new IOException("Could not retrieve package " + packageId);
             }
-            final InputStream packageRootIn = response.getPayload().openInputStream();
-            return ProtopFacetUtils.parse(() -> packageRootIn);
+            // no need to parse, the dispatch brought the package root and its tarball index up to date
+            try (InputStream packageRootIn = response.getPayload().openInputStream()) {
+                ByteStreams.exhaust(packageRootIn);
+            }
         } catch (IOException e) {
             throw e;
         } catch (Exception e) {
@@ -485,6 +1231,7 @@ public class ProtopProxyFacetImpl
     /**
      * Internal exception thrown when resolving of tarball name to package version using package metadata fails.
      *
+     * @see #resolveTarballUrl(ProtopProjectId, String, Context)
      * @see #retrievePackageVersionTx(ProtopProjectId, String)
      * @see #getUrl(Context)
      * @see #fetch(Context, Content)
@@ -496,6 +1243,60 @@ public class ProtopProxyFacetImpl
         }
     }
 
+    /**
+     * Payload of fetched upstream content which the stream through producer can take over. Until it is handed over,
+     * closing it closes the upstream as usual; once handed over, closing it is left to the producer, which reads the
+     * upstream after the fetched content was closed by the caller of {@link #store(Context, Content)}.
+     */
+    private static final class HandOverPayload
+            implements Payload, Closeable {
+        private final Payload upstream;
+
+        private final AtomicBoolean handedOver = new AtomicBoolean();
+
+        private HandOverPayload(final Payload upstream) {
+            this.upstream = checkNotNull(upstream);
+        }
+
+        /**
+         * Opens the upstream stream, which is then owned by the caller, who must {@link #release()} the payload.
+         */
+        InputStream handOver() throws IOException {
+            InputStream in = upstream.openInputStream();
+            handedOver.set(true);
+            return in;
+        }
+
+        void release() throws IOException {
+            if (upstream instanceof Closeable) {
+                ((Closeable) upstream).close();
+            }
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            return upstream.openInputStream();
+        }
+
+        @Override
+        public long getSize() {
+            return upstream.getSize();
+        }
+
+        @Nullable
+        @Override
+        public String getContentType() {
+            return upstream.getContentType();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!handedOver.get()) {
+                release();
+            }
+        }
+    }
+
     public enum ProxyTarget {
 
         SEARCH_INDEX(CacheControllerHolder.METADATA),
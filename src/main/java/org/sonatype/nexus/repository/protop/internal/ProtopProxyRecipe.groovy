@@ -46,8 +46,8 @@ class ProtopProxyRecipe
     @Inject
     Provider<NegativeCacheFacet> negativeCacheFacet
 
-//    @Inject
-//    Provider<ProtopSearchIndexFacetProxy> protopSearchIndexFacet
+    @Inject
+    Provider<ProtopSearchIndexFacetProxy> protopSearchIndexFacet
 
     @Inject
     Provider<ProtopSearchFacetProxy> protopSearchFacet
@@ -94,7 +94,7 @@ class ProtopProxyRecipe
         repository.attach(storageFacet.get())
         repository.attach(attributesFacet.get())
         repository.attach(searchFacet.get())
-//        repository.attach(protopSearchIndexFacet.get())
+        repository.attach(protopSearchIndexFacet.get())
         repository.attach(protopSearchFacet.get())
         repository.attach(singleAssetComponentMaintenanceProvider.get())
         repository.attach(purgeUnusedFacet.get())
@@ -109,20 +109,20 @@ class ProtopProxyRecipe
 
         addBrowseUnsupportedRoute(builder)
 
-//        // GET /-/all (protop search)
-//        builder.route(searchIndexMatcher()
-//                .handler(timingHandler)
-//                .handler(securityHandler)
-//                .handler(ProtopHandlers.protopErrorHandler)
-//                .handler(negativeCacheHandler)
-//                .handler(partialFetchHandler)
-//                .handler(conditionalRequestHandler)
-//                .handler(contentHeadersHandler)
-//                .handler(proxyTargetHandler.rcurry(ProxyTarget.SEARCH_INDEX))
-//                .handler(unitOfWorkHandler)
-//                .handler(lastDownloadedHandler)
-//                .handler(ProtopHandlers.searchIndex)
-//                .create())
+        // GET /-/all (protop search)
+        builder.route(searchIndexMatcher()
+                .handler(timingHandler)
+                .handler(securityHandler)
+                .handler(ProtopHandlers.protopErrorHandler)
+                .handler(negativeCacheHandler)
+                .handler(partialFetchHandler)
+                .handler(conditionalRequestHandler)
+                .handler(contentHeadersHandler)
+                .handler(proxyTargetHandler.rcurry(ProxyTarget.SEARCH_INDEX))
+                .handler(unitOfWorkHandler)
+                .handler(lastDownloadedHandler)
+                .handler(ProtopHandlers.searchIndex)
+                .create())
 
         // GET /-/search (protop search)
         builder.route(searchMatcher()
@@ -156,6 +156,7 @@ class ProtopProxyRecipe
                 .handler(securityHandler)
                 .handler(routingHandler)
                 .handler(ProtopHandlers.protopErrorHandler)
+                .handler(ProtopHandlers.contentEncoding)
                 .handler(negativeCacheHandler)
                 .handler(partialFetchHandler)
                 .handler(conditionalRequestHandler)
@@ -13,8 +13,6 @@ import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.math.BigDecimal;
-import java.math.BigInteger;
 import java.util.*;
 
 import static com.fasterxml.jackson.core.JsonToken.*;
@@ -60,6 +58,9 @@ public class ProtopPublishParser extends ComponentSupport {
 
     private final Map<String, TempBlob> tempBlobs = new LinkedHashMap<>();
 
+    @Nullable
+    private Runnable attachmentDataListener;
+
     /**
      * @param jsonParser     json parser containing the content
      * @param storageFacet   storage facet for creating temp blobs (if needed)
@@ -73,6 +74,14 @@ public class ProtopPublishParser extends ComponentSupport {
         this.hashAlgorithms = checkNotNull(hashAlgorithms);
     }
 
+    /**
+     * Sets a callback to run once, right before the data of the first attachment is read.
+     */
+    public ProtopPublishParser attachmentDataListener(@Nullable final Runnable attachmentDataListener) {
+        this.attachmentDataListener = attachmentDataListener;
+        return this;
+    }
+
     /**
      * Parses the {@code JsonParser}'s content into a {@code ProtopPublishOrDeleteRequest}. Temp blobs will be created if
      * necessary using the {@code StorageFacet} and with the provided {@code HashAlgorithm}s.
@@ -213,9 +222,8 @@ public class ProtopPublishParser extends ComponentSupport {
             case VALUE_STRING:
                 return parseString();
             case VALUE_NUMBER_INT:
-                return parseIntegerValue();
             case VALUE_NUMBER_FLOAT:
-                return parseFloatValue();
+                return parseNumberValue();
             case VALUE_TRUE:
                 return parseBooleanTrueValue();
             case VALUE_FALSE:
@@ -279,21 +287,11 @@ public class ProtopPublishParser extends ComponentSupport {
     }
 
     /**
-     * Parses a JSON integer, consuming the token.
+     * Parses a JSON number, consuming the token. Integers are read as int or long, only those too large for a long as
+     * BigInteger, and floats as double.
      */
-    private BigInteger parseIntegerValue() throws IOException {
-        requireToken(VALUE_NUMBER_INT);
-        final BigInteger value = jsonParser.getBigIntegerValue();
-        consumeToken();
-        return value;
-    }
-
-    /**
-     * Parses a JSON float, consuming the token.
-     */
-    private BigDecimal parseFloatValue() throws IOException {
-        requireToken(VALUE_NUMBER_FLOAT);
-        final BigDecimal value = jsonParser.getDecimalValue();
+    private Number parseNumberValue() throws IOException {
+        final Number value = jsonParser.getNumberValue();
         consumeToken();
         return value;
     }
@@ -371,6 +369,10 @@ public class ProtopPublishParser extends ComponentSupport {
      * as a string.
      */
     private String parseAttachmentData() throws IOException {
+        if (attachmentDataListener != null) {
+            attachmentDataListener.run();
+            attachmentDataListener = null;
+        }
         try {
             TempBlob tempBlob = readBinaryValueIntoTempBlob();
             String id = tempBlob.getBlob().getId().toString();
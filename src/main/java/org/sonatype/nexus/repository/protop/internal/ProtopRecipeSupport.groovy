@@ -103,20 +103,20 @@ abstract class ProtopRecipeSupport extends RecipeSupport {
                 .create())
     }
 
-//    /**
-//     * Matcher for protop package search index.
-//     */
-//    static Builder searchIndexMatcher() {
-//        new Builder().matcher(
-//                LogicMatchers.and(
-//                        new ActionMatcher(GET),
-//                        LogicMatchers.or(
-//                                new LiteralMatcher('/-/all'),
-//                                new LiteralMatcher('/-/all/since')
-//                        )
-//                )
-//        )
-//    }
+    /**
+     * Matcher for protop package search index.
+     */
+    static Builder searchIndexMatcher() {
+        new Builder().matcher(
+                LogicMatchers.and(
+                        new ActionMatcher(GET),
+                        LogicMatchers.or(
+                                new LiteralMatcher('/-/all'),
+                                new LiteralMatcher('/-/all/since')
+                        )
+                )
+        )
+    }
 
     /**
      * Matcher for protop package search.
@@ -154,6 +154,18 @@ abstract class ProtopRecipeSupport extends RecipeSupport {
         )
     }
 
+    /**
+     * Matcher for batch publish, see {@link ProtopBatchPublishRequest}.
+     */
+    static Builder batchPublishMatcher() {
+        new Builder().matcher(
+                LogicMatchers.and(
+                        new ActionMatcher(POST),
+                        new LiteralMatcher('/-/batch-publish')
+                )
+        )
+    }
+
     /**
      * Matcher for protop package metadata.
      */
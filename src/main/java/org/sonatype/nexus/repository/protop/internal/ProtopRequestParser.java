@@ -5,6 +5,7 @@ import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.google.common.annotations.VisibleForTesting;
 import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.common.app.ApplicationDirectories;
 import org.sonatype.nexus.repository.InvalidContentException;
 import org.sonatype.nexus.repository.Repository;
 import org.sonatype.nexus.repository.storage.StorageFacet;
@@ -18,14 +19,31 @@ import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.sonatype.nexus.repository.protop.internal.ProtopFacetUtils.HASH_ALGORITHMS;
+import static org.sonatype.nexus.repository.protop.internal.ProtopFacetUtils.TARBALL_HASH_ALGORITHMS;
 
 /**
  * Component for parsing various kinds of incoming protop requests, performing special optimizations as possible for the
@@ -41,35 +59,150 @@ import static org.sonatype.nexus.repository.protop.internal.ProtopFacetUtils.HAS
 @Singleton
 public class ProtopRequestParser
         extends ComponentSupport {
-    private static final JsonFactory jsonFactory = new JsonFactory();
+    // the request stream is closed by us, as it may need to be read again
+    private static final JsonFactory jsonFactory = new JsonFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
 
     private final SecuritySystem securitySystem;
 
+    private final Path temporaryDirectory;
+
     @Inject
-    public ProtopRequestParser(final SecuritySystem securitySystem) {
+    public ProtopRequestParser(final SecuritySystem securitySystem,
+                               final ApplicationDirectories applicationDirectories) {
         this.securitySystem = securitySystem;
+        this.temporaryDirectory = applicationDirectories.getTemporaryDirectory().toPath();
     }
 
     /**
      * Parses an incoming "protop publish" or "protop unpublish" request, returning the results. Note that you should probably
      * call this from within a try-with-resources block to manage the lifecycle of any temp blobs created during the
      * operation.
+     * <p>
+     * The request is parsed in a single pass as it is received, with attachments decoded straight into their temp blobs.
+     * Only when it turns out not to be valid UTF-8 is the whole request copied into a temp blob, to be parsed again as
+     * ISO-8859-1. To that end the bytes read are recorded, in memory up to the first attachment data and in a temp file
+     * of the Nexus temporary directory from there on.
      */
     public ProtopPublishRequest parsePublish(final Repository repository, final Payload payload) throws IOException {
         checkNotNull(repository);
         checkNotNull(payload);
         StorageFacet storageFacet = repository.facet(StorageFacet.class);
-        try (TempBlob tempBlob = storageFacet.createTempBlob(payload, ProtopFacetUtils.HASH_ALGORITHMS)) {
+        try (RecordingInputStream in = new RecordingInputStream(payload.openInputStream(), temporaryDirectory)) {
             try {
-                return parseProtopPublish(storageFacet, tempBlob, UTF_8);
+                return parseProtopPublish(storageFacet, in, in::spill);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
             } catch (JsonParseException e) {
                 // fallback
                 if (e.getMessage().contains("Invalid UTF-8")) {
                     // try again, but assume ISO8859-1 encoding now, that is illegal for JSON
-                    return parseProtopPublish(storageFacet, tempBlob, ISO_8859_1);
+                    try (TempBlob tempBlob = storageFacet.createTempBlob(in.replay(), HASH_ALGORITHMS)) {
+                        return parseProtopPublish(storageFacet, tempBlob, ISO_8859_1);
+                    }
+                }
+                throw new InvalidContentException("Invalid JSON input", e);
+            }
+        }
+    }
+
+    /**
+     * Parses an incoming batch publish request, see {@link ProtopBatchPublishRequest}. Note that you should probably
+     * call this from within a try-with-resources block to manage the lifecycle of any temp blobs created during the
+     * operation.
+     * <p>
+     * The request is split into its documents as it is received, each one spooled to a temp blob, then the documents
+     * are parsed and their attachments decoded into temp blobs in parallel on the given executor. Documents failing to
+     * parse do not fail the request, they are reported as failed items.
+     */
+    public ProtopBatchPublishRequest parseBatchPublish(final Repository repository,
+                                                       final Payload payload,
+                                                       final Executor executor) throws IOException {
+        checkNotNull(repository);
+        checkNotNull(payload);
+        checkNotNull(executor);
+        StorageFacet storageFacet = repository.facet(StorageFacet.class);
+        // the current user is bound to this thread, not to the executor ones
+        String userId = getUserId();
+
+        List<TempBlob> documents = new ArrayList<>();
+        try (InputStream in = payload.openInputStream()) {
+            LineSplitter lines = new LineSplitter(in);
+            for (InputStream line = lines.next(); line != null; line = lines.next()) {
+                documents.add(storageFacet.createTempBlob(line, HASH_ALGORITHMS));
+            }
+        } catch (IOException | RuntimeException e) {
+            documents.forEach(TempBlob::close);
+            throw e;
+        }
+
+        List<CompletableFuture<ProtopPublishRequest>> parsed = new ArrayList<>(documents.size());
+        for (TempBlob document : documents) {
+            CompletableFuture<ProtopPublishRequest> future;
+            try {
+                future = CompletableFuture.supplyAsync(() -> parseDocument(storageFacet, document, userId), executor);
+            } catch (RejectedExecutionException e) { // NOSONAR
+                future = new CompletableFuture<>();
+                try {
+                    future.complete(parseDocument(storageFacet, document, userId));
+                } catch (RuntimeException parseException) {
+                    future.completeExceptionally(parseException);
+                }
+            }
+            parsed.add(future);
+        }
+
+        List<ProtopBatchPublishRequest.Item> items = new ArrayList<>(parsed.size());
+        for (int i = 0; i < parsed.size(); i++) {
+            try {
+                items.add(ProtopBatchPublishRequest.Item.parsed(i, parsed.get(i).join()));
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+                cause = cause != null ? cause : e;
+                log.debug("Failed to parse batch publish document {}", i, cause);
+                items.add(ProtopBatchPublishRequest.Item.failed(i, String.valueOf(cause.getMessage())));
+            }
+        }
+        return new ProtopBatchPublishRequest(items);
+    }
+
+    /**
+     * Parses a spooled publish document, as UTF-8 first and then as ISO-8859-1 if it is not valid UTF-8, closing the
+     * document temp blob in the end.
+     */
+    private ProtopPublishRequest parseDocument(final StorageFacet storageFacet,
+                                               final TempBlob document,
+                                               @Nullable final String userId) {
+        try (TempBlob tempBlob = document) {
+            try (InputStream in = tempBlob.get()) {
+                return parseProtopPublish(storageFacet, in, null, userId);
+            } catch (JsonParseException e) {
+                if (e.getMessage().contains("Invalid UTF-8")) {
+                    return parseProtopPublish(storageFacet, tempBlob, ISO_8859_1, userId);
                 }
                 throw new InvalidContentException("Invalid JSON input", e);
             }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Parses the request as UTF-8 straight from the stream, calling back before the first attachment data is read.
+     */
+    @VisibleForTesting
+    ProtopPublishRequest parseProtopPublish(final StorageFacet storageFacet,
+                                            final InputStream in,
+                                            final Runnable attachmentDataListener) throws IOException {
+        return parseProtopPublish(storageFacet, in, attachmentDataListener, getUserId());
+    }
+
+    private ProtopPublishRequest parseProtopPublish(final StorageFacet storageFacet,
+                                                    final InputStream in,
+                                                    @Nullable final Runnable attachmentDataListener,
+                                                    @Nullable final String userId) throws IOException {
+        try (JsonParser jsonParser = jsonFactory.createParser(in)) {
+            ProtopPublishParser parser = protopPublishParserFor(jsonParser, storageFacet);
+            return parser.attachmentDataListener(attachmentDataListener).parse(userId);
         }
     }
 
@@ -77,10 +210,17 @@ public class ProtopRequestParser
     ProtopPublishRequest parseProtopPublish(final StorageFacet storageFacet,
                                             final TempBlob tempBlob,
                                             final Charset charset) throws IOException {
+        return parseProtopPublish(storageFacet, tempBlob, charset, getUserId());
+    }
+
+    private ProtopPublishRequest parseProtopPublish(final StorageFacet storageFacet,
+                                                    final TempBlob tempBlob,
+                                                    final Charset charset,
+                                                    @Nullable final String userId) throws IOException {
         try (InputStreamReader reader = new InputStreamReader(tempBlob.get(), charset)) {
             try (JsonParser jsonParser = jsonFactory.createParser(reader)) {
                 ProtopPublishParser parser = protopPublishParserFor(jsonParser, storageFacet);
-                return parser.parse(getUserId());
+                return parser.parse(userId);
             }
         }
     }
@@ -98,6 +238,201 @@ public class ProtopRequestParser
 
     @VisibleForTesting
     ProtopPublishParser protopPublishParserFor(final JsonParser jsonParser, final StorageFacet storageFacet) {
-        return new ProtopPublishParser(jsonParser, storageFacet, HASH_ALGORITHMS);
+        return new ProtopPublishParser(jsonParser, storageFacet, TARBALL_HASH_ALGORITHMS);
+    }
+
+    /**
+     * Keeps a copy of the bytes read from the request, so it can be read again from the start. The copy is kept in
+     * memory until told to spill it into a temp file of given directory, which happens once the (large) attachment data
+     * is reached.
+     */
+    @VisibleForTesting
+    static class RecordingInputStream
+            extends FilterInputStream {
+        private final Path spoolDirectory;
+
+        @Nullable
+        private ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+
+        @Nullable
+        private Path spool;
+
+        @Nullable
+        private OutputStream spoolOut;
+
+        private boolean replayed;
+
+        RecordingInputStream(final InputStream in, final Path spoolDirectory) {
+            super(in);
+            this.spoolDirectory = checkNotNull(spoolDirectory);
+        }
+
+        /**
+         * Moves the recording out of memory into a temp file, where the bytes read from now on are recorded too.
+         */
+        void spill() {
+            if (spool != null || recorded == null) {
+                return;
+            }
+            try {
+                spool = Files.createTempFile(spoolDirectory, "protop-publish-", ".json");
+                spoolOut = new BufferedOutputStream(Files.newOutputStream(spool));
+                recorded.writeTo(spoolOut);
+                recorded = null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Returns the request from the start, with the recorded bytes followed by the bytes not read yet. Recording
+         * stops, the request can be replayed once only.
+         */
+        InputStream replay() throws IOException {
+            checkState(!replayed, "Already replayed");
+            replayed = true;
+            InputStream recordedIn;
+            if (spoolOut != null) {
+                spoolOut.close();
+                spoolOut = null;
+                recordedIn = Files.newInputStream(spool);
+            } else {
+                recordedIn = new ByteArrayInputStream(recorded.toByteArray());
+                recorded = null;
+            }
+            return new SequenceInputStream(recordedIn, in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                record(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                record(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            // skipped bytes are to be replayed too
+            int length = (int) Math.min(Math.max(n, 0), 8192);
+            return Math.max(read(new byte[length], 0, length), 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (spoolOut != null) {
+                    spoolOut.close();
+                }
+                if (spool != null) {
+                    Files.deleteIfExists(spool);
+                }
+            }
+        }
+
+        private void record(final byte[] b, final int off, final int len) throws IOException {
+            if (replayed) {
+                return;
+            }
+            if (spoolOut != null) {
+                spoolOut.write(b, off, len);
+            } else {
+                recorded.write(b, off, len);
+            }
+        }
+    }
+
+    /**
+     * Splits a stream of newline delimited documents, handing out each document as a stream of its own, which must be
+     * read to its end before asking for the next one. Blank lines are skipped.
+     */
+    @VisibleForTesting
+    static class LineSplitter {
+        private final InputStream in;
+
+        private final byte[] buffer = new byte[8192];
+
+        private int position;
+
+        private int limit;
+
+        LineSplitter(final InputStream in) {
+            this.in = checkNotNull(in);
+        }
+
+        /**
+         * Returns the next document, or {@code null} when the stream ended.
+         */
+        @Nullable
+        InputStream next() throws IOException {
+            while (true) {
+                if (position == limit && !fill()) {
+                    return null;
+                }
+                if (!Character.isWhitespace(buffer[position])) {
+                    break;
+                }
+                position++;
+            }
+            return new InputStream() {
+                private boolean ended;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException {
+                    if (ended) {
+                        return -1;
+                    }
+                    if (len == 0) {
+                        return 0;
+                    }
+                    if (position == limit && !fill()) {
+                        ended = true;
+                        return -1;
+                    }
+                    int end = position;
+                    int max = Math.min(limit, position + len);
+                    while (end < max && buffer[end] != '\n') {
+                        end++;
+                    }
+                    int read = end - position;
+                    System.arraycopy(buffer, position, b, off, read);
+                    position = end;
+                    if (position < limit && buffer[position] == '\n') {
+                        position++;
+                        ended = true;
+                    }
+                    return read == 0 && ended ? -1 : read;
+                }
+            };
+        }
+
+        private boolean fill() throws IOException {
+            position = 0;
+            limit = Math.max(in.read(buffer), 0);
+            return limit > 0;
+        }
     }
 }
@@ -0,0 +1,20 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import org.joda.time.DateTime;
+import org.sonatype.nexus.repository.Facet;
+import org.sonatype.nexus.repository.view.Content;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+
+/**
+ * Facet for the protop "/-/all" search index.
+ */
+@Facet.Exposed
+public interface ProtopSearchIndexFacet extends Facet {
+
+    /**
+     * Fetches the search index document, filtered to packages modified since given timestamp unless it is {@code null}.
+     */
+    Content searchIndex(@Nullable final DateTime since) throws IOException;
+}
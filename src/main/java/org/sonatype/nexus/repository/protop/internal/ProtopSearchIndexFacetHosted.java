@@ -0,0 +1,353 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.joda.time.DateTime;
+import org.sonatype.nexus.blobstore.api.Blob;
+import org.sonatype.nexus.blobstore.api.BlobRef;
+import org.sonatype.nexus.common.app.ApplicationDirectories;
+import org.sonatype.nexus.common.collect.AttributesMap;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.common.stateguard.Guarded;
+import org.sonatype.nexus.repository.FacetSupport;
+import org.sonatype.nexus.repository.protop.internal.ProtopAttributes.AssetKind;
+import org.sonatype.nexus.repository.storage.*;
+import org.sonatype.nexus.repository.transaction.TransactionalStoreBlob;
+import org.sonatype.nexus.repository.transaction.TransactionalTouchBlob;
+import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.transaction.UnitOfWork;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.joda.time.DateTime.now;
+import static org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport.State.STARTED;
+import static org.sonatype.nexus.repository.protop.internal.ProtopFacetUtils.*;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.DIST_TAGS;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.TIME;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.VERSIONS;
+import static org.sonatype.nexus.repository.protop.internal.ProtopSearchIndexFilter.MODIFIED;
+import static org.sonatype.nexus.repository.protop.internal.ProtopSearchIndexFilter.UPDATED;
+import static org.sonatype.nexus.repository.storage.AssetEntityAdapter.P_ASSET_KIND;
+
+/**
+ * Implementation of {@link ProtopSearchIndexFacet} for hosted repositories. The index is built once by streaming a
+ * summary of every package root into the repository root asset, and from then on kept up to date as package roots
+ * change. Builds and updates are serialized, so concurrent reads of a missing index build it only once.
+ * <p>
+ * Updates are applied by a single background worker: packages whose package root blob changed are queued, and all
+ * packages queued while the index is being rewritten are applied together in the next rewrite, so a burst of publishes
+ * costs a few rewrites of the index rather than one per publish. Updates of package roots keeping their blob, like
+ * those recording downloads, are not queued.
+ */
+@Named
+public class ProtopSearchIndexFacetHosted
+        extends FacetSupport
+        implements ProtopSearchIndexFacet {
+    private static final List<String> SUMMARY_FIELDS = ImmutableList.of(
+            ProtopAttributes.P_NAME, "description", DIST_TAGS, "maintainers", "keywords");
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final Object indexLock = new Object();
+
+    private final Set<ProtopProjectId> pendingUpdates = ConcurrentHashMap.newKeySet();
+
+    private final AtomicBoolean updateScheduled = new AtomicBoolean();
+
+    private Path temporaryDirectory;
+
+    private int trackedPackages;
+
+    @Nullable
+    private Cache<ProtopProjectId, BlobRef> indexedBlobRefs;
+
+    @Nullable
+    private ThreadPoolExecutor updateExecutor;
+
+    @Inject
+    protected void configureTemporaryDirectory(final ApplicationDirectories applicationDirectories) {
+        this.temporaryDirectory = applicationDirectories.getTemporaryDirectory().toPath();
+    }
+
+    /**
+     * The package root blobs last queued are remembered for up to this many packages, updates of package roots still
+     * having that blob are not queued.
+     */
+    @Inject
+    protected void configureSearchIndexUpdates(
+            @Named("${nexus.protop.hosted.searchIndex.trackedPackages:-10000}") final int trackedPackages) {
+        this.trackedPackages = trackedPackages;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        this.indexedBlobRefs = CacheBuilder.newBuilder().maximumSize(trackedPackages).build();
+        // one rewrite running and at most one queued, updates scheduled meanwhile are picked up by the queued one
+        this.updateExecutor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("protop-search-index-" + getRepository().getName() + "-%d")
+                        .setDaemon(true)
+                        .build());
+        this.updateExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (updateExecutor != null) {
+            updateExecutor.shutdown();
+            updateExecutor = null;
+        }
+        indexedBlobRefs = null;
+        super.doStop();
+    }
+
+    @Override
+    public Content searchIndex(@Nullable final DateTime since) throws IOException {
+        Content index = findIndex();
+        if (index == null) {
+            synchronized (indexLock) {
+                index = getOrBuildIndex();
+            }
+        }
+        return ProtopSearchIndexFilter.filterModifiedSince(index, since);
+    }
+
+    @Nullable
+    @TransactionalTouchBlob
+    protected Content findIndex() {
+        StorageTx tx = UnitOfWork.currentTx();
+        Asset asset = findRepositoryRootAsset(tx, tx.findBucket(getRepository()));
+        return asset != null ? toContent(asset, tx.requireBlob(asset.requireBlobRef())) : null;
+    }
+
+    @TransactionalStoreBlob
+    protected Content getOrBuildIndex() throws IOException {
+        StorageTx tx = UnitOfWork.currentTx();
+        Bucket bucket = tx.findBucket(getRepository());
+        Asset asset = findRepositoryRootAsset(tx, bucket);
+        if (asset != null) {
+            // built by the read holding the lock before
+            return toContent(asset, tx.requireBlob(asset.requireBlobRef()));
+        }
+
+        log.debug("Building search index of {}", getRepository().getName());
+        Path index = Files.createTempFile(temporaryDirectory, "protop-search-index-", ".json");
+        try {
+            try (OutputStream out = Files.newOutputStream(index)) {
+                writeIndex(tx, bucket, out);
+            }
+            asset = tx.createAsset(bucket, getRepository().getFormat()).name(REPOSITORY_ROOT_ASSET);
+            return saveIndex(tx, asset, index);
+        } finally {
+            Files.deleteIfExists(index);
+        }
+    }
+
+    /**
+     * Replaces the entries of given packages in the index with the summaries of their package roots, or drops those
+     * whose package root is gone, in a single rewrite of the index. The other entries are copied over unparsed. Nothing
+     * is done while the index was not built, as building it will take the package roots as they are then.
+     */
+    @TransactionalStoreBlob
+    protected void doUpdateSearchIndex(final Collection<ProtopProjectId> packageIds) throws IOException {
+        StorageTx tx = UnitOfWork.currentTx();
+        Bucket bucket = tx.findBucket(getRepository());
+        Asset asset = findRepositoryRootAsset(tx, bucket);
+        if (asset == null) {
+            return;
+        }
+        Map<String, Map<String, Object>> summaries = new LinkedHashMap<>();
+        for (ProtopProjectId packageId : packageIds) {
+            Asset packageRootAsset = findPackageRootAsset(tx, bucket, packageId);
+            summaries.put(packageId.id(),
+                    packageRootAsset != null ? summary(loadPackageRoot(tx, packageRootAsset)) : null);
+        }
+
+        Blob blob = tx.requireBlob(asset.requireBlobRef());
+        Path index = Files.createTempFile(temporaryDirectory, "protop-search-index-", ".json");
+        try {
+            try (InputStream in = blob.getInputStream(); OutputStream out = Files.newOutputStream(index)) {
+                ProtopSearchIndexFilter.replace(in, out, summaries, now().getMillis());
+            }
+            saveIndex(tx, asset, index);
+        } finally {
+            Files.deleteIfExists(index);
+        }
+    }
+
+    private Content saveIndex(final StorageTx tx, final Asset asset, final Path index) throws IOException {
+        AttributesMap attributes = new AttributesMap();
+        attributes.set(Content.CONTENT_LAST_MODIFIED, now());
+        Content.applyToAsset(asset, attributes);
+        AssetBlob assetBlob = storeContent(tx, asset, () -> {
+            try {
+                return Files.newInputStream(index);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, AssetKind.REPOSITORY_ROOT);
+        tx.saveAsset(asset);
+        return toContent(asset, assetBlob.getBlob());
+    }
+
+    /**
+     * Writes the index, one package root summary at a time.
+     */
+    private void writeIndex(final StorageTx tx, final Bucket bucket, final OutputStream out) throws IOException {
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeNumberField(UPDATED, now().getMillis());
+            for (ProtopProjectId packageId : findAllPackageNames(tx, bucket)) {
+                Asset packageRootAsset = findPackageRootAsset(tx, bucket, packageId);
+                if (packageRootAsset == null) {
+                    continue;
+                }
+                generator.writeObjectField(packageId.id(), summary(loadPackageRoot(tx, packageRootAsset)));
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    private static Map<String, Object> summary(final NestedAttributesMap packageRoot) {
+        NestedAttributesMap summary = new NestedAttributesMap("summary", new LinkedHashMap<>());
+        for (String field : SUMMARY_FIELDS) {
+            Object value = packageRoot.get(field);
+            if (value != null) {
+                summary.set(field, value);
+            }
+        }
+        Object modified = packageRoot.child(TIME).get(MODIFIED);
+        if (modified != null) {
+            summary.child(TIME).set(MODIFIED, modified);
+        }
+        // like the registry, versions only lists the tagged versions
+        NestedAttributesMap distTags = packageRoot.child(DIST_TAGS);
+        NestedAttributesMap versions = packageRoot.child(VERSIONS);
+        for (String tag : distTags.keys()) {
+            Object version = distTags.get(tag);
+            if (version instanceof String && versions.contains((String) version)) {
+                summary.child(VERSIONS).set((String) version, tag);
+            }
+        }
+        return summary.backing();
+    }
+
+    @Subscribe
+    @Guarded(by = STARTED)
+    @AllowConcurrentEvents
+    public void on(final AssetCreatedEvent created) {
+        if (matchingEvent(created)) {
+            scheduleUpdate(created.getAsset(), created.getAsset().blobRef());
+        }
+    }
+
+    @Subscribe
+    @Guarded(by = STARTED)
+    @AllowConcurrentEvents
+    public void on(final AssetDeletedEvent deleted) {
+        if (matchingEvent(deleted)) {
+            scheduleUpdate(deleted.getAsset(), null);
+        }
+    }
+
+    @Subscribe
+    @Guarded(by = STARTED)
+    @AllowConcurrentEvents
+    public void on(final AssetUpdatedEvent updated) {
+        if (matchingEvent(updated)) {
+            scheduleUpdate(updated.getAsset(), updated.getAsset().blobRef());
+        }
+    }
+
+    /**
+     * Queues the package of given package root for the next rewrite of the index, unless its blob is the one queued
+     * last, scheduling the rewrite unless one is already queued.
+     */
+    @VisibleForTesting
+    void scheduleUpdate(final Asset packageRootAsset, @Nullable final BlobRef blobRef) {
+        ProtopProjectId packageId = ProtopProjectId.parse(packageRootAsset.name());
+        Cache<ProtopProjectId, BlobRef> blobRefs = indexedBlobRefs;
+        if (blobRefs != null) {
+            if (blobRef != null && Objects.equals(blobRef, blobRefs.getIfPresent(packageId))) {
+                log.trace("Package root blob of {} unchanged, search index not updated", packageId);
+                return;
+            }
+            if (blobRef != null) {
+                blobRefs.put(packageId, blobRef);
+            } else {
+                blobRefs.invalidate(packageId);
+            }
+        }
+        pendingUpdates.add(packageId);
+        ThreadPoolExecutor executor = updateExecutor;
+        if (executor != null && updateScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::applyPendingUpdates);
+            } catch (RejectedExecutionException e) { // NOSONAR
+                // stopping, the index is brought up to date by the package roots as they are when next started
+                updateScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Applies the updates queued so far in a single rewrite of the index.
+     */
+    @VisibleForTesting
+    void applyPendingUpdates() {
+        // cleared before taking the queue, so packages queued from now on schedule the next rewrite
+        updateScheduled.set(false);
+        List<ProtopProjectId> packageIds = new ArrayList<>(pendingUpdates);
+        if (packageIds.isEmpty()) {
+            return;
+        }
+        pendingUpdates.removeAll(packageIds);
+        synchronized (indexLock) {
+            UnitOfWork.begin(getRepository().facet(StorageFacet.class).txSupplier());
+            try {
+                doUpdateSearchIndex(packageIds);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not update search index of {} for {} packages", getRepository().getName(),
+                        packageIds.size(), e);
+            } finally {
+                UnitOfWork.end();
+            }
+        }
+    }
+
+    private boolean matchingEvent(final AssetEvent event) {
+        // only make DB changes on the originating node, as orient will also replicate those for us
+        return event.isLocal()
+                && getRepository().getName().equals(event.getRepositoryName())
+                && AssetKind.PACKAGE_ROOT.name().equals(event.getAsset().formatAttributes().get(P_ASSET_KIND));
+    }
+}
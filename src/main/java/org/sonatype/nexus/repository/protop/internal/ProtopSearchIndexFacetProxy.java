@@ -0,0 +1,41 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import org.joda.time.DateTime;
+import org.sonatype.nexus.repository.FacetSupport;
+import org.sonatype.nexus.repository.protop.internal.ProtopProxyFacetImpl.ProxyTarget;
+import org.sonatype.nexus.repository.proxy.ProxyFacet;
+import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.Request;
+
+import javax.annotation.Nullable;
+import javax.inject.Named;
+import java.io.IOException;
+
+import static org.sonatype.nexus.repository.http.HttpMethods.GET;
+
+/**
+ * Implementation of {@link ProtopSearchIndexFacet} for proxy repositories. The full upstream index is cached as the
+ * repository root asset by the proxy facet, incremental requests are answered by filtering it.
+ */
+@Named
+public class ProtopSearchIndexFacetProxy
+        extends FacetSupport
+        implements ProtopSearchIndexFacet {
+
+    @Override
+    public Content searchIndex(@Nullable final DateTime since) throws IOException {
+        final Request getRequest = new Request.Builder()
+                .action(GET)
+                .path("/" + ProtopFacetUtils.REPOSITORY_ROOT_ASSET)
+                .build();
+
+        Context context = new Context(getRepository(), getRequest);
+        context.getAttributes().set(ProxyTarget.class, ProxyTarget.SEARCH_INDEX);
+        Content fullIndex = getRepository().facet(ProxyFacet.class).get(context);
+        if (fullIndex == null) {
+            throw new IOException("Could not retrieve registry root");
+        }
+        return ProtopSearchIndexFilter.filterModifiedSince(fullIndex, since);
+    }
+}
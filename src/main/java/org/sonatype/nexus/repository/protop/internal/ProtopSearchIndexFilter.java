@@ -0,0 +1,170 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.joda.time.DateTime;
+import org.sonatype.nexus.repository.cache.CacheInfo;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.payloads.StreamPayload;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+
+import static com.fasterxml.jackson.core.JsonGenerator.Feature.AUTO_CLOSE_TARGET;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.TIME;
+import static org.sonatype.nexus.repository.view.ContentTypes.APPLICATION_JSON;
+
+/**
+ * Streaming filter of the "/-/all" search index document. The index is a single JSON object mapping package names to
+ * package summaries (plus the "_updated" timestamp), and is filtered one entry at a time while being streamed out, so
+ * only a single package summary is held in memory.
+ */
+public final class ProtopSearchIndexFilter {
+    static final String UPDATED = "_updated";
+
+    static final String MODIFIED = "modified";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private ProtopSearchIndexFilter() {
+        // nop
+    }
+
+    /**
+     * Filters the full index to packages modified since given timestamp. When {@code since} is {@code null} the full
+     * index is returned as is.
+     */
+    public static Content filterModifiedSince(final Content fullIndex, @Nullable final DateTime since) {
+        checkNotNull(fullIndex);
+        if (since == null) {
+            return fullIndex;
+        }
+
+        Content filtered = new Content(new FilteringPayload(fullIndex, since));
+        // the filtered document differs per since, so it carries none of the validators of the stored one, lest a
+        // conditional request for another since is answered with 304
+        filtered.getAttributes().set(Asset.class, fullIndex.getAttributes().get(Asset.class));
+        filtered.getAttributes().set(CacheInfo.class, fullIndex.getAttributes().get(CacheInfo.class));
+        return filtered;
+    }
+
+    /**
+     * Copies the index from input to output, dropping entries not modified since given timestamp. Entries without a
+     * parsable "time.modified" are kept.
+     */
+    static void filter(final InputStream input, final OutputStream output, final DateTime since) throws IOException {
+        JsonFactory factory = mapper.getFactory();
+        try (JsonParser parser = factory.createParser(input);
+             JsonGenerator generator = factory.createGenerator(output).disable(AUTO_CLOSE_TARGET)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Search index is not a JSON object");
+            }
+            generator.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value != JsonToken.START_OBJECT) {
+                    // top level scalars, like _updated
+                    generator.writeFieldName(fieldName);
+                    generator.copyCurrentStructure(parser);
+                    continue;
+                }
+                JsonNode entry = mapper.readTree(parser);
+                if (isModifiedSince(entry, since)) {
+                    generator.writeFieldName(fieldName);
+                    mapper.writeTree(generator, entry);
+                }
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Copies the index from input to output, replacing the entry of given package with given summary, or dropping it
+     * when {@code summary} is {@code null}, and setting "_updated" to given timestamp. Other entries are copied as
+     * they are, without being parsed into trees.
+     */
+    static void replace(final InputStream input,
+                        final OutputStream output,
+                        final String packageName,
+                        @Nullable final Map<String, Object> summary,
+                        final long updated) throws IOException {
+        replace(input, output, Collections.singletonMap(packageName, summary), updated);
+    }
+
+    /**
+     * Copies the index from input to output, replacing the entries of the packages of given summaries, or dropping
+     * those mapped to {@code null}, and setting "_updated" to given timestamp, so any number of packages is updated in
+     * a single pass over the index.
+     */
+    static void replace(final InputStream input,
+                        final OutputStream output,
+                        final Map<String, Map<String, Object>> summaries,
+                        final long updated) throws IOException {
+        JsonFactory factory = mapper.getFactory();
+        try (JsonParser parser = factory.createParser(input);
+             JsonGenerator generator = factory.createGenerator(output).disable(AUTO_CLOSE_TARGET)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Search index is not a JSON object");
+            }
+            generator.writeStartObject();
+            generator.writeNumberField(UPDATED, updated);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                if (UPDATED.equals(fieldName) || summaries.containsKey(fieldName)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                generator.writeFieldName(fieldName);
+                generator.copyCurrentStructure(parser);
+            }
+            for (Map.Entry<String, Map<String, Object>> summary : summaries.entrySet()) {
+                if (summary.getValue() != null) {
+                    generator.writeObjectField(summary.getKey(), summary.getValue());
+                }
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    private static boolean isModifiedSince(final JsonNode entry, final DateTime since) {
+        JsonNode modified = entry.path(TIME).path(MODIFIED);
+        if (!modified.isTextual()) {
+            return true;
+        }
+        try {
+            return !DateTime.parse(modified.textValue()).isBefore(since);
+        } catch (IllegalArgumentException e) { // NOSONAR
+            return true;
+        }
+    }
+
+    private static class FilteringPayload
+            extends StreamPayload {
+        private final DateTime since;
+
+        FilteringPayload(final Content fullIndex, final DateTime since) {
+            super(fullIndex::openInputStream, UNKNOWN_SIZE, APPLICATION_JSON);
+            this.since = since;
+        }
+
+        @Override
+        public void copy(final InputStream input, final OutputStream output) throws IOException {
+            BufferedOutputStream buffered = new BufferedOutputStream(output);
+            filter(input, buffered, since);
+            buffered.flush();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import com.google.common.collect.ImmutableMap;
+import org.sonatype.nexus.blobstore.api.BlobRef;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.repository.storage.Asset;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.sonatype.nexus.repository.protop.internal.ProtopJsonUtils.mapper;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.VERSIONS;
+
+/**
+ * Sharded storage layout of a package root, for packages having many versions. Each version document is stored as its
+ * own asset next to the package root, while the package root asset only holds the header: everything but "versions",
+ * that is dist-tags, time and the hoisted fields. The version documents are listed, in order, in the format
+ * attributes of the package root asset along with their blob references and SHA-1, so the full package root is
+ * assembled by streaming concatenation of the blobs, without any lookups or parsing.
+ * <p>
+ * Publishing a version hence only writes the new version document and the small header, instead of the whole package
+ * root.
+ */
+public final class ProtopShardedPackageRoot {
+    private static final String VERSION_ASSET_NAME_INFIX = "/-/versions/";
+
+    private static final String VERSION_ASSET_NAME_SUFFIX = ".json";
+
+    private static final String VERSION = "version";
+
+    private static final String BLOB_REF = "blob_ref";
+
+    private static final String SHA1 = "sha1";
+
+    private ProtopShardedPackageRoot() {
+        // nop
+    }
+
+    /**
+     * Returns {@code true} if the package root asset holds only the header of a sharded package root.
+     */
+    static boolean isSharded(final Asset packageRootAsset) {
+        return packageRootAsset.formatAttributes().contains(ProtopAttributes.P_VERSION_SHARDS);
+    }
+
+    /**
+     * Returns {@code true} if the package root has enough versions to be sharded, a threshold of zero or less disables
+     * sharding.
+     */
+    static boolean shouldShard(final NestedAttributesMap packageRoot, final int threshold) {
+        return threshold > 0 && packageRoot.contains(VERSIONS) && packageRoot.child(VERSIONS).size() >= threshold;
+    }
+
+    /**
+     * Formats the name of the asset holding a version document, out of the name of the package root asset.
+     */
+    static String versionAssetName(final String packageRootAssetName, final String version) {
+        return packageRootAssetName + VERSION_ASSET_NAME_INFIX + version + VERSION_ASSET_NAME_SUFFIX;
+    }
+
+    /**
+     * Parses the name of the package root asset out of the name of an asset holding a version document.
+     */
+    static String packageRootAssetName(final String versionAssetName) {
+        int infix = versionAssetName.lastIndexOf(VERSION_ASSET_NAME_INFIX);
+        checkArgument(infix > 0, "Not a version document: %s", versionAssetName);
+        return versionAssetName.substring(0, infix);
+    }
+
+    /**
+     * Parses the version out of the name of an asset holding a version document.
+     */
+    static String version(final String versionAssetName) {
+        int infix = versionAssetName.lastIndexOf(VERSION_ASSET_NAME_INFIX);
+        checkArgument(infix > 0 && versionAssetName.endsWith(VERSION_ASSET_NAME_SUFFIX),
+                "Not a version document: %s", versionAssetName);
+        return versionAssetName.substring(infix + VERSION_ASSET_NAME_INFIX.length(),
+                versionAssetName.length() - VERSION_ASSET_NAME_SUFFIX.length());
+    }
+
+    /**
+     * Returns the version documents of the sharded package root, by version, in order.
+     */
+    static Map<String, VersionShard> shards(final Asset packageRootAsset) {
+        Map<String, VersionShard> shards = new LinkedHashMap<>();
+        Object attribute = packageRootAsset.formatAttributes().get(ProtopAttributes.P_VERSION_SHARDS);
+        if (attribute instanceof List) {
+            for (Object entry : (List<?>) attribute) {
+                if (entry instanceof Map) {
+                    Map<?, ?> shard = (Map<?, ?>) entry;
+                    String version = String.valueOf(shard.get(VERSION));
+                    shards.put(version, new VersionShard(version, BlobRef.parse(String.valueOf(shard.get(BLOB_REF))),
+                            String.valueOf(shard.get(SHA1))));
+                }
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Lists the version documents in the format attributes of the package root asset, marking it sharded.
+     */
+    static void shards(final Asset packageRootAsset, final Map<String, VersionShard> shards) {
+        List<Map<String, String>> attribute = new ArrayList<>(shards.size());
+        for (VersionShard shard : shards.values()) {
+            attribute.add(ImmutableMap.of(VERSION, shard.version, BLOB_REF, shard.blobRef.toString(), SHA1, shard.sha1));
+        }
+        packageRootAsset.formatAttributes().set(ProtopAttributes.P_VERSION_SHARDS, attribute);
+    }
+
+    /**
+     * Assembles the full package root out of its header and version documents, as a stream concatenating the header
+     * fields after a "versions" object made of the version documents. Version blobs are opened one at a time, as the
+     * stream reaches them.
+     */
+    static InputStream assemble(final byte[] header,
+                                final Iterable<VersionShard> shards,
+                                final Function<BlobRef, InputStream> blobs) {
+        int start = 0;
+        while (start < header.length && Character.isWhitespace(header[start])) {
+            start++;
+        }
+        checkArgument(start < header.length && header[start] == '{', "Package root header is not an object");
+        String rest = new String(header, start + 1, header.length - start - 1, UTF_8).trim();
+
+        List<Supplier<InputStream>> parts = new ArrayList<>();
+        parts.add(() -> bytes("{\"" + VERSIONS + "\":{"));
+        String separator = "";
+        for (VersionShard shard : shards) {
+            String key = separator + quote(shard.version) + ":";
+            parts.add(() -> bytes(key));
+            parts.add(() -> blobs.apply(shard.blobRef));
+            separator = ",";
+        }
+        parts.add(() -> bytes(rest.startsWith("}") ? "}" + rest : "}," + rest));
+
+        Iterator<Supplier<InputStream>> iterator = parts.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                return iterator.next().get();
+            }
+        });
+    }
+
+    private static InputStream bytes(final String content) {
+        return new ByteArrayInputStream(content.getBytes(UTF_8));
+    }
+
+    private static String quote(final String version) {
+        try {
+            return mapper.writeValueAsString(version);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * A version document of a sharded package root.
+     */
+    static final class VersionShard {
+        final String version;
+
+        final BlobRef blobRef;
+
+        final String sha1;
+
+        VersionShard(final String version, final BlobRef blobRef, final String sha1) {
+            this.version = checkNotNull(version);
+            this.blobRef = checkNotNull(blobRef);
+            this.sha1 = checkNotNull(sha1);
+        }
+    }
+}
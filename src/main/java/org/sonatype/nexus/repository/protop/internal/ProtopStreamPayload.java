@@ -1,11 +1,15 @@
 package org.sonatype.nexus.repository.protop.internal;
 
+import com.google.common.io.ByteStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonatype.nexus.repository.storage.MissingAssetBlobException;
 import org.sonatype.nexus.repository.view.payloads.StreamPayload;
 
+import javax.annotation.Nullable;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -37,8 +41,28 @@ public class ProtopStreamPayload
 
     private InputStreamFunction<MissingAssetBlobException> missingBlobInputStreamSupplier;
 
+    private boolean rendered;
+
     public ProtopStreamPayload(final InputStreamSupplier supplier) {
-        super(supplier, UNKNOWN_SIZE, APPLICATION_JSON);
+        this(supplier, APPLICATION_JSON);
+    }
+
+    public ProtopStreamPayload(final InputStreamSupplier supplier, final String contentType) {
+        super(supplier, UNKNOWN_SIZE, contentType);
+    }
+
+    private ProtopStreamPayload(final InputStreamSupplier supplier, final long size, final String contentType) {
+        super(supplier, size, contentType);
+    }
+
+    /**
+     * Creates a payload out of bytes already rendered by {@link #render()}, which are copied out as they are.
+     */
+    static ProtopStreamPayload rendered(final byte[] bytes, @Nullable final String contentType) {
+        ProtopStreamPayload payload = new ProtopStreamPayload(() -> new ByteArrayInputStream(bytes), bytes.length,
+                contentType);
+        payload.rendered = true;
+        return payload;
     }
 
     public ProtopStreamPayload packageId(final String packageId) {
@@ -80,8 +104,27 @@ public class ProtopStreamPayload
         }
     }
 
+    /**
+     * Renders the payload as {@link #copy(InputStream, OutputStream)} would stream it out, or returns {@code null} if
+     * the blob is missing, leaving the recovery to whoever serves the payload.
+     */
+    @Nullable
+    byte[] render() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = super.openInputStream()) {
+            copy(in, bytes);
+        } catch (MissingAssetBlobException e) { // NOSONAR
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
     @Override
     public void copy(final InputStream input, final OutputStream output) throws IOException {
+        if (rendered) {
+            ByteStreams.copy(input, output);
+            return;
+        }
         new ProtopStreamingObjectMapper(packageId, revId, nonNull(fieldMatchers) ? fieldMatchers : emptyList())
                 .configure(FLUSH_AFTER_WRITE_VALUE, false) // we don't want the object mapper to flush all the time
                 .disable(AUTO_CLOSE_TARGET)
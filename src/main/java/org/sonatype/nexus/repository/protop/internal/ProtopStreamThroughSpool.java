@@ -0,0 +1,207 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonatype.goodies.common.Time;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Spool of an upstream stream to a local file, which is written by a single producer while any number of readers
+ * stream it out concurrently, blocking only when they caught up with the producer. This allows sending upstream
+ * bytes to clients at the same moment they are being persisted.
+ * <p>
+ * Producer and every opened reader hold a reference to the spool, the file is deleted once all of them released it.
+ * The producer must either complete the spool or {@link #fail(Throwable)} it, readers not seeing the producer advance
+ * within the read timeout give up.
+ */
+class ProtopStreamThroughSpool {
+    private static final Logger log = LoggerFactory.getLogger(ProtopStreamThroughSpool.class);
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Path file;
+
+    private final long readTimeoutMillis;
+
+    private long written;
+
+    private boolean complete;
+
+    private Throwable failure;
+
+    private int references = 1;
+
+    ProtopStreamThroughSpool(final Path file, final Time readTimeout) {
+        this.file = checkNotNull(file);
+        this.readTimeoutMillis = readTimeout.toMillis();
+    }
+
+    /**
+     * Creates a spool backed by a new temporary file in the given directory, the caller holds the producer reference.
+     */
+    static ProtopStreamThroughSpool create(final Path directory, final Time readTimeout) throws IOException {
+        return new ProtopStreamThroughSpool(Files.createTempFile(directory, "protop-stream-through-", ".json"),
+                readTimeout);
+    }
+
+    /**
+     * Copies given upstream into the spool, making bytes visible to readers as they arrive. Must be called once, by the
+     * producer.
+     */
+    void transfer(final InputStream upstream) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = upstream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                out.flush();
+                advance(read);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            throw e;
+        }
+        finish();
+    }
+
+    /**
+     * Opens a new reader, which streams the spool from the beginning, following the producer until it completes.
+     * Returns {@code null} if the spool was already released by everyone and its file is gone.
+     */
+    @Nullable
+    InputStream openReader() throws IOException {
+        synchronized (this) {
+            if (references <= 0) {
+                return null;
+            }
+            references++;
+        }
+        try {
+            return new Reader(new RandomAccessFile(file.toFile(), "r"));
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Releases one reference to this spool, deleting the spool file when no references are left.
+     */
+    void release() {
+        synchronized (this) {
+            references--;
+            if (references > 0) {
+                return;
+            }
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Unable to delete stream through spool {}", file, e);
+        }
+    }
+
+    private synchronized void advance(final int count) {
+        written += count;
+        notifyAll();
+    }
+
+    private synchronized void finish() {
+        complete = true;
+        notifyAll();
+    }
+
+    /**
+     * Fails the spool, readers waiting for more bytes and readers opened afterwards get an {@link IOException}. Has no
+     * effect once the spool completed or failed already.
+     */
+    synchronized void fail(final Throwable cause) {
+        if (!complete && failure == null) {
+            failure = checkNotNull(cause);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until more than {@code position} bytes are available, returns the available byte count or {@code -1} when
+     * the spool completed at {@code position}. Gives up when the producer does not advance within the read timeout.
+     */
+    private synchronized long awaitAvailable(final long position) throws IOException {
+        long deadline = System.currentTimeMillis() + readTimeoutMillis;
+        while (written <= position && !complete && failure == null) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new InterruptedIOException("Timed out waiting for upstream after " + readTimeoutMillis + " ms");
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for upstream", e);
+            }
+        }
+        if (failure != null) {
+            throw new IOException("Upstream transfer failed", failure);
+        }
+        return written > position ? written - position : -1;
+    }
+
+    private class Reader
+            extends InputStream {
+        private final RandomAccessFile raf;
+
+        private long position;
+
+        private boolean closed;
+
+        Reader(final RandomAccessFile raf) {
+            this.raf = raf;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long available = awaitAvailable(position);
+            if (available == -1) {
+                return -1;
+            }
+            raf.seek(position);
+            int read = raf.read(b, off, (int) Math.min(len, available));
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                try {
+                    raf.close();
+                } finally {
+                    release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import com.google.common.base.Strings;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.repository.storage.Asset;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_SHASUM;
+import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_TARBALL_INDEX;
+import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_URL;
+import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_VERSION;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.DIST;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.TARBALL;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.VERSIONS;
+import static org.sonatype.nexus.repository.protop.internal.ProtopMetadataUtils.extractTarballName;
+
+/**
+ * Compact tarball name to (version, upstream URL, shasum) index, kept in the format attributes of a package root
+ * asset. Allows resolving the upstream URL of a tarball without loading and parsing the package root blob.
+ */
+public final class ProtopTarballIndex {
+    private ProtopTarballIndex() {
+        // nop
+    }
+
+    /**
+     * Rebuilds the index of the given package root asset out of the passed in package root. The asset is not saved.
+     */
+    static void maintain(final Asset packageRootAsset, final NestedAttributesMap packageRoot) {
+        Map<String, Object> index = new HashMap<>();
+        NestedAttributesMap versions = packageRoot.child(VERSIONS);
+        for (String v : versions.keys()) {
+            if (!(versions.get(v) instanceof Map)) {
+                continue; // incomplete document
+            }
+            NestedAttributesMap dist = versions.child(v).child(DIST);
+            String url = dist.get(TARBALL, String.class);
+            if (Strings.isNullOrEmpty(url)) {
+                continue;
+            }
+            Map<String, Object> entry = new HashMap<>();
+            entry.put(P_VERSION, v);
+            entry.put(P_URL, url);
+            entry.put(P_SHASUM, dist.get(P_SHASUM, String.class));
+            index.put(extractTarballName(url), entry);
+        }
+        packageRootAsset.formatAttributes().set(P_TARBALL_INDEX, index);
+    }
+
+    /**
+     * Returns the tarball names in the index of the given package root asset, empty if asset has no index.
+     */
+    static Set<String> tarballNames(final Asset packageRootAsset) {
+        Object index = packageRootAsset.formatAttributes().get(P_TARBALL_INDEX);
+        if (!(index instanceof Map)) {
+            return Collections.emptySet();
+        }
+        Set<String> tarballNames = new HashSet<>();
+        ((Map<?, ?>) index).keySet().forEach(tarballName -> tarballNames.add(String.valueOf(tarballName)));
+        return tarballNames;
+    }
+
+    /**
+     * Looks up the entry for given tarball name in the index of the given package root asset, returns {@code null} if
+     * asset has no index or tarball is not present in it.
+     */
+    @Nullable
+    static Entry lookup(final Asset packageRootAsset, final String tarballName) {
+        Object index = packageRootAsset.formatAttributes().get(P_TARBALL_INDEX);
+        if (!(index instanceof Map)) {
+            return null;
+        }
+        Object entry = ((Map<?, ?>) index).get(extractTarballName(tarballName));
+        if (!(entry instanceof Map)) {
+            return null;
+        }
+        Map<?, ?> values = (Map<?, ?>) entry;
+        Object url = values.get(P_URL);
+        if (!(url instanceof String)) {
+            return null;
+        }
+        return new Entry((String) values.get(P_VERSION), (String) url, (String) values.get(P_SHASUM));
+    }
+
+    /**
+     * Single tarball entry of the index.
+     */
+    public static final class Entry {
+        private final String version;
+
+        private final String url;
+
+        @Nullable
+        private final String shasum;
+
+        Entry(final String version, final String url, @Nullable final String shasum) {
+            this.version = version;
+            this.url = checkNotNull(url);
+            this.shasum = shasum;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        @Nullable
+        public String getShasum() {
+            return shasum;
+        }
+    }
+}
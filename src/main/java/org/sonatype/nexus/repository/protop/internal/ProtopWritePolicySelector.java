@@ -23,7 +23,10 @@ public class ProtopWritePolicySelector
     public WritePolicy select(final Asset asset, final WritePolicy configured) {
         if (WritePolicy.ALLOW_ONCE == configured) {
             final String assetKind = asset.formatAttributes().get(P_ASSET_KIND, String.class);
-            if (Objects.equals(AssetKind.PACKAGE_ROOT.name(), assetKind)) {
+            if (Objects.equals(AssetKind.PACKAGE_ROOT.name(), assetKind)
+                    || Objects.equals(AssetKind.PACKAGE_ROOT_ABBREVIATED.name(), assetKind)
+                    || Objects.equals(AssetKind.PACKAGE_ROOT_GZIP.name(), assetKind)
+                    || Objects.equals(AssetKind.PACKAGE_VERSION.name(), assetKind)) {
                 return WritePolicy.ALLOW;
             }
         }
@@ -1,6 +1,21 @@
 package org.sonatype.nexus.repository.protop.internal.search;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.io.ByteStreams;
+import org.joda.time.DateTime;
+import org.sonatype.goodies.common.Time;
 import org.sonatype.nexus.repository.FacetSupport;
+import org.sonatype.nexus.repository.cache.CacheInfo;
 import org.sonatype.nexus.repository.protop.internal.ProtopFacetUtils;
 import org.sonatype.nexus.repository.protop.internal.ProtopProxyFacetImpl.ProxyTarget;
 import org.sonatype.nexus.repository.proxy.ProxyFacet;
@@ -8,22 +23,123 @@ import org.sonatype.nexus.repository.view.Content;
 import org.sonatype.nexus.repository.view.Context;
 import org.sonatype.nexus.repository.view.Parameters;
 import org.sonatype.nexus.repository.view.Request;
+import org.sonatype.nexus.repository.view.payloads.BytesPayload;
 
+import javax.annotation.Nullable;
+import javax.inject.Inject;
 import javax.inject.Named;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static org.sonatype.nexus.repository.http.HttpMethods.GET;
 
 /**
  * Implementation of {@code ProtopSearchFacet} for proxy repositories.
  *
+ * Search results are kept for a short while in a bounded in-memory cache, weighted by their size in bytes and keyed on
+ * the normalized search parameters, while the parameters are sent upstream as given. Concurrent equivalent searches
+ * share a single upstream request. Hits, misses and evictions, of results expired or making room for others, are
+ * counted in the "cache.hits", "cache.misses" and "cache.evictions" metrics of the repository.
+ *
  * @since 3.7
  */
 @Named
 public class ProtopSearchFacetProxy extends FacetSupport implements ProtopSearchFacet {
+    private static final String TEXT = "text";
+
+    private static final String SIZE = "size";
+
+    private static final String FROM = "from";
+
+    private final ProtopSearchParameterExtractor protopSearchParameterExtractor;
+
+    @Nullable
+    private final Cache<String, CachedSearchResults> searchResultsCache;
+
+    private Counter cacheHits;
+
+    private Counter cacheMisses;
+
+    @Nullable
+    private Counter cacheEvictions;
+
+    @Inject
+    public ProtopSearchFacetProxy(final ProtopSearchParameterExtractor protopSearchParameterExtractor,
+                                  @Named("${nexus.protop.proxy.search.cache.maxBytes:-10485760}") final long maxBytes,
+                                  @Named("${nexus.protop.proxy.search.cache.ttl:-30s}") final Time ttl) {
+        this.protopSearchParameterExtractor = checkNotNull(protopSearchParameterExtractor);
+        if (maxBytes > 0 && ttl.toMillis() > 0) {
+            this.searchResultsCache = CacheBuilder.newBuilder()
+                    .maximumWeight(maxBytes)
+                    .weigher((String key, CachedSearchResults value) -> key.length() + value.bytes.length)
+                    .expireAfterWrite(ttl.toMillis(), TimeUnit.MILLISECONDS)
+                    .removalListener((RemovalNotification<String, CachedSearchResults> notification) -> {
+                        Counter evictions = cacheEvictions;
+                        if (notification.wasEvicted() && evictions != null) {
+                            evictions.inc();
+                        }
+                    })
+                    .recordStats()
+                    .build();
+        } else {
+            this.searchResultsCache = null;
+        }
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate("nexus");
+        String repositoryName = getRepository().getName();
+        this.cacheHits = metricRegistry.counter(
+                MetricRegistry.name(ProtopSearchFacetProxy.class, repositoryName, "cache", "hits"));
+        this.cacheMisses = metricRegistry.counter(
+                MetricRegistry.name(ProtopSearchFacetProxy.class, repositoryName, "cache", "misses"));
+        this.cacheEvictions = metricRegistry.counter(
+                MetricRegistry.name(ProtopSearchFacetProxy.class, repositoryName, "cache", "evictions"));
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (searchResultsCache != null) {
+            searchResultsCache.invalidateAll();
+        }
+        super.doStop();
+    }
 
     @Override
     public Content search(final Parameters parameters) throws IOException {
+        if (searchResultsCache == null) {
+            return fetch(parameters).toContent();
+        }
+        try {
+            AtomicBoolean missed = new AtomicBoolean();
+            CachedSearchResults searchResults = searchResultsCache.get(cacheKey(normalize(parameters)), () -> {
+                missed.set(true);
+                return fetch(parameters);
+            });
+            (missed.get() ? cacheMisses : cacheHits).inc();
+            return searchResults.toContent();
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    @VisibleForTesting
+    CacheStats getSearchCacheStats() {
+        return searchResultsCache != null ? searchResultsCache.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
+    }
+
+    private CachedSearchResults fetch(final Parameters parameters) throws IOException {
         try {
             final Request getRequest = new Request.Builder()
                     .action(GET)
@@ -39,9 +155,79 @@ public class ProtopSearchFacetProxy extends FacetSupport implements ProtopSearch
                 throw new IOException("Could not retrieve registry search");
             }
 
-            return searchResults;
+            try (InputStream in = searchResults.openInputStream()) {
+                return new CachedSearchResults(ByteStreams.toByteArray(in), searchResults);
+            }
+        } catch (IOException e) {
+            throw e;
         } catch (Exception e) {
             throw new IOException(e);
         }
     }
+
+    /**
+     * Normalizes the search parameters, so that equivalent searches are cached as the same one: the text is trimmed with
+     * runs of whitespace collapsed, size and from are clamped with their defaults made explicit, and any other
+     * parameters are kept sorted by name.
+     */
+    @VisibleForTesting
+    Parameters normalize(final Parameters parameters) {
+        TreeMap<String, String> others = new TreeMap<>();
+        for (Entry<String, String> entry : parameters) {
+            if (!TEXT.equals(entry.getKey()) && !SIZE.equals(entry.getKey()) && !FROM.equals(entry.getKey())) {
+                others.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+        }
+
+        Parameters normalized = new Parameters();
+        String text = Strings.nullToEmpty(parameters.get(TEXT));
+        normalized.set(TEXT, CharMatcher.whitespace().trimAndCollapseFrom(text, ' '));
+        normalized.set(SIZE, Integer.toString(protopSearchParameterExtractor.extractSize(parameters)));
+        normalized.set(FROM, Integer.toString(protopSearchParameterExtractor.extractFrom(parameters)));
+        others.forEach(normalized::set);
+        return normalized;
+    }
+
+    private static String cacheKey(final Parameters normalized) {
+        StringBuilder key = new StringBuilder();
+        for (Entry<String, String> entry : normalized) {
+            key.append(entry.getKey()).append('=').append(entry.getValue()).append('&');
+        }
+        return key.toString();
+    }
+
+    /**
+     * The body of search results along with the attributes of the upstream response telling its age.
+     */
+    private static class CachedSearchResults {
+        private final byte[] bytes;
+
+        @Nullable
+        private final String contentType;
+
+        @Nullable
+        private final CacheInfo cacheInfo;
+
+        @Nullable
+        private final DateTime lastModified;
+
+        @Nullable
+        private final String etag;
+
+        CachedSearchResults(final byte[] bytes, final Content upstream) {
+            this.bytes = bytes;
+            this.contentType = upstream.getContentType();
+            this.cacheInfo = upstream.getAttributes().get(CacheInfo.class);
+            this.lastModified = upstream.getAttributes().get(Content.CONTENT_LAST_MODIFIED, DateTime.class);
+            this.etag = upstream.getAttributes().get(Content.CONTENT_ETAG, String.class);
+        }
+
+        Content toContent() {
+            Content content = new Content(new BytesPayload(bytes, contentType));
+            content.getAttributes().set(CacheInfo.class, cacheInfo);
+            content.getAttributes().set(Content.CONTENT_LAST_MODIFIED, lastModified);
+            content.getAttributes().set(Content.CONTENT_ETAG, etag);
+            return content;
+        }
+    }
 }
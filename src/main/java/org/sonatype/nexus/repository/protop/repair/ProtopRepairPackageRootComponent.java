@@ -3,6 +3,7 @@ package org.sonatype.nexus.repository.protop.repair;
 import com.google.common.hash.HashCode;
 import org.sonatype.nexus.blobstore.api.Blob;
 import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.common.hash.HashAlgorithm;
 import org.sonatype.nexus.repository.Format;
 import org.sonatype.nexus.repository.Repository;
 import org.sonatype.nexus.repository.Type;
@@ -152,13 +153,16 @@ public class ProtopRepairPackageRootComponent
                 .child(DIST);
     }
 
+    /**
+     * Uses the digest computed when the tarball was stored, if any, and only hashes the blob again for tarballs stored
+     * before both digests were being computed.
+     */
     private String calculateIntegrity(final Asset asset, final Blob blob, final String algorithm) {
         try {
-            HashCode hash;
-            if (algorithm.equalsIgnoreCase(SHA1.name())) {
-                hash = hash(SHA1, blob.getInputStream());
-            } else {
-                hash = hash(SHA512, blob.getInputStream());
+            HashAlgorithm hashAlgorithm = algorithm.equalsIgnoreCase(SHA1.name()) ? SHA1 : SHA512;
+            HashCode hash = asset.getChecksum(hashAlgorithm);
+            if (hash == null) {
+                hash = hash(hashAlgorithm, blob.getInputStream());
             }
 
             return algorithm + "-" + Base64.getEncoder().encodeToString(hash.asBytes());
@@ -0,0 +1,72 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import java.util.LinkedHashMap;
+
+import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.repository.view.Headers;
+import org.sonatype.nexus.repository.view.Request;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProtopAbbreviatedPackageRootTest
+    extends TestSupport
+{
+  @Test
+  public void abbreviateKeepsInstallFieldsOnly() {
+    NestedAttributesMap packageRoot = new NestedAttributesMap("packageRoot", new LinkedHashMap<>());
+    packageRoot.set("org", "org");
+    packageRoot.set("name", "pkg");
+    packageRoot.set("readme", "a long readme");
+    packageRoot.child("dist-tags").set("latest", "1.0.0");
+    packageRoot.child("time").set("modified", "2016-01-01T00:00:00.000Z");
+    packageRoot.child("time").set("1.0.0", "2015-01-01T00:00:00.000Z");
+    NestedAttributesMap version = packageRoot.child("versions").child("1.0.0");
+    version.set("name", "pkg");
+    version.set("version", "1.0.0");
+    version.set("readme", "a long readme");
+    version.set("scripts", "test");
+    version.child("dependencies").set("org/dep", "^1.0.0");
+    version.child("dist").set("tarball", "http://example.com/org/pkg/-/pkg-1.0.0.tgz");
+
+    NestedAttributesMap abbreviated = ProtopAbbreviatedPackageRoot.abbreviate(packageRoot);
+
+    assertThat(abbreviated.keys(), containsInAnyOrder("org", "name", "modified", "dist-tags", "versions"));
+    assertThat(abbreviated.get("modified"), is("2016-01-01T00:00:00.000Z"));
+    assertThat(abbreviated.child("dist-tags").get("latest"), is("1.0.0"));
+    NestedAttributesMap abbreviatedVersion = abbreviated.child("versions").child("1.0.0");
+    assertThat(abbreviatedVersion.keys(), containsInAnyOrder("name", "version", "dependencies", "dist"));
+    assertThat(abbreviatedVersion.child("dist").get("tarball"), is("http://example.com/org/pkg/-/pkg-1.0.0.tgz"));
+    assertThat(packageRoot.contains("readme"), is(true));
+  }
+
+  @Test
+  public void requestedThroughAcceptHeader() {
+    assertThat(ProtopAbbreviatedPackageRoot.isRequested(request("application/json")), is(false));
+    assertThat(ProtopAbbreviatedPackageRoot.isRequested(request(null)), is(false));
+    assertThat(ProtopAbbreviatedPackageRoot.isRequested(
+        request("application/vnd.protop.install-v1+json; q=1.0, application/json; q=0.8, */*")), is(true));
+  }
+
+  @Test
+  public void assetNameIsNextToPackageRoot() {
+    assertThat(ProtopAbbreviatedPackageRoot.assetName(new ProtopProjectId("org", "pkg")),
+        is("org/pkg/-/install-v1.json"));
+  }
+
+  private static Request request(final String accept) {
+    Headers headers = new Headers();
+    if (accept != null) {
+      headers.set("Accept", accept);
+    }
+    Request request = mock(Request.class);
+    when(request.getHeaders()).thenReturn(headers);
+    return request;
+  }
+}
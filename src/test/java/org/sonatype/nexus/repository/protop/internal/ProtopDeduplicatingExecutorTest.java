@@ -0,0 +1,78 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sonatype.goodies.testsupport.TestSupport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ProtopDeduplicatingExecutorTest
+    extends TestSupport
+{
+  private ProtopDeduplicatingExecutor underTest;
+
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  private final AtomicInteger runs = new AtomicInteger();
+
+  @Before
+  public void setUp() {
+    underTest = new ProtopDeduplicatingExecutor("test", 1, 1);
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    underTest.shutdown();
+  }
+
+  @Test
+  public void tasksWithSameKeyAreDeduplicated() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    assertThat(underTest.submit("org/pkg", () -> {
+      started.countDown();
+      runs.incrementAndGet();
+      await(release);
+    }), is(true));
+    assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+
+    assertThat(underTest.submit("org/pkg", runs::incrementAndGet), is(true));
+
+    release.countDown();
+    CountDownLatch done = new CountDownLatch(1);
+    while (!underTest.submit("done", done::countDown)) {
+      Thread.sleep(10);
+    }
+    assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+    assertThat(runs.get(), is(1));
+  }
+
+  @Test
+  public void tasksAreRejectedWhenSaturated() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    underTest.submit("a", () -> {
+      started.countDown();
+      await(release);
+    });
+    assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+
+    assertThat(underTest.submit("b", () -> await(release)), is(true));
+    assertThat(underTest.submit("c", runs::incrementAndGet), is(false));
+  }
+
+  private static void await(final CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
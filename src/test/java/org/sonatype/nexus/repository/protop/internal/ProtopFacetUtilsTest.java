@@ -1,10 +1,17 @@
 
 package org.sonatype.nexus.repository.protop.internal;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
 import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.storage.Component;
+import org.sonatype.nexus.repository.storage.Query;
+import org.sonatype.nexus.repository.storage.StorageTx;
 import org.sonatype.nexus.repository.view.Content;
 import org.sonatype.nexus.repository.view.Response;
 import org.sonatype.nexus.repository.view.payloads.StringPayload;
@@ -14,11 +21,23 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableMap;
 import org.apache.commons.io.IOUtils;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.emptyIterable;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
 import static org.hamcrest.core.StringContains.containsString;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
+import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_LATEST_VERSION;
 import static org.sonatype.nexus.repository.view.ContentTypes.APPLICATION_JSON;
 
 public class ProtopFacetUtilsTest
@@ -32,6 +51,15 @@ public class ProtopFacetUtilsTest
   @Mock
   Response response1, response2, response3;
 
+  @Mock
+  Asset asset;
+
+  @Mock
+  StorageTx tx;
+
+  @Mock
+  Component component1, component2;
+
   @Test
   public void mergeDistTagResponse_singleEntry() throws Exception {
     when(response1.getPayload()).thenReturn(new Content(new StringPayload("{\"latest\":\"1.0.1\"}", APPLICATION_JSON)));
@@ -88,4 +116,68 @@ public class ProtopFacetUtilsTest
     assertThat(actual.get("hello"), containsString("2.2.2"));
     assertThat(actual.get("world"), containsString("5.5.5"));
   }
+
+  @Test
+  public void maintainDistTags_copiesDistTagsToAssetAttributes() throws Exception {
+    NestedAttributesMap formatAttributes = new NestedAttributesMap("format", new LinkedHashMap<>());
+    when(asset.formatAttributes()).thenReturn(formatAttributes);
+    NestedAttributesMap packageRoot = new NestedAttributesMap("packageRoot", new LinkedHashMap<>());
+    packageRoot.child("dist-tags").set("latest", "1.0.1");
+    packageRoot.child("dist-tags").set("next", "2.0.0-rc.1");
+
+    ProtopFacetUtils.maintainDistTags(asset, packageRoot);
+
+    assertThat(formatAttributes.get(P_LATEST_VERSION), is("1.0.1"));
+    NestedAttributesMap distTags = ProtopFacetUtils.loadDistTags(tx, asset);
+    assertThat(distTags.get("latest"), is("1.0.1"));
+    assertThat(distTags.get("next"), is("2.0.0-rc.1"));
+    verifyZeroInteractions(tx);
+
+    packageRoot.child("dist-tags").remove("latest");
+    ProtopFacetUtils.maintainDistTags(asset, packageRoot);
+
+    assertThat(formatAttributes.contains(P_LATEST_VERSION), is(false));
+    assertThat(ProtopFacetUtils.loadDistTags(tx, asset).contains("latest"), is(false));
+  }
+
+  @Test
+  public void findPackageTarballComponents_noVersionsQueriesNothing() {
+    Iterable<Component> components = ProtopFacetUtils
+        .findPackageTarballComponents(tx, repository1, ProtopProjectId.parse("org/pkg"), Collections.emptySet());
+
+    assertThat(components, is(emptyIterable()));
+    verifyZeroInteractions(tx);
+  }
+
+  @Test
+  public void findPackageTarballComponents_singleVersion() {
+    when(tx.findComponents(any(Query.class), any())).thenReturn(singletonList(component1));
+
+    Iterable<Component> components = ProtopFacetUtils
+        .findPackageTarballComponents(tx, repository1, ProtopProjectId.parse("org/pkg"), singletonList("1.0.0"));
+
+    assertThat(components, contains(component1));
+    Query query = findComponentsQuery();
+    assertThat(query.getWhere(), containsString("version IN"));
+    assertThat(query.getParameters().values(), hasItem(singletonList("1.0.0")));
+  }
+
+  @Test
+  public void findPackageTarballComponents_multipleVersionsInOneQuery() {
+    when(tx.findComponents(any(Query.class), any())).thenReturn(asList(component1, component2));
+
+    Iterable<Component> components = ProtopFacetUtils
+        .findPackageTarballComponents(tx, repository1, ProtopProjectId.parse("org/pkg"), asList("1.0.0", "2.0.0"));
+
+    assertThat(components, contains(component1, component2));
+    Query query = findComponentsQuery();
+    assertThat(query.getWhere(), containsString("version IN"));
+    assertThat(query.getParameters().values(), hasItem(asList("1.0.0", "2.0.0")));
+  }
+
+  private Query findComponentsQuery() {
+    ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+    verify(tx).findComponents(query.capture(), eq(singletonList(repository1)));
+    return query.getValue();
+  }
 }
@@ -1,6 +1,7 @@
 
 package org.sonatype.nexus.repository.protop.internal;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -14,15 +15,19 @@ import org.sonatype.goodies.testsupport.concurrent.ConcurrentRunner;
 import org.sonatype.nexus.blobstore.api.Blob;
 import org.sonatype.nexus.blobstore.api.BlobRef;
 import org.sonatype.nexus.blobstore.api.BlobStore;
+import org.sonatype.nexus.common.app.ApplicationDirectories;
 import org.sonatype.nexus.common.app.BaseUrlHolder;
 import org.sonatype.nexus.common.collect.AttributesMap;
 import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.common.hash.HashAlgorithm;
 import org.sonatype.nexus.common.io.CooperationFactory;
 import org.sonatype.nexus.common.io.LocalCooperationFactory;
 import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.cache.CacheInfo;
 import org.sonatype.nexus.repository.config.Configuration;
 import org.sonatype.nexus.repository.config.ConfigurationFacet;
 import org.sonatype.nexus.repository.manager.RepositoryManager;
+import org.sonatype.nexus.repository.protop.internal.ProtopGroupFanOut.MemberResponses;
 import org.sonatype.nexus.repository.storage.Asset;
 import org.sonatype.nexus.repository.storage.AssetBlob;
 import org.sonatype.nexus.repository.storage.MissingAssetBlobException;
@@ -42,21 +47,29 @@ import org.sonatype.nexus.validation.ConstraintViolationFactory;
 
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import org.joda.time.DateTime;
+import com.google.common.io.ByteStreams;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
-import org.mockito.ArgumentCaptor;
-import org.mockito.Captor;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 
 import static com.google.common.collect.Maps.newHashMap;
 import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasKey;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyMap;
@@ -67,6 +80,9 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.internal.verification.VerificationModeFactory.atMost;
+import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_MEMBER_ORDER;
+import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_MEMBER_VERSIONS;
+import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_MERGED_VERSIONS;
 import static org.sonatype.nexus.repository.protop.internal.ProtopHandlers.T_PACKAGE_NAME;
 import static org.sonatype.nexus.repository.protop.internal.ProtopHandlers.T_PACKAGE_ORG;
 import static org.sonatype.nexus.repository.protop.internal.ProtopJsonUtils.bytes;
@@ -132,8 +148,13 @@ public class ProtopGroupFacetTest extends TestSupport {
   @Mock
   private ConfigurationFacet configurationFacet;
 
-  @Captor
-  private ArgumentCaptor<Supplier<InputStream>> inputStreamCaptor;
+  @Mock
+  private ApplicationDirectories applicationDirectories;
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final List<byte[]> storedBlobs = new ArrayList<>();
 
   private CooperationFactory cooperationFactory = new LocalCooperationFactory();
 
@@ -142,6 +163,7 @@ public class ProtopGroupFacetTest extends TestSupport {
   @Before
   public void setUp() throws Exception {
     BaseUrlHolder.set("http://localhost:8080/");
+    when(applicationDirectories.getTemporaryDirectory()).thenReturn(temporaryFolder.getRoot());
 
     setupProtopGroupFacet();
     underTest.attach(groupRepository);
@@ -174,7 +196,13 @@ public class ProtopGroupFacetTest extends TestSupport {
     when(blobStore.get(any())).thenReturn(blob);
 
     when(storageTx.createAsset(any(), any(ProtopFormat.class))).thenReturn(packageRootAsset);
-    when(storageTx.createBlob(any(), any(), any(), any(), any(), anyBoolean())).thenReturn(assetBlob);
+    // blobs are read as they are stored, as their content may be gone once stored
+    when(storageTx.createBlob(any(), any(), any(), any(), any(), anyBoolean())).thenAnswer(invocation -> {
+      try (InputStream in = ((Supplier<InputStream>) invocation.getArguments()[1]).get()) {
+        storedBlobs.add(ByteStreams.toByteArray(in));
+      }
+      return assetBlob;
+    });
     when(storageTx.requireBlob(blobRef)).thenReturn(blob);
 
     when(asset.blobRef()).thenReturn(blobRef);
@@ -250,6 +278,109 @@ public class ProtopGroupFacetTest extends TestSupport {
     assertMergedSimplePackageRoot(captureGroupStoredBlobInputStream(), "1.0");
   }
 
+  @Test
+  public void whenMergedPackageRootIsCachedMemberVersionsAreRecorded() throws IOException {
+    when(proxyRepository.getName()).thenReturn("proxy");
+    when(hostedRepository.getName()).thenReturn("hosted");
+    when(proxyResponse.getPayload()).thenReturn(toContent(createSimplePackageRoot("1.0"), "proxy-sha1"));
+    when(hostedResponse.getPayload()).thenReturn(toContent(createSimplePackageRoot("2.0"), "hosted-sha1"));
+
+    buildMergedPackageRoot(ImmutableMap.of(proxyRepository, proxyResponse, hostedRepository, hostedResponse));
+
+    assertThat(packageRootAsset.formatAttributes().get(P_MEMBER_VERSIONS), equalTo(ImmutableMap.of(
+        "proxy", sha1("proxy-sha1").toString(), "hosted", sha1("hosted-sha1").toString())));
+    assertThat(packageRootAsset.formatAttributes().get(P_MEMBER_ORDER), equalTo(asList("proxy", "hosted")));
+    assertThat(packageRootAsset.formatAttributes().get(P_MERGED_VERSIONS), equalTo(ImmutableMap.of(
+        "proxy", singletonList("1.0"), "hosted", singletonList("2.0"))));
+  }
+
+  @Test
+  public void whenMemberVersionsAreUnknownNoneAreRecorded() throws IOException {
+    when(proxyRepository.getName()).thenReturn("proxy");
+    when(proxyResponse.getPayload()).thenReturn(toContent(createSimplePackageRoot("1.0")));
+
+    buildMergedPackageRoot(ImmutableMap.of(proxyRepository, proxyResponse));
+
+    assertThat(packageRootAsset.formatAttributes().contains(P_MEMBER_VERSIONS), is(false));
+  }
+
+  @Test
+  public void whenMemberTimedOutMergedPackageRootIsCachedStale() throws IOException {
+    when(proxyRepository.getName()).thenReturn("proxy");
+    when(proxyResponse.getPayload()).thenReturn(toContent(createSimplePackageRoot("1.0"), "proxy-sha1"));
+    MemberResponses responses = new MemberResponses();
+    responses.put(proxyRepository, proxyResponse);
+    responses.markPartial();
+
+    buildMergedPackageRoot(responses);
+
+    assertThat(CacheInfo.extractFromAsset(packageRootAsset).isInvalidated(), is(true));
+    assertThat(packageRootAsset.formatAttributes().contains(P_MEMBER_VERSIONS), is(false));
+  }
+
+  @Test
+  public void whenMembersDidNotChangeCachedPackageRootIsRevalidated() {
+    Map<String, String> memberVersions = ImmutableMap.of("proxy", sha1("proxy-sha1").toString());
+    packageRootAsset.formatAttributes().set(P_MEMBER_VERSIONS, memberVersions);
+    packageRootAsset.formatAttributes().set(P_MEMBER_ORDER, singletonList("proxy"));
+    when(storageTx.findAssetWithProperty(any(), any(), any())).thenReturn(packageRootAsset);
+
+    assertThat(underTest.revalidatePackageRootInCache(context, memberVersions), is(packageRootAsset));
+    verify(storageTx).saveAsset(packageRootAsset);
+
+    assertThat(underTest.revalidatePackageRootInCache(context,
+        ImmutableMap.of("proxy", sha1("changed-sha1").toString())), nullValue());
+    verify(storageTx, times(1)).saveAsset(packageRootAsset);
+  }
+
+  @Test
+  public void whenMembersWereReorderedCachedPackageRootIsNotRevalidated() {
+    Map<String, String> memberVersions = ImmutableMap.of(
+        "hosted", sha1("hosted-sha1").toString(), "proxy", sha1("proxy-sha1").toString());
+    packageRootAsset.formatAttributes().set(P_MEMBER_VERSIONS, memberVersions);
+    packageRootAsset.formatAttributes().set(P_MEMBER_ORDER, asList("proxy", "hosted"));
+    when(storageTx.findAssetWithProperty(any(), any(), any())).thenReturn(packageRootAsset);
+
+    assertThat(underTest.revalidatePackageRootInCache(context, memberVersions), nullValue());
+    verify(storageTx, never()).saveAsset(packageRootAsset);
+  }
+
+  @Test
+  public void whenMembersWereReorderedPreviousMergeIsNotReused() throws IOException {
+    packageRootAsset.formatAttributes().set(P_MEMBER_VERSIONS,
+        ImmutableMap.of("proxy", "proxy-1", "hosted", "hosted-1"));
+    packageRootAsset.formatAttributes().set(P_MEMBER_ORDER, asList("proxy", "hosted"));
+    packageRootAsset.formatAttributes().set(P_MERGED_VERSIONS,
+        ImmutableMap.of("proxy", singletonList("1.0"), "hosted", singletonList("2.0")));
+    when(packageRootAsset.blobRef()).thenReturn(blobRef);
+    ProtopPackageRootMerge merge = ProtopPackageRootMerge.index(
+        asList(toContent(createSimplePackageRoot("2.0")), toContent(createSimplePackageRoot("1.0"))));
+
+    // only hosted changed, but it is now merged first
+    assertThat(underTest.reusePreviousMerge(storageTx, packageRootAsset, merge,
+        ImmutableMap.of("hosted", "hosted-2", "proxy", "proxy-1")), is(sameInstance(merge)));
+    verify(storageTx, never()).getBlob(any());
+
+    underTest.reusePreviousMerge(storageTx, packageRootAsset, merge,
+        ImmutableMap.of("proxy", "proxy-1", "hosted", "hosted-2"));
+    verify(storageTx).getBlob(blobRef);
+  }
+
+  @Test
+  public void whenMemberUpdateLeftItsPackageRootAsItWasCachedPackageRootIsKept() {
+    packageRootAsset.formatAttributes().set(P_MEMBER_VERSIONS,
+        ImmutableMap.of("proxy", sha1("proxy-sha1").toString()));
+    CacheInfo.applyToAsset(packageRootAsset, new CacheInfo(DateTime.now(), null));
+    when(storageTx.findAssetWithProperty(any(), any(), any())).thenReturn(packageRootAsset);
+    ProtopProjectId packageId = ProtopProjectId.parse("org/project");
+
+    underTest.doInvalidate(packageId, "proxy", sha1("proxy-sha1").toString());
+    verify(storageTx, never()).saveAsset(packageRootAsset);
+
+    underTest.doInvalidate(packageId, "proxy", sha1("changed-sha1").toString());
+    verify(storageTx).saveAsset(packageRootAsset);
+  }
+
   @Test
   public void whenSingleOrUnScopedResultShouldNotMerge() {
     assertThat(underTest.shouldServeFirstResult(createRandomMaps(1)), equalTo(true));
@@ -300,10 +431,12 @@ public class ProtopGroupFacetTest extends TestSupport {
 
   private void setupProtopGroupFacet() {
     underTest = spy(new ProtopGroupFacet(true, repositoryManager, constraintViolationFactory, new GroupType()));
+    underTest.configureTemporaryDirectory(applicationDirectories);
   }
 
   private void setupMergeDisabledProtopGroupFacet() {
     underTest = spy(new ProtopGroupFacet(false, repositoryManager, constraintViolationFactory, new GroupType()));
+    underTest.configureTemporaryDirectory(applicationDirectories);
   }
 
   private int concurrentlyBuildPackageRoot(final boolean cooperationEnabled) throws Exception
@@ -350,11 +483,22 @@ public class ProtopGroupFacetTest extends TestSupport {
     return content;
   }
 
+  private Content toContent(final NestedAttributesMap packageRoot, final String sha1Of) {
+    Content content = toContent(packageRoot);
+    content.getAttributes().set(Content.CONTENT_HASH_CODES_MAP, ImmutableMap.of(HashAlgorithm.SHA1, sha1(sha1Of)));
+    return content;
+  }
+
+  private static HashCode sha1(final String value) {
+    return HashAlgorithm.SHA1.function().hashString(value, UTF_8);
+  }
+
   private Content buildMergedPackageRoot(final Map<Repository, Response> responses) throws IOException {
     Content mergedPackageRoot = underTest.buildMergedPackageRoot(responses, context);
 
     assertThat(mergedPackageRoot, notNullValue());
-    verify(storageTx).createAsset(any(), any(ProtopFormat.class));
+    // the package root, its abbreviated and its gzip package root
+    verify(storageTx, times(3)).createAsset(any(), any(ProtopFormat.class));
 
     return mergedPackageRoot;
   }
@@ -395,11 +539,10 @@ public class ProtopGroupFacetTest extends TestSupport {
   }
 
   private Supplier<InputStream> captureGroupStoredBlobInputStream() throws IOException {
-    verify(storageTx).createBlob(any(),
-        inputStreamCaptor.capture()
-        , any(), any(), any(), anyBoolean());
-
+    // the package root is stored first, its abbreviated and gzip package roots after it
+    verify(storageTx, times(3)).createBlob(any(), any(), any(), any(), any(), anyBoolean());
 
-    return inputStreamCaptor.getValue();
+    byte[] packageRoot = storedBlobs.get(0);
+    return () -> new ByteArrayInputStream(packageRoot);
   }
 }
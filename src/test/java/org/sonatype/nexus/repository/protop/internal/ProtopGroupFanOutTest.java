@@ -0,0 +1,168 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.sonatype.goodies.common.Time;
+import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.group.GroupHandler.DispatchedRepositories;
+import org.sonatype.nexus.repository.protop.internal.ProtopGroupFanOut.MemberResponses;
+import org.sonatype.nexus.repository.types.GroupType;
+import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.Request;
+import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.repository.view.ViewFacet;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+public class ProtopGroupFanOutTest
+    extends TestSupport
+{
+  @Mock
+  Context context;
+
+  @Mock
+  Request request;
+
+  @Mock
+  DispatchedRepositories dispatched;
+
+  @Mock
+  Repository slow;
+
+  @Mock
+  Repository fast;
+
+  @Mock
+  Repository stalled;
+
+  @Mock
+  ViewFacet slowView;
+
+  @Mock
+  ViewFacet fastView;
+
+  @Mock
+  ViewFacet stalledView;
+
+  @Mock
+  Response slowResponse;
+
+  @Mock
+  Response fastResponse;
+
+  @Mock
+  Response lateResponse;
+
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  private ProtopGroupFanOut underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    when(context.getRequest()).thenReturn(request);
+    member(slow, slowView, "slow");
+    member(fast, fastView, "fast");
+    member(stalled, stalledView, "stalled");
+    when(slowView.dispatch(request, context)).thenAnswer(invocation -> {
+      Thread.sleep(100);
+      return slowResponse;
+    });
+    when(fastView.dispatch(request, context)).thenReturn(fastResponse);
+    when(stalledView.dispatch(request, context)).thenAnswer(invocation -> {
+      release.await(10, TimeUnit.SECONDS);
+      return null;
+    });
+    underTest = new ProtopGroupFanOut("protop-group", 4, Time.seconds(1), Time.seconds(5), new MetricRegistry());
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    underTest.shutdown();
+  }
+
+  @Test
+  public void responsesAreInMemberOrder() throws Exception {
+    Map<Repository, Response> responses = underTest.dispatch(context, asList(slow, fast), dispatched);
+    assertThat(responses.keySet(), contains(slow, fast));
+    assertThat(responses.get(slow), is(slowResponse));
+    assertThat(underTest.timeouts(), is(0L));
+  }
+
+  @Test
+  public void membersMissingTheirDeadlineAreAbsent() throws Exception {
+    MemberResponses responses = underTest.dispatch(context, asList(stalled, fast), dispatched);
+    assertThat(responses.keySet(), contains(fast));
+    assertThat(responses.isPartial(), is(true));
+    assertThat(underTest.timeouts(), is(1L));
+  }
+
+  @Test
+  public void responsesOfAllMembersAreNotPartial() throws Exception {
+    assertThat(underTest.dispatch(context, asList(slow, fast), dispatched).isPartial(), is(false));
+  }
+
+  @Test
+  public void lateResponsesAreClosedOnceThere() throws Exception {
+    Content lateContent = mock(Content.class, withSettings().extraInterfaces(Closeable.class));
+    when(lateResponse.getPayload()).thenReturn(lateContent);
+    when(stalledView.dispatch(request, context)).thenAnswer(invocation -> {
+      release.await(10, TimeUnit.SECONDS);
+      return lateResponse;
+    });
+
+    underTest.dispatch(context, asList(stalled, fast), dispatched);
+    verify((Closeable) lateContent, never()).close();
+
+    release.countDown();
+    verify((Closeable) lateContent, timeout(5000)).close();
+  }
+
+  @Test
+  public void membersFindingNoThreadAreDispatchedOnTheRequestThread() throws Exception {
+    underTest.shutdown();
+    underTest = new ProtopGroupFanOut("protop-group", 1, Time.seconds(1), Time.seconds(5), new MetricRegistry());
+    Map<Repository, Response> responses = underTest.dispatch(context, asList(slow, fast), dispatched);
+    assertThat(responses.keySet(), contains(slow, fast));
+  }
+
+  @Test
+  public void groupMembersAreDispatchedOnTheRequestThread() throws Exception {
+    Thread requestThread = Thread.currentThread();
+    Repository nested = mock(Repository.class);
+    ViewFacet nestedView = mock(ViewFacet.class);
+    member(nested, nestedView, "nested");
+    when(nested.getType()).thenReturn(new GroupType());
+    when(nestedView.dispatch(request, context)).thenAnswer(
+        invocation -> Thread.currentThread() == requestThread ? fastResponse : slowResponse);
+
+    Map<Repository, Response> responses = underTest.dispatch(context, asList(slow, nested), dispatched);
+    assertThat(responses.keySet(), contains(slow, nested));
+    assertThat(responses.get(nested), is(fastResponse));
+  }
+
+  private static void member(final Repository member, final ViewFacet view, final String name) {
+    when(member.getName()).thenReturn(name);
+    when(member.facet(ViewFacet.class)).thenReturn(view);
+  }
+}
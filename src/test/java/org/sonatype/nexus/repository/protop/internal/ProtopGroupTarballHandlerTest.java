@@ -0,0 +1,111 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.common.collect.AttributesMap;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.group.GroupFacet;
+import org.sonatype.nexus.repository.group.GroupHandler.DispatchedRepositories;
+import org.sonatype.nexus.repository.http.HttpResponses;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.Request;
+import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.repository.view.ViewFacet;
+import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.sonatype.nexus.repository.protop.internal.ProtopHandlers.T_PACKAGE_NAME;
+import static org.sonatype.nexus.repository.protop.internal.ProtopHandlers.T_PACKAGE_ORG;
+
+public class ProtopGroupTarballHandlerTest
+    extends TestSupport
+{
+  private static final ProtopProjectId PACKAGE_ID = ProtopProjectId.parse("org/pkg");
+
+  @Mock
+  Context context;
+
+  @Mock
+  Request request;
+
+  @Mock
+  TokenMatcher.State state;
+
+  @Mock
+  Repository group;
+
+  @Mock
+  ProtopGroupFacet groupFacet;
+
+  @Mock
+  Repository first;
+
+  @Mock
+  Repository last;
+
+  @Mock
+  ViewFacet firstView;
+
+  @Mock
+  ViewFacet lastView;
+
+  private final Response tarball = HttpResponses.ok();
+
+  private final ProtopGroupTarballHandler underTest = new ProtopGroupTarballHandler();
+
+  @Before
+  public void setUp() throws Exception {
+    AttributesMap attributes = new AttributesMap();
+    attributes.set(TokenMatcher.State.class, state);
+    when(state.getTokens()).thenReturn(ImmutableMap.of(T_PACKAGE_ORG, "org", T_PACKAGE_NAME, "pkg"));
+    when(context.getAttributes()).thenReturn(attributes);
+    when(context.getRequest()).thenReturn(request);
+    when(context.getRepository()).thenReturn(group);
+    when(group.facet(GroupFacet.class)).thenReturn(groupFacet);
+    when(groupFacet.members()).thenReturn(asList(first, last));
+    member(first, firstView, "first");
+    member(last, lastView, "last");
+  }
+
+  @Test
+  public void servingMemberIsAskedFirst() throws Exception {
+    when(groupFacet.servingMember(PACKAGE_ID)).thenReturn(last);
+    when(lastView.dispatch(request, context)).thenReturn(tarball);
+
+    assertThat(underTest.doGet(context, new DispatchedRepositories()), is(tarball));
+    verify(firstView, never()).dispatch(request, context);
+  }
+
+  @Test
+  public void missInServingMemberFallsBackToTheOtherMembers() throws Exception {
+    when(groupFacet.servingMember(PACKAGE_ID)).thenReturn(last);
+    when(lastView.dispatch(request, context)).thenReturn(HttpResponses.notFound());
+    when(firstView.dispatch(request, context)).thenReturn(tarball);
+
+    assertThat(underTest.doGet(context, new DispatchedRepositories()), is(tarball));
+    verify(lastView).dispatch(request, context);
+  }
+
+  @Test
+  public void withoutServingMemberMembersAreAskedInOrder() throws Exception {
+    when(firstView.dispatch(request, context)).thenReturn(HttpResponses.notFound());
+    when(lastView.dispatch(request, context)).thenReturn(tarball);
+
+    assertThat(underTest.doGet(context, new DispatchedRepositories()), is(tarball));
+    verify(firstView).dispatch(request, context);
+  }
+
+  private static void member(final Repository member, final ViewFacet view, final String name) {
+    when(member.getName()).thenReturn(name);
+    when(member.facet(ViewFacet.class)).thenReturn(view);
+  }
+}
@@ -0,0 +1,110 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.zip.GZIPInputStream;
+
+import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.common.app.BaseUrlHolder;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.repository.http.HttpResponses;
+import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.Headers;
+import org.sonatype.nexus.repository.view.Request;
+import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.repository.view.payloads.BytesPayload;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.sonatype.nexus.repository.view.ContentTypes.APPLICATION_JSON;
+
+public class ProtopGzipPackageRootTest
+    extends TestSupport
+{
+  @After
+  public void tearDown() {
+    BaseUrlHolder.unset();
+  }
+
+  @Test
+  public void renderRewritesTarballUrlsAndCompresses() throws Exception {
+    BaseUrlHolder.set("http://other:8081");
+    NestedAttributesMap packageRoot = new NestedAttributesMap("packageRoot", new LinkedHashMap<>());
+    packageRoot.set("org", "org");
+    packageRoot.set("name", "pkg");
+    packageRoot.child("versions").child("1.0.0").child("dist")
+        .set("tarball", "http://example.com/org/pkg/-/org-pkg-1.0.0.tar.gz");
+    byte[] json = ProtopJsonUtils.bytes(packageRoot);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ProtopGzipPackageRoot.render("protop-hosted", "org/pkg", "http://localhost:8081",
+        () -> new ByteArrayInputStream(json), out);
+    byte[] gzipped = out.toByteArray();
+
+    NestedAttributesMap rendered = ProtopJsonUtils.parse(() -> {
+      try {
+        return new GZIPInputStream(new ByteArrayInputStream(gzipped));
+      }
+      catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    assertThat(rendered.get("_id"), is("org/pkg"));
+    assertThat(rendered.child("versions").child("1.0.0").child("dist").get("tarball"),
+        is("http://localhost:8081/repository/protop-hosted/org/pkg/-/org-pkg-1.0.0.tar.gz"));
+    // the base URL of the current request is left as it was
+    assertThat(BaseUrlHolder.get(), is("http://other:8081"));
+  }
+
+  @Test
+  public void renderWithoutBaseUrlOfTheCurrentRequest() throws Exception {
+    byte[] json = "{\"name\":\"pkg\",\"versions\":{}}".getBytes(UTF_8);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ProtopGzipPackageRoot.render("protop-hosted", "org/pkg", "http://localhost:8081",
+        () -> new ByteArrayInputStream(json), out);
+
+    assertThat(out.size() > 0, is(true));
+    assertThat(BaseUrlHolder.isSet(), is(false));
+  }
+
+  @Test
+  public void acceptedThroughAcceptEncodingHeader() {
+    assertThat(ProtopGzipPackageRoot.isAccepted(request(null)), is(false));
+    assertThat(ProtopGzipPackageRoot.isAccepted(request("deflate, br")), is(false));
+    assertThat(ProtopGzipPackageRoot.isAccepted(request("gzip;q=0, deflate")), is(false));
+    assertThat(ProtopGzipPackageRoot.isAccepted(request("deflate, gzip")), is(true));
+    assertThat(ProtopGzipPackageRoot.isAccepted(request("GZIP; q=0.5")), is(true));
+  }
+
+  @Test
+  public void onlyEncodedContentGetsContentEncodingHeaderButAllVaryByAcceptEncoding() {
+    Response plain = ProtopGzipPackageRoot.encodingHeaders(
+        HttpResponses.ok(new Content(new BytesPayload(new byte[0], APPLICATION_JSON))));
+    assertThat(plain.getHeaders().get("Content-Encoding"), nullValue());
+    assertThat(plain.getHeaders().get("Vary"), is("Accept-Encoding"));
+
+    Response encoded = ProtopGzipPackageRoot.encodingHeaders(HttpResponses.ok(
+        ProtopGzipPackageRoot.encoded(new Content(new BytesPayload(new byte[0], APPLICATION_JSON)))));
+    assertThat(encoded.getHeaders().get("Content-Encoding"), is("gzip"));
+    assertThat(encoded.getHeaders().get("Vary"), is("Accept-Encoding"));
+  }
+
+  private static Request request(final String acceptEncoding) {
+    Headers headers = new Headers();
+    if (acceptEncoding != null) {
+      headers.set("Accept-Encoding", acceptEncoding);
+    }
+    Request request = mock(Request.class);
+    when(request.getHeaders()).thenReturn(headers);
+    return request;
+  }
+}
@@ -9,10 +9,12 @@ import java.net.URISyntaxException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import org.sonatype.goodies.testsupport.TestSupport;
 import org.sonatype.nexus.blobstore.api.Blob;
 import org.sonatype.nexus.blobstore.api.BlobRef;
+import org.sonatype.nexus.common.app.ApplicationDirectories;
 import org.sonatype.nexus.common.collect.NestedAttributesMap;
 import org.sonatype.nexus.common.entity.DetachedEntityId;
 import org.sonatype.nexus.common.entity.DetachedEntityMetadata;
@@ -25,6 +27,8 @@ import org.sonatype.nexus.repository.protop.ProtopUploadHandlerTest;
 import org.sonatype.nexus.repository.storage.Asset;
 import org.sonatype.nexus.repository.storage.AssetBlob;
 import org.sonatype.nexus.repository.storage.Bucket;
+import org.sonatype.nexus.repository.storage.Component;
+import org.sonatype.nexus.repository.storage.Query;
 import org.sonatype.nexus.repository.storage.StorageFacet;
 import org.sonatype.nexus.repository.storage.StorageTx;
 import org.sonatype.nexus.repository.storage.TempBlob;
@@ -33,6 +37,7 @@ import org.sonatype.nexus.repository.view.Payload;
 import org.sonatype.nexus.transaction.UnitOfWork;
 
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
 import org.apache.commons.io.IOUtils;
 import org.junit.After;
@@ -45,6 +50,7 @@ import org.mockito.Captor;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 
+import static java.util.Arrays.asList;
 import static java.util.Collections.emptyMap;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
@@ -58,9 +64,12 @@ import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_DEPRECATED;
+import static org.sonatype.nexus.repository.protop.internal.ProtopAttributes.P_DIST_TAGS;
 import static org.sonatype.nexus.repository.storage.MetadataNodeEntityAdapter.P_NAME;
 
 public class ProtopHostedFacetImplTest extends TestSupport
@@ -97,12 +106,17 @@ public class ProtopHostedFacetImplTest extends TestSupport
   @Mock
   private AssetBlob assetBlob;
 
+  @Mock
+  private ApplicationDirectories applicationDirectories;
+
   @Captor
   private ArgumentCaptor<Supplier<InputStream>> captor;
 
   @Before
   public void setup() throws Exception {
     underTest = new ProtopHostedFacetImpl(protopRequestParser);
+    when(applicationDirectories.getTemporaryDirectory()).thenReturn(tempFolderRule.getRoot());
+    underTest.configureTemporaryDirectory(applicationDirectories);
     underTest.attach(repository);
 
     when(protopFacet.putTarball(any(), any(), any(), any())).thenReturn(mockAsset);
@@ -191,6 +205,7 @@ public class ProtopHostedFacetImplTest extends TestSupport
     Blob blob = mock(Blob.class);
     ByteArrayInputStream bis = new ByteArrayInputStream("{\"dist-tags\":{\"latest\":\"1.0.0\"}}".getBytes());
     when(storageTx.findBucket(repository)).thenReturn(bucket);
+    when(asset.formatAttributes()).thenReturn(new NestedAttributesMap("metadata", new HashMap<>()));
     when(storageTx.findAssetWithProperty("name", "org/package", bucket)).thenReturn(asset);
     when(storageTx.requireBlob(asset.requireBlobRef())).thenReturn(blob);
     when(blob.getInputStream()).thenReturn(bis);
@@ -201,6 +216,23 @@ public class ProtopHostedFacetImplTest extends TestSupport
     assertThat(actual, is("{\"latest\":\"1.0.0\"}"));
   }
 
+  @Test
+  public void getDistTagFromPackageRootAttributes() throws Exception {
+    Bucket bucket = mock(Bucket.class);
+    Asset asset = mock(Asset.class);
+    NestedAttributesMap formatAttributes = new NestedAttributesMap("metadata", new HashMap<>());
+    formatAttributes.child(P_DIST_TAGS).set("latest", "1.0.0");
+    when(asset.formatAttributes()).thenReturn(formatAttributes);
+    when(storageTx.findBucket(repository)).thenReturn(bucket);
+    when(storageTx.findAssetWithProperty("name", "org/package", bucket)).thenReturn(asset);
+
+    final Content content = underTest.getDistTags(ProtopProjectId.parse("org/package"));
+
+    final String actual = IOUtils.toString(content.openInputStream());
+    assertThat(actual, is("{\"latest\":\"1.0.0\"}"));
+    verify(storageTx, never()).requireBlob(any());
+  }
+
   @Test(expected = IOException.class)
   public void updateTagLatestIsInvalid() throws Exception {
     ProtopProjectId packageId = new ProtopProjectId("myOrg", "myName");
@@ -208,6 +240,86 @@ public class ProtopHostedFacetImplTest extends TestSupport
     underTest.putDistTags(packageId, "latest", null);
   }
 
+  @Test
+  public void revisionUpgradeSkippedWhenPackageRootHasRevision() throws Exception {
+    Bucket bucket = mock(Bucket.class);
+    Asset asset = mock(Asset.class);
+    Blob blob = mock(Blob.class);
+    when(asset.name()).thenReturn("org/package");
+    when(asset.formatAttributes()).thenReturn(new NestedAttributesMap("metadata", new HashMap<>()));
+    when(storageTx.findBucket(repository)).thenReturn(bucket);
+    when(storageTx.findAssetWithProperty("name", "org/package", bucket)).thenReturn(asset);
+    when(storageTx.requireBlob(asset.requireBlobRef())).thenReturn(blob);
+    when(blob.getInputStream()).thenReturn(new ByteArrayInputStream("{\"name\":\"package\",\"_rev\":\"3\"}".getBytes()));
+
+    underTest.upgradeRevisionOnPackageRoot(asset, "7");
+
+    verify(storageTx, never()).saveAsset(any());
+  }
+
+  @Test
+  public void deprecationChangesAreAddedRemovedAndRedeprecatedVersions() {
+    NestedAttributesMap oldPackageRoot = packageRoot();
+    oldPackageRoot.child("versions").child("1.0.0");
+    oldPackageRoot.child("versions").child("2.0.0").set("deprecated", "use 3");
+    oldPackageRoot.child("versions").child("3.0.0").set("deprecated", "use 4");
+    oldPackageRoot.child("versions").child("4.0.0");
+    NestedAttributesMap newPackageRoot = packageRoot();
+    newPackageRoot.child("versions").child("1.0.0").set("deprecated", "");
+    newPackageRoot.child("versions").child("2.0.0").set("deprecated", "use 3");
+    newPackageRoot.child("versions").child("3.0.0").set("deprecated", "use 5");
+    newPackageRoot.child("versions").child("5.0.0");
+
+    Set<String> changed = ProtopHostedFacetImpl.deprecationChanges(oldPackageRoot, newPackageRoot);
+
+    assertThat(changed, is(ImmutableSet.of("3.0.0", "4.0.0", "5.0.0")));
+  }
+
+  @Test
+  public void noDeprecationChangesQueryNoComponents() {
+    underTest.updateDeprecationFlags(storageTx, ProtopProjectId.parse("org/package"), packageRoot(),
+        Collections.emptySet());
+
+    verify(storageTx, never()).findComponents(any(Query.class), any());
+  }
+
+  @Test
+  public void onlyComponentsWithChangedDeprecationAreSaved() {
+    NestedAttributesMap packageRoot = packageRoot();
+    packageRoot.child("versions").child("1.0.0").set("deprecated", "use 3");
+    packageRoot.child("versions").child("2.0.0").set("deprecated", "use 3");
+    packageRoot.child("versions").child("3.0.0");
+    Component unchanged = tarballComponent("1.0.0", "use 3");
+    Component deprecated = tarballComponent("2.0.0", null);
+    Component undeprecated = tarballComponent("3.0.0", "use 4");
+    when(storageTx.findComponents(any(Query.class), any())).thenReturn(asList(unchanged, deprecated, undeprecated));
+
+    underTest.updateDeprecationFlags(storageTx, ProtopProjectId.parse("org/package"), packageRoot,
+        ImmutableSet.of("1.0.0", "2.0.0", "3.0.0"));
+
+    verify(storageTx, times(1)).findComponents(any(Query.class), any());
+    verify(storageTx, never()).saveComponent(unchanged);
+    verify(storageTx).saveComponent(deprecated);
+    verify(storageTx).saveComponent(undeprecated);
+    assertThat(deprecated.formatAttributes().get(P_DEPRECATED), is("use 3"));
+    assertThat(undeprecated.formatAttributes().contains(P_DEPRECATED), is(false));
+  }
+
+  private static NestedAttributesMap packageRoot() {
+    return new NestedAttributesMap("metadata", new HashMap<>());
+  }
+
+  private static Component tarballComponent(final String version, final String deprecated) {
+    NestedAttributesMap formatAttributes = new NestedAttributesMap("protop", new HashMap<>());
+    if (deprecated != null) {
+      formatAttributes.set(P_DEPRECATED, deprecated);
+    }
+    Component component = mock(Component.class);
+    when(component.version()).thenReturn(version);
+    when(component.formatAttributes()).thenReturn(formatAttributes);
+    return component;
+  }
+
   private void mockPackageMetadata() {
     Asset packageAssetRoot = mock(Asset.class);
     when(packageAssetRoot.name()).thenReturn("@foo/bar");
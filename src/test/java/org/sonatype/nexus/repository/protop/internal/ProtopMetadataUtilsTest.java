@@ -2,20 +2,26 @@
 package org.sonatype.nexus.repository.protop.internal;
 
 import java.security.InvalidParameterException;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Optional;
 
 import org.sonatype.goodies.testsupport.TestSupport;
 import org.sonatype.nexus.common.app.BaseUrlHolder;
 import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.common.hash.HashAlgorithm;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import org.hamcrest.Matchers;
 import org.joda.time.DateTime;
 import org.junit.Before;
 import org.junit.Test;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
@@ -261,4 +267,30 @@ public class ProtopMetadataUtilsTest
     assertThat(ProtopMetadataUtils.createRepositoryPath("org_a", "pkg", "1.2.3"), is("org_a/pkg/-/org_a-pkg-1.2.3.tar.gz"));
     assertThat(ProtopMetadataUtils.createRepositoryPath("foo", "pkg", "1.2.3"), is("foo/pkg/-/foo-pkg-1.2.3.tar.gz"));
   }
+
+  @Test
+  public void setDistDigests() {
+    NestedAttributesMap version = new NestedAttributesMap("version", new HashMap<>());
+    byte[] tarball = "tarball".getBytes(UTF_8);
+    HashCode sha1 = Hashing.sha1().hashBytes(tarball);
+    HashCode sha512 = Hashing.sha512().hashBytes(tarball);
+
+    ProtopMetadataUtils.setDistDigests(version, ImmutableMap.of(HashAlgorithm.SHA1, sha1, HashAlgorithm.SHA512, sha512));
+
+    assertThat(version.child("dist").get("shasum"), is(sha1.toString()));
+    assertThat(version.child("dist").get("integrity"),
+        is("sha512-" + Base64.getEncoder().encodeToString(sha512.asBytes())));
+  }
+
+  @Test
+  public void setDistDigestsLeavesMissingDigestsAlone() {
+    NestedAttributesMap version = new NestedAttributesMap("version", new HashMap<>());
+    version.child("dist").set("integrity", "sha512-upstream");
+    HashCode sha1 = Hashing.sha1().hashBytes("tarball".getBytes(UTF_8));
+
+    ProtopMetadataUtils.setDistDigests(version, ImmutableMap.of(HashAlgorithm.SHA1, sha1));
+
+    assertThat(version.child("dist").get("shasum"), is(sha1.toString()));
+    assertThat(version.child("dist").get("integrity"), is("sha512-upstream"));
+  }
 }
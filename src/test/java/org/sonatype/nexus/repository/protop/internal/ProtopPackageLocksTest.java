@@ -0,0 +1,125 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.sonatype.goodies.common.Time;
+import org.sonatype.goodies.testsupport.TestSupport;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ProtopPackageLocksTest
+    extends TestSupport
+{
+  private static final ProtopProjectId PACKAGE_ID = ProtopProjectId.parse("org/pkg");
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  private ProtopPackageLocks underTest;
+
+  @Before
+  public void setUp() {
+    underTest = new ProtopPackageLocks("protop-hosted", 16, Time.seconds(10), new MetricRegistry());
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void writersOfTheSamePackageQueueUp() throws Exception {
+    CountDownLatch locked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicBoolean secondRan = new AtomicBoolean();
+
+    Future<?> first = executor.submit(() -> underTest.withLock(PACKAGE_ID, () -> {
+      locked.countDown();
+      await(release);
+      return null;
+    }));
+    assertThat(locked.await(10, TimeUnit.SECONDS), is(true));
+
+    Thread second = new Thread(() -> {
+      try {
+        underTest.withLock(PACKAGE_ID, () -> {
+          secondRan.set(true);
+          return null;
+        });
+      }
+      catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    second.start();
+    second.join(200);
+    assertThat(secondRan.get(), is(false));
+
+    release.countDown();
+    first.get(10, TimeUnit.SECONDS);
+    second.join(10000);
+    assertThat(secondRan.get(), is(true));
+  }
+
+  @Test
+  public void retriesOfLockedWritesAreCounted() throws Exception {
+    underTest.withLock(PACKAGE_ID, () -> {
+      underTest.attempt();
+      return null;
+    });
+    assertThat(underTest.retries(), is(0L));
+
+    underTest.withLock(PACKAGE_ID, () -> {
+      underTest.attempt();
+      underTest.attempt();
+      underTest.attempt();
+      return null;
+    });
+    assertThat(underTest.retries(), is(2L));
+
+    // attempts outside of a locked write are not counted
+    underTest.attempt();
+    assertThat(underTest.retries(), is(2L));
+  }
+
+  @Test
+  public void writersTimingOutProceedUnlockedAndAreMetered() throws Exception {
+    ProtopPackageLocks locks = new ProtopPackageLocks("protop-hosted", 16, Time.millis(50), new MetricRegistry());
+    CountDownLatch locked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    Future<?> first = executor.submit(() -> locks.withLock(PACKAGE_ID, () -> {
+      locked.countDown();
+      await(release);
+      return null;
+    }));
+    assertThat(locked.await(10, TimeUnit.SECONDS), is(true));
+
+    assertThat(locks.withLock(PACKAGE_ID, () -> "ran"), is("ran"));
+    assertThat(locks.unlocked(), is(1L));
+
+    release.countDown();
+    first.get(10, TimeUnit.SECONDS);
+    locks.withLock(PACKAGE_ID, () -> null);
+    assertThat(locks.unlocked(), is(1L));
+  }
+
+  private static void await(final CountDownLatch latch) {
+    try {
+      latch.await(10, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.common.app.BaseUrlHolder;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.common.entity.DetachedEntityId;
+import org.sonatype.nexus.common.entity.DetachedEntityMetadata;
+import org.sonatype.nexus.common.entity.DetachedEntityVersion;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.storage.AssetUpdatedEvent;
+
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+public class ProtopPackageRootCacheTest
+    extends TestSupport
+{
+  private static final byte[] PACKAGE_ROOT = "{\"name\":\"pkg\"}".getBytes(UTF_8);
+
+  @Mock
+  Repository repository;
+
+  @Mock
+  Asset asset;
+
+  @Mock
+  AssetUpdatedEvent assetUpdatedEvent;
+
+  private final AtomicInteger reads = new AtomicInteger();
+
+  private ProtopPackageRootCache underTest;
+
+  @Before
+  public void setUp() {
+    BaseUrlHolder.set("http://localhost:8081");
+    when(repository.getName()).thenReturn("protop-hosted");
+    when(asset.name()).thenReturn("org/pkg");
+    when(asset.size()).thenReturn((long) PACKAGE_ROOT.length);
+    when(asset.formatAttributes()).thenReturn(new NestedAttributesMap("metadata", new HashMap<>()));
+    version("1");
+    when(assetUpdatedEvent.getRepositoryName()).thenReturn("protop-hosted");
+    when(assetUpdatedEvent.getAsset()).thenReturn(asset);
+    underTest = new ProtopPackageRootCache(1024, 512);
+  }
+
+  @After
+  public void tearDown() {
+    BaseUrlHolder.unset();
+  }
+
+  @Test
+  public void renderedOnceAndServedFromMemory() throws Exception {
+    assertThat(render(), is("{\"_id\":\"org/pkg\",\"name\":\"pkg\"}"));
+    assertThat(render(), is("{\"_id\":\"org/pkg\",\"name\":\"pkg\"}"));
+    assertThat(reads.get(), is(1));
+  }
+
+  @Test
+  public void renderedAgainWhenAssetVersionOrBaseUrlChanges() throws Exception {
+    render();
+    version("2");
+    render();
+    assertThat(reads.get(), is(2));
+
+    BaseUrlHolder.set("http://example.com");
+    render();
+    assertThat(reads.get(), is(3));
+  }
+
+  @Test
+  public void invalidatedByAssetEvents() throws Exception {
+    render();
+    assertThat(underTest.size(), is(1L));
+    underTest.on(assetUpdatedEvent);
+    assertThat(underTest.size(), is(0L));
+  }
+
+  @Test
+  public void largePackageRootsAreNotCached() throws Exception {
+    when(asset.size()).thenReturn(1000L);
+    ProtopContent content = content();
+    assertThat(underTest.rendered(repository, asset, content), sameInstance(content));
+    assertThat(underTest.size(), is(0L));
+  }
+
+  private String render() throws Exception {
+    ProtopContent content = underTest.rendered(repository, asset, content());
+    return new String(ByteStreams.toByteArray(content.openInputStream()), UTF_8);
+  }
+
+  private ProtopContent content() {
+    return new ProtopContent(new ProtopStreamPayload(() -> {
+      reads.incrementAndGet();
+      return new ByteArrayInputStream(PACKAGE_ROOT);
+    })).packageId("org/pkg");
+  }
+
+  private void version(final String version) {
+    when(asset.getEntityMetadata())
+        .thenReturn(new DetachedEntityMetadata(new DetachedEntityId("org/pkg"), new DetachedEntityVersion(version)));
+  }
+}
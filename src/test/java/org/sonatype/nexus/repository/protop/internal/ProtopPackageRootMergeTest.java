@@ -0,0 +1,165 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.common.app.BaseUrlHolder;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.ContentTypes;
+import org.sonatype.nexus.repository.view.payloads.BytesPayload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+public class ProtopPackageRootMergeTest
+    extends TestSupport
+{
+  private static final String FIRST = "{\"_id\":\"org/pkg\",\"_rev\":\"3\",\"org\":\"org\",\"name\":\"pkg\"," +
+      "\"readme\":\"first\",\"dist-tags\":{\"latest\":\"1.0.0\",\"beta\":\"2.0.0-beta\"},\"time\":{\"1.0.0\":\"t1\"}," +
+      "\"users\":{\"alice\":true},\"versions\":{\"1.0.0\":" + version("1.0.0", "first") + "}}";
+
+  private static final String SECOND = "{\"org\":\"org\",\"name\":\"pkg\",\"readme\":\"second\"," +
+      "\"dist-tags\":{\"latest\":\"1.1.0\",\"beta\":\"1.1.0-beta\"},\"time\":{\"1.0.0\":\"t0\",\"1.1.0\":\"t2\"}," +
+      "\"users\":{\"bob\":true},\"versions\":{\"1.0.0\":" + version("1.0.0", "second") + ",\"1.1.0\":" +
+      version("1.1.0", "second") + "}}";
+
+  @Before
+  public void setUp() {
+    BaseUrlHolder.set("http://localhost:8081");
+  }
+
+  @After
+  public void tearDown() {
+    BaseUrlHolder.unset();
+  }
+
+  @Test
+  public void firstMemberPrevails() throws IOException {
+    NestedAttributesMap merged = merge(FIRST, SECOND);
+
+    assertThat(merged.backing(), not(hasKey("_id")));
+    assertThat(merged.backing(), not(hasKey("_rev")));
+    assertThat(merged.get("readme"), equalTo("first"));
+    assertThat(merged.child("dist-tags").get("beta"), equalTo("2.0.0-beta"));
+    assertThat(merged.child("time").get("1.0.0"), equalTo("t1"));
+    assertThat(merged.child("time").get("1.1.0"), equalTo("t2"));
+    assertThat(merged.child("users").keys(), containsInAnyOrder("alice", "bob"));
+    assertThat(merged.child("versions").child("1.0.0").get("member"), equalTo("first"));
+    assertThat(merged.child("versions").child("1.1.0").get("member"), equalTo("second"));
+  }
+
+  @Test
+  public void latestIsTheLatestOfTheMembers() throws IOException {
+    assertThat(merge(FIRST, SECOND).child("dist-tags").get("latest"), equalTo("1.1.0"));
+    assertThat(merge(SECOND, FIRST).child("dist-tags").get("latest"), equalTo("1.1.0"));
+  }
+
+  @Test
+  public void tarballUrlsPointAtTheGroup() throws IOException {
+    assertThat(merge(FIRST, SECOND).child("versions").child("1.1.0").child("dist").get("tarball"),
+        equalTo("http://localhost:8081/repository/protop-group/org/pkg/-/org-pkg-1.1.0.tar.gz"));
+  }
+
+  @Test
+  public void abbreviatedPackageRootIsWrittenAlong() throws IOException {
+    ProtopPackageRootMerge merge = ProtopPackageRootMerge.index(asList(content(FIRST), content(SECOND)));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream abbreviatedOut = new ByteArrayOutputStream();
+    merge.write("protop-group", out, abbreviatedOut);
+
+    NestedAttributesMap abbreviated = parse(abbreviatedOut);
+    assertThat(abbreviated.backing(), not(hasKey("readme")));
+    assertThat(abbreviated.child("versions").keys(), containsInAnyOrder("1.0.0", "1.1.0"));
+    assertThat(abbreviated.child("versions").child("1.0.0").backing(), not(hasKey("member")));
+  }
+
+  @Test
+  public void versionsUnaffectedByTheChangedMemberAreTakenFromThePreviousMerge() throws IOException {
+    Content previous = content("{\"org\":\"org\",\"name\":\"pkg\",\"versions\":{\"1.0.0\":" +
+        version("1.0.0", "previous") + ",\"1.1.0\":" + version("1.1.0", "previous") + "}}");
+    ProtopPackageRootMerge merge = ProtopPackageRootMerge.index(asList(content(FIRST), content(SECOND)));
+
+    NestedAttributesMap merged = write(merge.reusing(previous, 1, asList("1.1.0")));
+    assertThat(merged.child("versions").child("1.0.0").get("member"), equalTo("previous"));
+    assertThat(merged.child("versions").child("1.1.0").get("member"), equalTo("second"));
+
+    merged = write(merge.reusing(previous, 0, asList("1.0.0")));
+    assertThat(merged.child("versions").child("1.0.0").get("member"), equalTo("first"));
+    assertThat(merged.child("versions").child("1.1.0").get("member"), equalTo("previous"));
+    assertThat(merged.child("dist-tags").get("latest"), equalTo("1.1.0"));
+  }
+
+  @Test
+  public void versionsTakenFromThePreviousMergeAreCopiedAsTheyAre() throws IOException {
+    Content previous = content("{\"org\":\"org\",\"name\":\"pkg\",\"versions\":{\"1.0.0\":" +
+        version("1.0.0", "previous") + "}}");
+    ProtopPackageRootMerge merge = ProtopPackageRootMerge.index(asList(content(FIRST), content(SECOND)));
+
+    NestedAttributesMap merged = write(merge.reusing(previous, 1, asList("1.1.0")));
+    assertThat(merged.child("versions").child("1.0.0").child("dist").get("tarball"),
+        equalTo("http://example.com/org-pkg-1.0.0.tar.gz"));
+    assertThat(merged.child("versions").child("1.1.0").child("dist").get("tarball"),
+        equalTo("http://localhost:8081/repository/protop-group/org/pkg/-/org-pkg-1.1.0.tar.gz"));
+  }
+
+  @Test
+  public void versionsTheChangedMemberNoLongerHasAreTakenFromTheNextMemberHavingThem() throws IOException {
+    Content previous = content("{\"org\":\"org\",\"name\":\"pkg\",\"versions\":{\"1.0.0\":" +
+        version("1.0.0", "previous") + ",\"1.1.0\":" + version("1.1.0", "previous") + "}}");
+    ProtopPackageRootMerge merge = ProtopPackageRootMerge.index(asList(content(FIRST), content(SECOND)));
+
+    NestedAttributesMap merged = write(merge.reusing(previous, 0, asList("1.0.0", "1.1.0")));
+    assertThat(merged.child("versions").child("1.0.0").get("member"), equalTo("first"));
+    assertThat(merged.child("versions").child("1.1.0").get("member"), equalTo("second"));
+  }
+
+  @Test
+  public void versionsAreRecordedByMember() throws IOException {
+    ProtopPackageRootMerge merge = ProtopPackageRootMerge.index(asList(content(FIRST), content(SECOND)));
+    assertThat(merge.versionsOf(0), contains("1.0.0"));
+    assertThat(merge.versionsOf(1), contains("1.1.0"));
+  }
+
+  private static NestedAttributesMap write(final ProtopPackageRootMerge merge) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    merge.write("protop-group", out, null);
+    return parse(out);
+  }
+
+  private static NestedAttributesMap merge(final String... members) throws IOException {
+    Content[] contents = new Content[members.length];
+    for (int i = 0; i < members.length; i++) {
+      contents[i] = content(members[i]);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ProtopPackageRootMerge.index(asList(contents)).write("protop-group", out, null);
+    return parse(out);
+  }
+
+  private static NestedAttributesMap parse(final ByteArrayOutputStream out) throws IOException {
+    byte[] bytes = out.toByteArray();
+    return ProtopJsonUtils.parse(() -> new ByteArrayInputStream(bytes));
+  }
+
+  private static Content content(final String json) {
+    return new Content(new BytesPayload(json.getBytes(UTF_8), ContentTypes.APPLICATION_JSON));
+  }
+
+  private static String version(final String version, final String member) {
+    return "{\"org\":\"org\",\"name\":\"pkg\",\"version\":\"" + version + "\",\"member\":\"" + member + "\"," +
+        "\"dist\":{\"tarball\":\"http://example.com/org-pkg-" + version + ".tar.gz\"}}";
+  }
+}
@@ -1,38 +1,62 @@
 
 package org.sonatype.nexus.repository.protop.internal
 
+import org.sonatype.goodies.common.Time
 import org.sonatype.goodies.testsupport.TestSupport
+import org.sonatype.nexus.common.app.ApplicationDirectories
 import org.sonatype.nexus.common.collect.AttributesMap
 import org.sonatype.nexus.common.collect.NestedAttributesMap
 import org.sonatype.nexus.repository.Repository
+import org.sonatype.nexus.repository.httpclient.HttpClientFacet
 import org.sonatype.nexus.repository.protop.internal.ProtopProxyFacetImpl.ProxyTarget
 import org.sonatype.nexus.repository.protop.ProtopFacet
+import org.sonatype.nexus.repository.storage.Asset
+import org.sonatype.nexus.repository.storage.Component
+import org.sonatype.nexus.repository.storage.Query
+import org.sonatype.nexus.repository.storage.StorageTx
 import org.sonatype.nexus.repository.view.Content
 import org.sonatype.nexus.repository.view.Context
+import org.sonatype.nexus.repository.view.Headers
 import org.sonatype.nexus.repository.view.Parameters
 import org.sonatype.nexus.repository.view.Payload
 import org.sonatype.nexus.repository.view.Request
 import org.sonatype.nexus.repository.view.Response
 import org.sonatype.nexus.repository.view.ViewFacet
 import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher
+import org.sonatype.nexus.repository.view.payloads.BytesPayload
 
+import org.apache.http.HttpResponse
+import org.apache.http.client.HttpClient
+import org.apache.http.client.methods.HttpGet
 import org.apache.shiro.authz.AuthorizationException
 import org.junit.Before
 import org.junit.Test
 import org.mockito.Mock
 
+import java.nio.file.Files
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
 import static java.nio.charset.StandardCharsets.UTF_8
+import static org.apache.http.HttpHeaders.IF_MODIFIED_SINCE
+import static org.apache.http.HttpHeaders.IF_NONE_MATCH
 import static org.hamcrest.Matchers.is
+import static org.hamcrest.Matchers.nullValue
 import static org.junit.Assert.assertThat
 import static org.mockito.Matchers.any
+import static org.mockito.Matchers.anyBoolean
 import static org.mockito.Matchers.eq
 import static org.mockito.Matchers.same
 import static org.mockito.Mockito.doAnswer
 import static org.mockito.Mockito.doReturn
 import static org.mockito.Mockito.doThrow
+import static org.mockito.Mockito.mock
 import static org.mockito.Mockito.never
 import static org.mockito.Mockito.spy
+import static org.mockito.Mockito.times
 import static org.mockito.Mockito.verify
+import static org.mockito.Mockito.withSettings
+import static org.sonatype.nexus.repository.http.HttpMethods.GET
 import static org.sonatype.nexus.repository.protop.internal.ProtopProxyFacetImpl.ProxyTarget.SEARCH_RESULTS
 import static org.sonatype.nexus.repository.protop.internal.ProtopProxyFacetImpl.ProxyTarget.TARBALL
 
@@ -87,6 +111,21 @@ class ProtopProxyFacetImplTest extends TestSupport {
   @Mock
   Content content
 
+  @Mock
+  HttpClientFacet httpClientFacet
+
+  @Mock
+  HttpClient httpClient
+
+  @Mock
+  HttpResponse httpResponse
+
+  @Mock
+  Asset asset
+
+  @Mock
+  ApplicationDirectories applicationDirectories
+
   ProtopProxyFacetImpl underTest
 
   @Before
@@ -100,6 +139,7 @@ class ProtopProxyFacetImplTest extends TestSupport {
     doReturn(null).when(underTest).getCachedContent(context)
     doReturn(content).when(underTest).fetch(any(String), same(context), any(Content))
     doReturn(content).when(underTest).store(same(context), same(content))
+    doReturn(null).when(underTest).findTarballIndexEntry(any(ProtopProjectId), eq(TARBALL_NAME))
     doAnswer({ new NestedAttributesMap('name', PACKAGE_VERSION) }).when(underTest).
         retrievePackageVersionTx(any(ProtopProjectId), eq(TARBALL_NAME))
 
@@ -122,6 +162,169 @@ class ProtopProxyFacetImplTest extends TestSupport {
     verify(viewFacet, never()).dispatch(any(Request))
   }
 
+  @Test
+  void 'when the tarball is in the tarball index, the package root is neither dispatched nor parsed'() {
+    doReturn(repository).when(underTest).getRepository()
+    doReturn(new ProtopTarballIndex.Entry('1.0.0', 'http://upstream' + DIST_TARBALL, null)).when(underTest).
+        findTarballIndexEntry(any(ProtopProjectId), eq(TARBALL_NAME))
+
+    doReturn(request).when(context).getRequest()
+    doReturn(PATH).when(request).getPath()
+    doReturn(viewFacet).when(repository).facet(ViewFacet)
+
+    doReturn(contextAttributes).when(context).getAttributes()
+    doReturn(TARBALL).when(contextAttributes).require(ProxyTarget)
+    doReturn(state).when(contextAttributes).require(TokenMatcher.State)
+    doReturn(TOKENS).when(state).getTokens()
+
+    assertThat(underTest.getUrl(context), is('http://upstream' + DIST_TARBALL))
+    verify(viewFacet, never()).dispatch(any(Request), any(Context))
+    verify(underTest, never()).retrievePackageVersionTx(any(ProtopProjectId), any(String))
+  }
+
+  @Test
+  void 'cooperation keys are per target, keyed on package id or tarball asset name'() {
+    doReturn(contextAttributes).when(context).getAttributes()
+    doReturn(state).when(contextAttributes).require(TokenMatcher.State)
+    doReturn(TOKENS).when(state).getTokens()
+
+    doReturn(ProxyTarget.PACKAGE).when(contextAttributes).require(ProxyTarget)
+    assertThat(underTest.cooperationKey(context), is('PACKAGE:org/pkg'))
+
+    Headers headers = new Headers()
+    headers.set('Accept', ProtopAbbreviatedPackageRoot.CONTENT_TYPE)
+    doReturn(request).when(context).getRequest()
+    doReturn(headers).when(request).getHeaders()
+    assertThat(underTest.cooperationKey(context), is('PACKAGE:org/pkg:abbreviated'))
+    doReturn(null).when(context).getRequest()
+
+    doReturn(ProxyTarget.DIST_TAGS).when(contextAttributes).require(ProxyTarget)
+    assertThat(underTest.cooperationKey(context), is('DIST_TAGS:org/pkg'))
+
+    doReturn(TARBALL).when(contextAttributes).require(ProxyTarget)
+    assertThat(underTest.cooperationKey(context), is('TARBALL:org/pkg/-/' + TARBALL_NAME))
+
+    doReturn(SEARCH_RESULTS).when(contextAttributes).require(ProxyTarget)
+    assertThat(underTest.cooperationKey(context), is(nullValue()))
+  }
+
+  @Test
+  void 'revalidation of a package root is conditional on its recorded upstream validators'() {
+    doReturn(repository).when(underTest).getRepository()
+    doReturn(httpClientFacet).when(repository).facet(HttpClientFacet)
+    doReturn(new NestedAttributesMap('protop', [upstream_etag: 'abc123', upstream_last_modified: 'Tue, 01 Sep 2020 10:00:00 GMT']))
+        .when(asset).formatAttributes()
+    Content stale = new Content(new BytesPayload(new byte[0], 'application/json'))
+    stale.attributes.set(Asset, asset)
+
+    doReturn(contextAttributes).when(context).getAttributes()
+    doReturn(stale).when(contextAttributes).get(any(String), eq(Content))
+    doReturn(ProxyTarget.PACKAGE).when(contextAttributes).require(ProxyTarget)
+
+    HttpGet httpGet = new HttpGet('http://upstream/org%2fpkg')
+    doReturn(httpResponse).when(httpClient).execute(httpGet)
+
+    assertThat(underTest.execute(context, httpClient, httpGet), is(httpResponse))
+    assertThat(httpGet.getFirstHeader(IF_NONE_MATCH).value, is('"abc123"'))
+    assertThat(httpGet.getFirstHeader(IF_MODIFIED_SINCE).value, is('Tue, 01 Sep 2020 10:00:00 GMT'))
+    // validators come with the cached content, without looking the package root up again
+    verify(underTest, never()).findPackageRootAsset(any(ProtopProjectId))
+  }
+
+  @Test
+  void 'entity tags are quoted unless they already are'() {
+    assertThat(ProtopProxyFacetImpl.quotedEtag('abc123'), is('"abc123"'))
+    assertThat(ProtopProxyFacetImpl.quotedEtag('"abc123"'), is('"abc123"'))
+    assertThat(ProtopProxyFacetImpl.quotedEtag('W/"abc123"'), is('W/"abc123"'))
+  }
+
+  @Test
+  void 'streamed through package roots are read while persisted in background, then from storage'() {
+    doReturn(repository).when(underTest).getRepository()
+    doReturn('protop-proxy').when(repository).getName()
+    doReturn(Files.createTempDirectory('protop-stream-through').toFile()).when(applicationDirectories)
+        .getTemporaryDirectory()
+    underTest.configureTemporaryDirectory(applicationDirectories)
+    underTest.configureProtopStreamThrough(true, 2, Time.seconds(5), Time.seconds(5))
+    underTest.buildStreamThroughExecutor()
+
+    CountDownLatch persist = new CountDownLatch(1)
+    String persisted = null
+    doAnswer({ invocation ->
+      persist.await(5, TimeUnit.SECONDS)
+      persisted = ((InputStream) invocation.arguments[1]).getText('UTF-8')
+      return null
+    }).when(underTest).persistStreamedThrough(any(ProtopProjectId), any(InputStream), any(Content), anyBoolean())
+    doAnswer({ new ByteArrayInputStream('{"name":"stored"}'.getBytes(UTF_8)) })
+        .when(underTest).openPersistedPackageRoot(any(ProtopProjectId))
+
+    doReturn(contextAttributes).when(context).getAttributes()
+    doReturn(ProxyTarget.PACKAGE).when(contextAttributes).require(ProxyTarget)
+    doReturn(state).when(contextAttributes).require(TokenMatcher.State)
+    doReturn(TOKENS).when(state).getTokens()
+    doReturn(request).when(context).getRequest()
+    doReturn(GET).when(request).getAction()
+    doReturn(new Headers()).when(request).getHeaders()
+
+    Payload upstream = mock(Payload, withSettings().extraInterfaces(Closeable))
+    doAnswer({ new ByteArrayInputStream('{"name":"upstream"}'.getBytes(UTF_8)) }).when(upstream).openInputStream()
+    Content remote = ProtopProxyFacetImpl.handOverable(new Content(upstream))
+
+    Content streamed = underTest.store(context, remote)
+    // the caller of store closes the fetched content, which no longer owns the upstream
+    remote.close()
+    verify((Closeable) upstream, never()).close()
+    assertThat(streamed.openInputStream().getText('UTF-8'), is('{"name":"upstream"}'))
+
+    persist.countDown()
+    underTest.awaitStreamThrough(ProtopProjectId.parse('org/pkg'))
+    assertThat(persisted, is('{"name":"upstream"}'))
+    verify((Closeable) upstream).close()
+    // once persisted the spool is gone, the saved package root is served instead
+    assertThat(streamed.openInputStream().getText('UTF-8'), is('{"name":"stored"}'))
+  }
+
+  @Test
+  void 'prefetch selects versions of configured dist-tags followed by the newest versions'() {
+    NestedAttributesMap packageRoot = new NestedAttributesMap('metadata', [
+        'dist-tags': [latest: '1.2.0', next: '2.0.0-rc.1', legacy: '0.9.0'],
+        versions   : ['0.9.0': [:], '1.0.0': [:], '1.2.0': [:], '1.10.0': [:], '2.0.0-rc.1': [:]]
+    ])
+
+    assertThat(ProtopProxyFacetImpl.selectPrefetchVersions(packageRoot, ['latest', 'missing'], 0) as List,
+        is(['1.2.0']))
+    assertThat(ProtopProxyFacetImpl.selectPrefetchVersions(packageRoot, ['latest'], 2) as List,
+        is(['1.2.0', '2.0.0-rc.1', '1.10.0']))
+    assertThat(ProtopProxyFacetImpl.selectPrefetchVersions(packageRoot, null, 0).isEmpty(), is(true))
+  }
+
+  @Test
+  void 'versions removed from remote are kept only while their tarball is cached, looked up in one query'() {
+    doReturn(repository).when(underTest).getRepository()
+    StorageTx tx = mock(StorageTx)
+    Component cachedTarball = mock(Component)
+    doReturn('1.0.0').when(cachedTarball).version()
+    doReturn([cachedTarball]).when(tx).findComponents(any(Query), any(Iterable))
+    NestedAttributesMap cachedRoot = new NestedAttributesMap('metadata',
+        [versions: ['1.0.0': [:], '2.0.0': [:], '3.0.0': [:]]])
+    NestedAttributesMap newRoot = new NestedAttributesMap('metadata', [name: 'org/pkg', versions: ['3.0.0': [:]]])
+
+    // 1.0.0 has its tarball cached, 2.0.0 does not
+    assertThat(underTest.findCachedVersionsRemovedFromRemote(cachedRoot, newRoot, tx), is(['1.0.0'] as Set))
+    verify(tx, times(1)).findComponents(any(Query), any(Iterable))
+  }
+
+  @Test
+  void 'cached tarballs are not looked up when remote removed no versions'() {
+    StorageTx tx = mock(StorageTx)
+    NestedAttributesMap cachedRoot = new NestedAttributesMap('metadata', [versions: ['1.0.0': [:]]])
+    NestedAttributesMap newRoot = new NestedAttributesMap('metadata',
+        [name: 'org/pkg', versions: ['1.0.0': [:], '2.0.0': [:]]])
+
+    assertThat(underTest.findCachedVersionsRemovedFromRemote(cachedRoot, newRoot, tx).isEmpty(), is(true))
+    verify(tx, never()).findComponents(any(Query), any(Iterable))
+  }
+
   @Test(expected = AuthorizationException)
   void 'AuthorizationExceptions from dispatch requests are not incorrectly mapped as another kind of Exception'() {
     doReturn(repository).when(underTest).getRepository()
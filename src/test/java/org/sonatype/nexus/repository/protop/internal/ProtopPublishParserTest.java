@@ -5,7 +5,6 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -179,6 +178,35 @@ public class ProtopPublishParserTest
     verify(tempBlob).close();
   }
 
+  @Test
+  public void parseNumbersAsPrimitiveWrappers() throws Exception {
+    String json = "{\"name\":\"foo\",\"int\":1,\"long\":10000000000,\"float\":1.5}";
+    try (JsonParser jsonParser = jsonFactory.createParser(json)) {
+      ProtopPublishParser underTest = new ProtopPublishParser(jsonParser, storageFacet, HASH_ALGORITHMS);
+      try (ProtopPublishRequest request = underTest.parse(NO_USER)) {
+        assertThat(request.getPackageRoot().get("int"), is(1));
+        assertThat(request.getPackageRoot().get("long"), is(10000000000L));
+        assertThat(request.getPackageRoot().get("float"), is(1.5d));
+      }
+    }
+  }
+
+  @Test
+  public void attachmentDataListenerRunsOnceBeforeAttachmentData() throws Exception {
+    List<String> fields = new ArrayList<>();
+    String json = "{\"name\":\"foo\",\"_attachments\":{" +
+        "\"a.tar.gz\":{\"data\":\"Zm9v\"},\"b.tar.gz\":{\"data\":\"YmFy\"}}}";
+    try (JsonParser jsonParser = jsonFactory.createParser(json)) {
+      ProtopPublishParser underTest = new ProtopPublishParser(jsonParser, storageFacet, HASH_ALGORITHMS)
+          .attachmentDataListener(() -> fields.add(jsonParser.getCurrentName()));
+      try (ProtopPublishRequest request = underTest.parse(NO_USER)) {
+        assertThat(request.getPackageRoot().child("_attachments").size(), is(2));
+      }
+    }
+    assertThat(fields.size(), is(1));
+    assertThat(fields.get(0), is("data"));
+  }
+
   @Test
   public void throwExceptionOnInvalidUtf8Content() throws Exception {
     exception.expectMessage("Invalid UTF-8");
@@ -271,7 +299,7 @@ public class ProtopPublishParserTest
     assertThat(attachments.size(), is(1));
     assertThat(attachments.child(name + "-" + version + ".tar.gz").get("content_type"), is("application/gzip"));
     assertThat(attachments.child(name + "-" + version + ".tar.gz").get("data"), is(BLOB_ID));
-    assertThat(attachments.child(name + "-" + version + ".tar.gz").get("length"), is(new BigInteger("447")));
+    assertThat(attachments.child(name + "-" + version + ".tar.gz").get("length"), is(447));
 
     assertThat(request.requireBlob(BLOB_ID), is(notNullValue()));
     assertThat(contentHash, is(EXPECTED_SHA1));
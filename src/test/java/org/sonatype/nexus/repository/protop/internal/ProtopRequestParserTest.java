@@ -1,12 +1,16 @@
 
 package org.sonatype.nexus.repository.protop.internal;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 
 import org.sonatype.goodies.testsupport.TestSupport;
 import org.sonatype.nexus.blobstore.api.Blob;
 import org.sonatype.nexus.blobstore.api.BlobId;
+import org.sonatype.nexus.common.app.ApplicationDirectories;
 import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.protop.internal.ProtopRequestParser.LineSplitter;
+import org.sonatype.nexus.repository.protop.internal.ProtopRequestParser.RecordingInputStream;
 import org.sonatype.nexus.repository.storage.StorageFacet;
 import org.sonatype.nexus.repository.storage.TempBlob;
 import org.sonatype.nexus.repository.view.Payload;
@@ -15,18 +19,25 @@ import org.sonatype.nexus.security.user.UserNotFoundException;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
+import com.google.common.io.ByteStreams;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -67,18 +78,27 @@ public class ProtopRequestParserTest
   @Mock
   SecuritySystem securitySystem;
 
+  @Mock
+  ApplicationDirectories applicationDirectories;
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   ProtopRequestParser underTest;
 
   @Before
   public void setUp() throws Exception {
-    underTest = spy(new ProtopRequestParser(securitySystem));
+    when(applicationDirectories.getTemporaryDirectory()).thenReturn(temporaryFolder.getRoot());
+    underTest = spy(new ProtopRequestParser(securitySystem, applicationDirectories));
 
     when(tempBlob.get()).thenReturn(inputStream);
     when(tempBlob.getBlob()).thenReturn(blob);
     when(blob.getId()).thenReturn(blobId);
     when(blobId.toString()).thenReturn("blob-id");
     when(repository.facet(StorageFacet.class)).thenReturn(storageFacet);
-    when(storageFacet.createTempBlob(eq(payload), any(Iterable.class))).thenAnswer(invocation -> tempBlob);
+    when(payload.openInputStream()).thenReturn(new ByteArrayInputStream("{\"name\":\"foo\"}".getBytes(UTF_8)));
+    when(storageFacet.createTempBlob(any(InputStream.class), any(Iterable.class))).thenAnswer(invocation -> tempBlob);
+    when(parser.attachmentDataListener(any(Runnable.class))).thenReturn(parser);
     when(parser.parse(null)).thenReturn(request);
     when(securitySystem.currentUser()).thenThrow(UserNotFoundException.class);
   }
@@ -89,17 +109,83 @@ public class ProtopRequestParserTest
     try (ProtopPublishRequest returnedRequest = underTest.parsePublish(repository, payload)) {
       assertThat(returnedRequest, is(request));
     }
+    // parsed straight from the request, without copying it first
+    verify(storageFacet, never()).createTempBlob(any(InputStream.class), any(Iterable.class));
   }
 
   @Test
   public void parsePublishOrUnpublishJsonWithCharsetChange() throws Exception {
     doThrow(new JsonParseException(jsonParser, "Invalid UTF-8")).when(underTest)
-        .parseProtopPublish(eq(storageFacet), eq(tempBlob), eq(UTF_8));
+        .parseProtopPublish(eq(storageFacet), any(InputStream.class), any(Runnable.class));
     doReturn(request).when(underTest).parseProtopPublish(eq(storageFacet), eq(tempBlob), eq(ISO_8859_1));
     try (ProtopPublishRequest returnedRequest = underTest.parsePublish(repository, payload)) {
       assertThat(returnedRequest, is(request));
     }
-    verify(underTest).parseProtopPublish(storageFacet, tempBlob, UTF_8);
+    verify(underTest).parseProtopPublish(eq(storageFacet), any(InputStream.class), any(Runnable.class));
     verify(underTest).parseProtopPublish(storageFacet, tempBlob, ISO_8859_1);
   }
+
+  @Test
+  public void charsetChangeOnceAttachmentDataWasRead() throws Exception {
+    doAnswer(invocation -> {
+      ((Runnable) invocation.getArguments()[2]).run();
+      throw new JsonParseException(jsonParser, "Invalid UTF-8");
+    }).when(underTest).parseProtopPublish(eq(storageFacet), any(InputStream.class), any(Runnable.class));
+    doReturn(request).when(underTest).parseProtopPublish(eq(storageFacet), eq(tempBlob), eq(ISO_8859_1));
+    try (ProtopPublishRequest returnedRequest = underTest.parsePublish(repository, payload)) {
+      assertThat(returnedRequest, is(request));
+    }
+  }
+
+  @Test
+  public void parsePublishWithIso88591AfterAttachments() throws Exception {
+    byte[] body = ("{\"name\":\"foo\",\"_attachments\":{\"foo-1.0.tar.gz\":{\"data\":\"Zm9v\"}}," +
+        "\"author\":\"b\u00e9\"}").getBytes(ISO_8859_1);
+    when(payload.openInputStream()).thenReturn(new ByteArrayInputStream(body));
+    when(storageFacet.createTempBlob(any(InputStream.class), any(Iterable.class))).thenAnswer(invocation -> {
+      byte[] content = ByteStreams.toByteArray((InputStream) invocation.getArguments()[0]);
+      TempBlob spooled = mock(TempBlob.class);
+      when(spooled.get()).thenAnswer(get -> new ByteArrayInputStream(content));
+      when(spooled.getBlob()).thenReturn(blob);
+      return spooled;
+    });
+
+    try (ProtopPublishRequest returnedRequest = underTest.parsePublish(repository, payload)) {
+      assertThat(returnedRequest.getPackageRoot().get("author"), is("b\u00e9"));
+      assertThat(returnedRequest.getPackageRoot().child("_attachments").size(), is(1));
+    }
+  }
+
+  @Test
+  public void recordingInputStreamReplaysFromTheStart() throws Exception {
+    byte[] bytes = "{\"name\":\"foo\"}".getBytes(UTF_8);
+    try (RecordingInputStream in = new RecordingInputStream(new ByteArrayInputStream(bytes),
+        temporaryFolder.getRoot().toPath())) {
+      assertThat(in.read(new byte[4], 0, 4), is(4));
+      assertThat(ByteStreams.toByteArray(in.replay()), is(bytes));
+    }
+  }
+
+  @Test
+  public void recordingInputStreamReplaysFromTheStartOnceSpilled() throws Exception {
+    byte[] bytes = "{\"name\":\"foo\",\"data\":\"Zm9v\"}".getBytes(UTF_8);
+    try (RecordingInputStream in = new RecordingInputStream(new ByteArrayInputStream(bytes),
+        temporaryFolder.getRoot().toPath())) {
+      assertThat(in.read(new byte[4], 0, 4), is(4));
+      in.spill();
+      assertThat(temporaryFolder.getRoot().list().length, is(1));
+      assertThat(in.read(new byte[8], 0, 8), is(8));
+      assertThat(ByteStreams.toByteArray(in.replay()), is(bytes));
+    }
+  }
+
+  @Test
+  public void lineSplitterSplitsDocumentsSkippingBlankLines() throws Exception {
+    byte[] bytes = "{\"a\":1}\n\n  {\"b\":2}\r\n{\"c\":3}\n".getBytes(UTF_8);
+    LineSplitter lines = new LineSplitter(new ByteArrayInputStream(bytes));
+    assertThat(new String(ByteStreams.toByteArray(lines.next()), UTF_8), is("{\"a\":1}"));
+    assertThat(new String(ByteStreams.toByteArray(lines.next()), UTF_8), is("{\"b\":2}\r"));
+    assertThat(new String(ByteStreams.toByteArray(lines.next()), UTF_8), is("{\"c\":3}"));
+    assertThat(lines.next(), nullValue());
+  }
 }
@@ -0,0 +1,114 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.blobstore.api.BlobRef;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.storage.StorageFacet;
+import org.sonatype.nexus.repository.storage.StorageTx;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ProtopSearchIndexFacetHostedTest
+    extends TestSupport
+{
+  @Mock
+  Repository repository;
+
+  @Mock
+  StorageFacet storageFacet;
+
+  @Mock
+  StorageTx storageTx;
+
+  private final CountDownLatch rewriting = new CountDownLatch(1);
+
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  private ProtopSearchIndexFacetHosted underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    when(repository.getName()).thenReturn("protop-hosted");
+    when(repository.facet(StorageFacet.class)).thenReturn(storageFacet);
+    when(storageFacet.txSupplier()).thenReturn(() -> storageTx);
+
+    underTest = spy(new ProtopSearchIndexFacetHosted());
+    underTest.configureSearchIndexUpdates(100);
+    underTest.attach(repository);
+    doAnswer(invocation -> {
+      rewriting.countDown();
+      release.await(5, TimeUnit.SECONDS);
+      return null;
+    }).when(underTest).doUpdateSearchIndex(any());
+    underTest.doStart();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    release.countDown();
+    underTest.doStop();
+  }
+
+  @Test
+  public void packagesQueuedDuringARewriteAreAppliedTogether() throws Exception {
+    underTest.scheduleUpdate(packageRoot("org/first"), mock(BlobRef.class));
+    rewriting.await(5, TimeUnit.SECONDS);
+
+    underTest.scheduleUpdate(packageRoot("org/second"), mock(BlobRef.class));
+    underTest.scheduleUpdate(packageRoot("org/third"), null);
+    release.countDown();
+
+    List<Collection<ProtopProjectId>> rewrites = rewrites(2);
+    assertThat(rewrites.get(0), contains(ProtopProjectId.parse("org/first")));
+    assertThat(rewrites.get(1),
+        containsInAnyOrder(ProtopProjectId.parse("org/second"), ProtopProjectId.parse("org/third")));
+  }
+
+  @Test
+  public void packageRootsKeepingTheirBlobAreNotQueued() throws Exception {
+    BlobRef blobRef = mock(BlobRef.class);
+    underTest.scheduleUpdate(packageRoot("org/first"), blobRef);
+    rewriting.await(5, TimeUnit.SECONDS);
+
+    underTest.scheduleUpdate(packageRoot("org/first"), blobRef);
+    underTest.scheduleUpdate(packageRoot("org/second"), mock(BlobRef.class));
+    release.countDown();
+
+    assertThat(rewrites(2).get(1), contains(ProtopProjectId.parse("org/second")));
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Collection<ProtopProjectId>> rewrites(final int count) throws Exception {
+    ArgumentCaptor<Collection> packageIds = ArgumentCaptor.forClass(Collection.class);
+    verify(underTest, timeout(5000).times(count)).doUpdateSearchIndex(packageIds.capture());
+    return (List) packageIds.getAllValues();
+  }
+
+  private static Asset packageRoot(final String name) {
+    Asset asset = mock(Asset.class);
+    when(asset.name()).thenReturn(name);
+    return asset;
+  }
+}
@@ -0,0 +1,105 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.payloads.BytesPayload;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.sonatype.nexus.repository.view.ContentTypes.APPLICATION_JSON;
+
+public class ProtopSearchIndexFilterTest
+    extends TestSupport
+{
+  private static final String INDEX = "{" +
+      "\"_updated\":1441712501000," +
+      "\"org/old\":{\"name\":\"org/old\",\"time\":{\"modified\":\"2015-01-01T00:00:00.000Z\"}}," +
+      "\"org/new\":{\"name\":\"org/new\",\"dist-tags\":{\"latest\":\"1.0.0\"},\"time\":{\"modified\":\"2016-01-01T00:00:00.000Z\"}}," +
+      "\"org/untimed\":{\"name\":\"org/untimed\"}" +
+      "}";
+
+  @Test
+  public void filtersEntriesModifiedBeforeSince() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ProtopSearchIndexFilter.filter(new ByteArrayInputStream(INDEX.getBytes(UTF_8)), out,
+        DateTime.parse("2015-06-01T00:00:00.000Z"));
+
+    Map<?, ?> filtered = new ObjectMapper().readValue(out.toByteArray(), Map.class);
+    assertThat(filtered.keySet(), containsInAnyOrder("_updated", "org/new", "org/untimed"));
+    assertThat(((Map<?, ?>) filtered.get("org/new")).get("name"), is("org/new"));
+    assertThat(filtered.get("_updated"), is(1441712501000L));
+  }
+
+  @Test
+  public void replacesEntryOfPackage() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ProtopSearchIndexFilter.replace(new ByteArrayInputStream(INDEX.getBytes(UTF_8)), out, "org/old",
+        ImmutableMap.of("name", "org/old", "description", "changed"), 1500000000000L);
+
+    Map<?, ?> replaced = new ObjectMapper().readValue(out.toByteArray(), Map.class);
+    assertThat(replaced.keySet(), containsInAnyOrder("_updated", "org/old", "org/new", "org/untimed"));
+    assertThat(((Map<?, ?>) replaced.get("org/old")).get("description"), is("changed"));
+    assertThat(((Map<?, ?>) replaced.get("org/new")).get("dist-tags"), is(ImmutableMap.of("latest", "1.0.0")));
+    assertThat(replaced.get("_updated"), is(1500000000000L));
+  }
+
+  @Test
+  public void addsAndDropsEntryOfPackage() throws Exception {
+    ByteArrayOutputStream added = new ByteArrayOutputStream();
+    ProtopSearchIndexFilter.replace(new ByteArrayInputStream(INDEX.getBytes(UTF_8)), added, "org/added",
+        ImmutableMap.of("name", "org/added"), 1500000000000L);
+    assertThat(new ObjectMapper().readValue(added.toByteArray(), Map.class).keySet(),
+        containsInAnyOrder("_updated", "org/old", "org/new", "org/untimed", "org/added"));
+
+    ByteArrayOutputStream dropped = new ByteArrayOutputStream();
+    ProtopSearchIndexFilter.replace(new ByteArrayInputStream(INDEX.getBytes(UTF_8)), dropped, "org/new", null,
+        1500000000000L);
+    assertThat(new ObjectMapper().readValue(dropped.toByteArray(), Map.class).keySet(),
+        containsInAnyOrder("_updated", "org/old", "org/untimed"));
+  }
+
+  @Test
+  public void replacesEntriesOfSeveralPackagesInOnePass() throws Exception {
+    Map<String, Map<String, Object>> summaries = new LinkedHashMap<>();
+    summaries.put("org/old", ImmutableMap.of("name", "org/old", "description", "changed"));
+    summaries.put("org/new", null);
+    summaries.put("org/added", ImmutableMap.of("name", "org/added"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ProtopSearchIndexFilter.replace(new ByteArrayInputStream(INDEX.getBytes(UTF_8)), out, summaries, 1500000000000L);
+
+    Map<?, ?> replaced = new ObjectMapper().readValue(out.toByteArray(), Map.class);
+    assertThat(replaced.keySet(), containsInAnyOrder("_updated", "org/old", "org/untimed", "org/added"));
+    assertThat(((Map<?, ?>) replaced.get("org/old")).get("description"), is("changed"));
+  }
+
+  @Test
+  public void filteredIndexHasNoValidators() {
+    Content fullIndex = new Content(new BytesPayload(INDEX.getBytes(UTF_8), APPLICATION_JSON));
+    fullIndex.getAttributes().set(Content.CONTENT_LAST_MODIFIED, DateTime.now());
+    fullIndex.getAttributes().set(Content.CONTENT_ETAG, "etag");
+
+    Content filtered = ProtopSearchIndexFilter.filterModifiedSince(fullIndex, DateTime.now());
+    assertThat(filtered.getAttributes().get(Content.CONTENT_LAST_MODIFIED), is(nullValue()));
+    assertThat(filtered.getAttributes().get(Content.CONTENT_ETAG), is(nullValue()));
+  }
+
+  @Test
+  public void fullIndexIsReturnedWithoutSince() {
+    Content fullIndex = new Content(new BytesPayload(INDEX.getBytes(UTF_8), APPLICATION_JSON));
+    assertThat(ProtopSearchIndexFilter.filterModifiedSince(fullIndex, null), is(sameInstance(fullIndex)));
+  }
+}
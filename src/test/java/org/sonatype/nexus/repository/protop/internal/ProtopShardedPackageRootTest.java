@@ -0,0 +1,103 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.blobstore.api.BlobRef;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.repository.protop.internal.ProtopShardedPackageRoot.VersionShard;
+import org.sonatype.nexus.repository.storage.Asset;
+
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProtopShardedPackageRootTest
+    extends TestSupport
+{
+  private static final BlobRef BLOB_REF_1 = new BlobRef("node", "default", "blob-1");
+
+  private static final BlobRef BLOB_REF_2 = new BlobRef("node", "default", "blob-2");
+
+  @Test
+  public void assembleConcatenatesHeaderAndVersions() throws Exception {
+    Map<BlobRef, String> blobs = new HashMap<>();
+    blobs.put(BLOB_REF_1, "{\"version\":\"1.0.0\"}");
+    blobs.put(BLOB_REF_2, "{\"version\":\"2.0.0\"}");
+    byte[] header = "{\"name\":\"pkg\",\"dist-tags\":{\"latest\":\"2.0.0\"}}".getBytes(UTF_8);
+
+    NestedAttributesMap packageRoot = ProtopJsonUtils.parse(() -> ProtopShardedPackageRoot.assemble(header,
+        Arrays.asList(new VersionShard("1.0.0", BLOB_REF_1, "a"), new VersionShard("2.0.0", BLOB_REF_2, "b")),
+        blobRef -> new ByteArrayInputStream(blobs.get(blobRef).getBytes(UTF_8))));
+
+    assertThat(packageRoot.get("name"), is("pkg"));
+    assertThat(packageRoot.child("dist-tags").get("latest"), is("2.0.0"));
+    assertThat(packageRoot.child("versions").keys(), contains("1.0.0", "2.0.0"));
+    assertThat(packageRoot.child("versions").child("2.0.0").get("version"), is("2.0.0"));
+  }
+
+  @Test
+  public void assembleWithEmptyHeaderOrNoVersions() throws Exception {
+    NestedAttributesMap packageRoot = ProtopJsonUtils.parse(() -> ProtopShardedPackageRoot.assemble(
+        " {} ".getBytes(UTF_8), Collections.singletonList(new VersionShard("1.0.0", BLOB_REF_1, "a")),
+        blobRef -> new ByteArrayInputStream("{}".getBytes(UTF_8))));
+    assertThat(packageRoot.child("versions").keys(), contains("1.0.0"));
+
+    packageRoot = ProtopJsonUtils.parse(() -> ProtopShardedPackageRoot.assemble(
+        "{\"name\":\"pkg\"}".getBytes(UTF_8), Collections.emptyList(), blobRef -> null));
+    assertThat(packageRoot.get("name"), is("pkg"));
+    assertThat(packageRoot.child("versions").isEmpty(), is(true));
+  }
+
+  @Test
+  public void shardsRoundTripThroughFormatAttributes() {
+    Asset asset = mock(Asset.class);
+    when(asset.formatAttributes()).thenReturn(new NestedAttributesMap("metadata", new HashMap<>()));
+    assertThat(ProtopShardedPackageRoot.isSharded(asset), is(false));
+
+    Map<String, VersionShard> shards = new LinkedHashMap<>();
+    shards.put("2.0.0", new VersionShard("2.0.0", BLOB_REF_2, "b"));
+    shards.put("1.0.0", new VersionShard("1.0.0", BLOB_REF_1, "a"));
+    ProtopShardedPackageRoot.shards(asset, shards);
+
+    assertThat(ProtopShardedPackageRoot.isSharded(asset), is(true));
+    Map<String, VersionShard> read = ProtopShardedPackageRoot.shards(asset);
+    assertThat(read.keySet(), contains("2.0.0", "1.0.0"));
+    assertThat(read.get("1.0.0").blobRef.toString(), is(BLOB_REF_1.toString()));
+    assertThat(read.get("1.0.0").sha1, is("a"));
+  }
+
+  @Test
+  public void versionAssetNamesParseBack() {
+    String name = ProtopShardedPackageRoot.versionAssetName("org/pkg", "1.0.0-beta.1");
+
+    assertThat(ProtopShardedPackageRoot.packageRootAssetName(name), is("org/pkg"));
+    assertThat(ProtopShardedPackageRoot.version(name), is("1.0.0-beta.1"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void tarballAssetNamesAreNotVersionDocuments() {
+    ProtopShardedPackageRoot.version("org/pkg/-/pkg-1.0.0.tgz");
+  }
+
+  @Test
+  public void shardingThreshold() {
+    NestedAttributesMap packageRoot = new NestedAttributesMap("packageRoot", new HashMap<>());
+    packageRoot.child("versions").set("1.0.0", new HashMap<>());
+    packageRoot.child("versions").set("2.0.0", new HashMap<>());
+
+    assertThat(ProtopShardedPackageRoot.shouldShard(packageRoot, 0), is(false));
+    assertThat(ProtopShardedPackageRoot.shouldShard(packageRoot, 3), is(false));
+    assertThat(ProtopShardedPackageRoot.shouldShard(packageRoot, 2), is(true));
+  }
+}
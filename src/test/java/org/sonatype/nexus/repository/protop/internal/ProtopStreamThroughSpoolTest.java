@@ -0,0 +1,131 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.sonatype.goodies.common.Time;
+import org.sonatype.goodies.testsupport.TestSupport;
+
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ProtopStreamThroughSpoolTest
+    extends TestSupport
+{
+  private ExecutorService executor;
+
+  private Path file;
+
+  private ProtopStreamThroughSpool underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    executor = Executors.newCachedThreadPool();
+    file = Files.createTempFile("spool", ".json");
+    underTest = new ProtopStreamThroughSpool(file, Time.seconds(5));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void readersFollowTheProducer() throws Exception {
+    PipedOutputStream upstreamOut = new PipedOutputStream();
+    PipedInputStream upstreamIn = new PipedInputStream(upstreamOut);
+    Future<?> producer = executor.submit(() -> {
+      underTest.transfer(upstreamIn);
+      return null;
+    });
+
+    upstreamOut.write("{\"name\":".getBytes(UTF_8));
+    upstreamOut.flush();
+
+    try (InputStream early = underTest.openReader()) {
+      byte[] head = new byte[8];
+      ByteStreams.readFully(early, head);
+      assertThat(new String(head, UTF_8), is("{\"name\":"));
+
+      Future<String> late = executor.submit(() -> {
+        try (InputStream in = underTest.openReader()) {
+          return new String(ByteStreams.toByteArray(in), UTF_8);
+        }
+      });
+
+      upstreamOut.write("\"org/pkg\"}".getBytes(UTF_8));
+      upstreamOut.close();
+      producer.get(5, TimeUnit.SECONDS);
+
+      assertThat(new String(ByteStreams.toByteArray(early), UTF_8), is("\"org/pkg\"}"));
+      assertThat(late.get(5, TimeUnit.SECONDS), is("{\"name\":\"org/pkg\"}"));
+    }
+  }
+
+  @Test
+  public void fileIsDeletedOnceEveryoneReleased() throws Exception {
+    underTest.transfer(new ByteArrayInputStream("{}".getBytes(UTF_8)));
+    InputStream reader = underTest.openReader();
+
+    underTest.release();
+    assertThat(Files.exists(file), is(true));
+
+    reader.close();
+    assertThat(Files.exists(file), is(false));
+    assertThat(underTest.openReader(), is(nullValue()));
+  }
+
+  @Test(expected = IOException.class)
+  public void readersFailWhenUpstreamFails() throws Exception {
+    InputStream failing = new InputStream()
+    {
+      @Override
+      public int read() throws IOException {
+        throw new IOException("connection reset");
+      }
+    };
+    try {
+      underTest.transfer(failing);
+    }
+    catch (IOException e) {
+      // expected, readers are told as well
+    }
+    try (InputStream reader = underTest.openReader()) {
+      reader.read();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void readersFailWhenTheProducerFailsOtherwise() throws Exception {
+    try (InputStream reader = underTest.openReader()) {
+      executor.submit(() -> underTest.fail(new IllegalStateException("no upstream")));
+      reader.read();
+    }
+  }
+
+  @Test(expected = InterruptedIOException.class)
+  public void readersGiveUpOnAStalledProducer() throws Exception {
+    underTest = new ProtopStreamThroughSpool(file, Time.millis(100));
+    try (InputStream reader = underTest.openReader()) {
+      reader.read();
+    }
+  }
+}
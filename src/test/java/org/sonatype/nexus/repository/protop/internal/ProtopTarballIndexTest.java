@@ -0,0 +1,74 @@
+package org.sonatype.nexus.repository.protop.internal;
+
+import java.util.LinkedHashMap;
+
+import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.repository.storage.Asset;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+public class ProtopTarballIndexTest
+    extends TestSupport
+{
+  private static final String TARBALL_URL = "https://registry.example.com/org/pkg/-/org-pkg-1.0.0.tar.gz";
+
+  @Mock
+  Asset asset;
+
+  private NestedAttributesMap packageRoot;
+
+  @Before
+  public void setUp() {
+    when(asset.formatAttributes()).thenReturn(new NestedAttributesMap("format", new LinkedHashMap<>()));
+
+    packageRoot = new NestedAttributesMap("metadata", new LinkedHashMap<>());
+    NestedAttributesMap dist = packageRoot.child("versions").child("1.0.0").child("dist");
+    dist.set("tarball", TARBALL_URL);
+    dist.set("shasum", "abc123");
+    packageRoot.child("versions").set("2.0.0", "latest");
+  }
+
+  @Test
+  public void lookupReturnsIndexedTarball() {
+    ProtopTarballIndex.maintain(asset, packageRoot);
+
+    ProtopTarballIndex.Entry entry = ProtopTarballIndex.lookup(asset, "org-pkg-1.0.0.tar.gz");
+
+    assertThat(entry, notNullValue());
+    assertThat(entry.getVersion(), is("1.0.0"));
+    assertThat(entry.getUrl(), is(TARBALL_URL));
+    assertThat(entry.getShasum(), is("abc123"));
+  }
+
+  @Test
+  public void lookupOfUnknownTarballReturnsNull() {
+    ProtopTarballIndex.maintain(asset, packageRoot);
+
+    assertThat(ProtopTarballIndex.lookup(asset, "org-pkg-2.0.0.tar.gz"), nullValue());
+  }
+
+  @Test
+  public void lookupWithoutIndexReturnsNull() {
+    assertThat(ProtopTarballIndex.lookup(asset, "org-pkg-1.0.0.tar.gz"), nullValue());
+  }
+
+  @Test
+  public void tarballNamesOfIndex() {
+    assertThat(ProtopTarballIndex.tarballNames(asset), empty());
+
+    ProtopTarballIndex.maintain(asset, packageRoot);
+
+    assertThat(ProtopTarballIndex.tarballNames(asset), contains("org-pkg-1.0.0.tar.gz"));
+  }
+}
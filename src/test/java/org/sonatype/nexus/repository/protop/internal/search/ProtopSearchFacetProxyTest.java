@@ -0,0 +1,164 @@
+package org.sonatype.nexus.repository.protop.internal.search;
+
+import java.io.InputStream;
+
+import org.sonatype.goodies.common.Time;
+import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.cache.CacheInfo;
+import org.sonatype.nexus.repository.proxy.ProxyFacet;
+import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.Parameters;
+import org.sonatype.nexus.repository.view.payloads.BytesPayload;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.io.ByteStreams;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.sonatype.nexus.repository.view.ContentTypes.APPLICATION_JSON;
+
+public class ProtopSearchFacetProxyTest
+    extends TestSupport
+{
+  private static final byte[] RESULTS = "{\"objects\":[],\"total\":0}".getBytes(UTF_8);
+
+  @Mock
+  Repository repository;
+
+  @Mock
+  ProxyFacet proxyFacet;
+
+  ProtopSearchFacetProxy underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    when(repository.getName()).thenReturn("protop-proxy");
+    when(repository.facet(ProxyFacet.class)).thenReturn(proxyFacet);
+    when(proxyFacet.get(any(Context.class)))
+        .thenAnswer(invocation -> new Content(new BytesPayload(RESULTS, APPLICATION_JSON)));
+
+    underTest = new ProtopSearchFacetProxy(new ProtopSearchParameterExtractor(), 1024 * 1024, Time.seconds(30));
+    underTest.attach(repository);
+    underTest.doStart();
+  }
+
+  @Test
+  public void equivalentSearchesAreServedFromCache() throws Exception {
+    long hits = counter("hits").getCount();
+    long misses = counter("misses").getCount();
+
+    assertThat(read(underTest.search(parameters("  foo   bar ", null))), is(RESULTS));
+    assertThat(read(underTest.search(parameters("foo bar", "20"))), is(RESULTS));
+
+    verify(proxyFacet, times(1)).get(any(Context.class));
+    assertThat(underTest.getSearchCacheStats().hitCount(), is(1L));
+    assertThat(underTest.getSearchCacheStats().missCount(), is(1L));
+    assertThat(counter("hits").getCount(), is(hits + 1));
+    assertThat(counter("misses").getCount(), is(misses + 1));
+  }
+
+  @Test
+  public void searchesAreSentUpstreamAsGiven() throws Exception {
+    Parameters parameters = parameters("  foo   bar ", "500");
+    parameters.set("quality", "0.5");
+    parameters.set("quality", "0.6");
+    underTest.search(parameters);
+
+    ArgumentCaptor<Context> captor = ArgumentCaptor.forClass(Context.class);
+    verify(proxyFacet).get(captor.capture());
+    Parameters upstream = captor.getValue().getRequest().getParameters();
+    assertThat(upstream.get("text"), is("  foo   bar "));
+    assertThat(upstream.get("size"), is("500"));
+    assertThat(upstream.get("from"), is(nullValue()));
+    assertThat(upstream.getAll("quality"), contains("0.5", "0.6"));
+  }
+
+  @Test
+  public void cachedSearchesKeepTheAgeOfTheUpstreamResponse() throws Exception {
+    DateTime lastModified = DateTime.now().minusMinutes(1);
+    CacheInfo cacheInfo = new CacheInfo(lastModified, null);
+    when(proxyFacet.get(any(Context.class))).thenAnswer(invocation -> {
+      Content content = new Content(new BytesPayload(RESULTS, APPLICATION_JSON));
+      content.getAttributes().set(CacheInfo.class, cacheInfo);
+      content.getAttributes().set(Content.CONTENT_LAST_MODIFIED, lastModified);
+      return content;
+    });
+
+    underTest.search(parameters("foo", null));
+    Content cached = underTest.search(parameters("foo", null));
+
+    assertThat(cached.getAttributes().get(CacheInfo.class), is(cacheInfo));
+    assertThat(cached.getAttributes().get(Content.CONTENT_LAST_MODIFIED), is(lastModified));
+  }
+
+  @Test
+  public void differentSearchesAreFetchedSeparately() throws Exception {
+    underTest.search(parameters("foo", null));
+    underTest.search(parameters("foo", "50"));
+
+    verify(proxyFacet, times(2)).get(any(Context.class));
+    assertThat(underTest.getSearchCacheStats().missCount(), is(2L));
+  }
+
+  @Test
+  public void evictionsAreCounted() throws Exception {
+    // no search result fits, each is evicted once cached
+    underTest = new ProtopSearchFacetProxy(new ProtopSearchParameterExtractor(), 1, Time.seconds(30));
+    underTest.attach(repository);
+    underTest.doStart();
+    long evictions = counter("evictions").getCount();
+
+    assertThat(read(underTest.search(parameters("foo", null))), is(RESULTS));
+    underTest.search(parameters("foo", null));
+
+    verify(proxyFacet, times(2)).get(any(Context.class));
+    assertThat(counter("evictions").getCount(), is(evictions + 2));
+  }
+
+  @Test
+  public void cacheCanBeDisabled() throws Exception {
+    underTest = new ProtopSearchFacetProxy(new ProtopSearchParameterExtractor(), 0, Time.seconds(30));
+    underTest.attach(repository);
+
+    underTest.search(parameters("foo", null));
+    underTest.search(parameters("foo", null));
+
+    verify(proxyFacet, times(2)).get(any(Context.class));
+  }
+
+  private static Counter counter(final String name) {
+    return SharedMetricRegistries.getOrCreate("nexus")
+        .counter(MetricRegistry.name(ProtopSearchFacetProxy.class, "protop-proxy", "cache", name));
+  }
+
+  private static Parameters parameters(final String text, final String size) {
+    Parameters parameters = new Parameters();
+    parameters.set("text", text);
+    if (size != null) {
+      parameters.set("size", size);
+    }
+    return parameters;
+  }
+
+  private static byte[] read(final Content content) throws Exception {
+    try (InputStream in = content.openInputStream()) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+}